@@ -1,56 +1,263 @@
 package peerconnect.controller;
 
+import com.sun.net.httpserver.Filter;
 import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
+import peerconnect.service.BandwidthLimiter;
+import peerconnect.service.BlobStore;
+import peerconnect.service.ChunkedUploadManager;
+import peerconnect.service.Compression;
 import peerconnect.service.FileSharer;
+import peerconnect.service.FileTransfer;
+import peerconnect.service.NodeRegistry;
+import peerconnect.service.ShareJournal;
+import peerconnect.service.SharedFile;
+import peerconnect.service.TransferProtocol;
+import peerconnect.service.UploadAdmission;
+import peerconnect.service.WriteBehind;
+import peerconnect.utils.BufferPool;
+import peerconnect.utils.ConfigUtils;
+import peerconnect.utils.Metrics;
+import peerconnect.utils.MultipartParser;
+import peerconnect.utils.MultipartParser.ParseResult;
+import peerconnect.utils.ThreadUtils;
+import peerconnect.utils.TrustedProxies;
 
 import java.io.*;
+import java.net.ConnectException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
-import java.util.UUID;
+import java.nio.file.Paths;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class FileController {
 
     private static final Logger logger = Logger.getLogger(FileController.class.getName());
+
+    // bodies of the fixed answers, encoded once instead of on every request
+    private static final byte[] NOT_FOUND = ascii("Not Found");
+    private static final byte[] METHOD_NOT_ALLOWED = ascii("Method Not Allowed");
+    private static final byte[] FORBIDDEN = ascii("Forbidden");
+    private static final byte[] NOT_MULTIPART = ascii("Bad Request: Content-Type must be multipart/form-data");
+    private static final byte[] NO_BOUNDARY = ascii("Bad Request: multipart boundary missing");
+    private static final byte[] UNPARSEABLE_UPLOAD = ascii("Bad Request: Could not parse file content");
+    private static final byte[] UPLOAD_TOO_LARGE = ascii("File too large. Maximum allowed size is 200 MB.");
+    private static final byte[] INVALID_LIMITS = ascii("Bad Request: maxDownloads and maxConcurrent must be numbers");
+    private static final byte[] INVALID_INVITE = ascii("Not Found: Invalid or expired invite code");
+    private static final byte[] INVALID_PORT = ascii("Bad Request: Invalid Port Number");
+    private static final byte[] RANGE_NOT_SATISFIABLE = ascii("Requested range not satisfiable");
+    private static final byte[] SHARE_BUSY = ascii("Too many concurrent downloads of this share, try again shortly");
+    private static final byte[] SHARE_GONE = ascii("Gone: this share reached its download limit");
+
+    // asks the JDK server to close each connection after its response
+    private static final Filter CLOSE_CONNECTION = new Filter() {
+        @Override
+        public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+            exchange.getResponseHeaders().set("Connection", "close");
+            chain.doFilter(exchange);
+        }
+
+        @Override
+        public String description() {
+            return "Connection: close";
+        }
+    };
+
     private final FileSharer fileSharer;
     private final HttpServer server;
+    private final boolean keepAlive;
     private final String uploadDir;
     private final ExecutorService executorService;
+    private final ChunkedUploadManager chunkedUploads;
+    private final BlobStore blobStore;
+    private final UploadAdmission uploadAdmission;
+    private final Metrics metrics = new Metrics();
+    private final AtomicInteger activeDownloads = new AtomicInteger();
+    private final Metrics.Counter uploadsCompleted;
+    private final Metrics.Counter uploadBytes;
+    private final Metrics.Histogram uploadParseTime;
+    private final Metrics.Histogram uploadWriteTime;
+    private final Metrics.Counter downloadsCompleted;
+    private final Metrics.Counter downloadBytes;
+    private final Metrics.Histogram timeToFirstByte;
+    private final Metrics.Histogram downloadRate;
+    private final int maxFilesPerUpload = ConfigUtils.getInt("peerconnect.upload.maxFiles", 1000);
+    private final TrustedProxies trustedProxies = TrustedProxies.fromConfig();
 
     public FileController(int port) throws IOException {
+        this(port, NodeRegistry.fromConfig());
+    }
 
-        this.fileSharer = new FileSharer();
-        this.server = HttpServer.create(new InetSocketAddress(port), 0);
-        this.uploadDir = System.getProperty("java.io.tmpdir") + File.separator + "peerconnect-uploads";;
-        this.executorService = Executors.newFixedThreadPool(10);
+    // nodes says which backend this is and where the others are, see NodeRegistry.
+    public FileController(int port, NodeRegistry nodes) throws IOException {
+
+        tuneHttpServer();
+        this.server = HttpServer.create(new InetSocketAddress(port), ConfigUtils.getInt("peerconnect.http.backlog", 1024));
+        this.keepAlive = ConfigUtils.getBoolean("peerconnect.http.keepAlive", true);
+        // nodes on one host must not share blobs or a journal
+        this.uploadDir = ConfigUtils.getString("peerconnect.upload.dir",
+                System.getProperty("java.io.tmpdir") + File.separator + "peerconnect-uploads"
+                        + (nodes.getLocalNode() == 0 ? "" : "-node" + nodes.getLocalNode()));
+        ThreadUtils.ExecutionMode executionMode = ThreadUtils.getExecutionMode();
+        this.executorService = ThreadUtils.newExecutor(executionMode, "http-worker",
+                ConfigUtils.getInt("peerconnect.http.threads", 10));
 
         File uploadDirFile = new File(uploadDir);
         if(!uploadDirFile.exists()){
             uploadDirFile.mkdirs();
         }
+        WriteBehind writeBehind = WriteBehind.fromConfig();
+        this.blobStore = new BlobStore(uploadDir + File.separator + "blobs", writeBehind);
+        ShareJournal journal = openJournal();
+        this.fileSharer = new FileSharer(metrics, journal, nodes);
+        if (journal != null) {
+            fileSharer.restore(blobStore);
+            // only a replayed journal tells which blobs are still shared
+            blobStore.purgeUnreferenced();
+        }
+        this.uploadAdmission = new UploadAdmission(uploadDir, UploadHandler.MAX_UPLOAD_SIZE + UploadHandler.MULTIPART_OVERHEAD,
+                ConfigUtils.getLong("peerconnect.upload.inFlightBudget", 1024L * 1024 * 1024),
+                ConfigUtils.getLong("peerconnect.upload.minFreeSpace", 256L * 1024 * 1024));
+        this.chunkedUploads = new ChunkedUploadManager(uploadDir,
+                ConfigUtils.getLong("peerconnect.upload.maxChunkedSize", 16L * 1024 * 1024 * 1024),
+                ConfigUtils.getLong("peerconnect.upload.sessionTtlMinutes", 60));
+
+        route("/upload", new UploadHandler());
+        route("/upload/", new ChunkedUploadHandler());
+        route("/download", new DownloadHandler());
+        route("/admin/bandwidth", new BandwidthAdminHandler());
+        route("/metrics", new MetricsHandler());
+        route("/stats/", new StatsHandler());
+        route("/files/", new FilesHandler());
+        route("/", new CORSHandler());
+
+        this.uploadsCompleted = metrics.counter("peerconnect_uploads_completed_total", "Uploads stored and shared");
+        this.uploadBytes = metrics.counter("peerconnect_upload_bytes_total", "File bytes received by completed uploads");
+        this.uploadParseTime = metrics.histogram("peerconnect_upload_parse_seconds",
+                "Time to receive and parse a multipart upload body, including any wait for the disk", 1e-6);
+        this.uploadWriteTime = metrics.histogram("peerconnect_upload_disk_write_seconds",
+                "Time an upload waited for its file writes, fsync and final move", 1e-6);
+        metrics.counter("peerconnect_upload_fsyncs_total", "Upload files forced to disk", "", writeBehind::getSyncs);
+        metrics.counter("peerconnect_upload_group_commits_total", "Batches of upload files forced together", "",
+                writeBehind::getGroupCommits);
+        metrics.gauge("peerconnect_downloads_active", "Downloads being streamed to browsers", activeDownloads::get);
+        this.downloadsCompleted = metrics.counter("peerconnect_downloads_completed_total", "Downloads streamed in full");
+        this.downloadBytes = metrics.counter("peerconnect_download_bytes_total", "Body bytes of completed downloads");
+        this.timeToFirstByte = metrics.histogram("peerconnect_download_ttfb_seconds",
+                "Time from a download request to its response headers", 1e-6);
+        this.downloadRate = metrics.histogram("peerconnect_download_throughput_bytes_per_second",
+                "Throughput of each completed download", 1);
+        metrics.gauge("peerconnect_upload_in_flight", "Uploads admitted and not yet finished", uploadAdmission::getInFlight);
+        metrics.gauge("peerconnect_upload_in_flight_bytes", "Bytes reserved by uploads in flight", uploadAdmission::getReservedBytes);
+        metrics.gauge("peerconnect_upload_budget_bytes", "In-flight upload byte budget", uploadAdmission::getBudget);
+        metrics.gauge("peerconnect_upload_held_bytes", "Disk space held for chunked uploads not yet written",
+                uploadAdmission::getHeldBytes);
+        metrics.counter("peerconnect_upload_admitted_total", "Uploads admitted", "", uploadAdmission::getAdmitted);
+        for (UploadAdmission.Rejection reason : UploadAdmission.Rejection.values()) {
+            metrics.counter("peerconnect_upload_rejected_total", "Uploads refused before their body was read",
+                    "reason=\"" + reason.name().toLowerCase() + "\"", () -> uploadAdmission.getRejected(reason));
+        }
 
-        server.createContext("/upload", new UploadHandler());
-        server.createContext("/download", new DownloadHandler());
-        server.createContext("/", new CORSHandler());
+        if (executionMode == ThreadUtils.ExecutionMode.VIRTUAL) {
+            server.setExecutor(ThreadUtils.bounded(executorService,
+                    new Semaphore(ConfigUtils.getInt("peerconnect.http.maxConcurrent", 1000))));
+        } else {
+            server.setExecutor(executorService);
+        }
 
-        server.setExecutor(executorService);
+    }
 
+    /**
+     * Connection limits of the JDK server, which it reads from system properties once per
+     * process, when the first server is created. Properties given on the command line win.
+     * Nagle is off by default: the server writes headers and body separately, and a keep-alive
+     * client would otherwise wait for a delayed ACK on every small response.
+     */
+    private static void tuneHttpServer() {
+        long idleSeconds = ConfigUtils.getLong("peerconnect.http.idleTimeoutSeconds", 30);
+        setDefault("sun.net.httpserver.idleInterval", idleSeconds);
+        // idle connections are only looked for on this tick, 10 s by default
+        setDefault("sun.net.httpserver.clockTick", Math.max(1000, Math.min(10_000, idleSeconds * 1000 / 2)));
+        setDefault("sun.net.httpserver.maxIdleConnections", ConfigUtils.getInt("peerconnect.http.maxIdleConnections", 200));
+        setDefault("sun.net.httpserver.nodelay", ConfigUtils.getBoolean("peerconnect.http.noDelay", true));
+        int maxConnections = ConfigUtils.getInt("peerconnect.http.maxConnections", 0);
+        if (maxConnections > 0) {
+            // connections past the limit are closed as soon as they are accepted
+            setDefault("jdk.httpserver.maxConnections", maxConnections);
+        }
     }
 
-    public void start(){
+    private static void setDefault(String property, Object value) {
+        if (System.getProperty(property) == null) {
+            System.setProperty(property, String.valueOf(value));
+        }
+    }
+
+    private void route(String path, HttpHandler handler) {
+        HttpContext context = server.createContext(path, handler);
+        if (!keepAlive) {
+            context.getFilters().add(CLOSE_CONNECTION);
+        }
+    }
+
+    // The journal that keeps shares across restarts, or null to let them end with the process.
+    private ShareJournal openJournal() {
+        if (!ConfigUtils.getBoolean("peerconnect.share.persist", true)) {
+            return null;
+        }
+        try {
+            return new ShareJournal(Paths.get(uploadDir, "journal"),
+                    ConfigUtils.getInt("peerconnect.share.journalSize", 8 * 1024 * 1024));
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Shares will not survive a restart: " + e.getMessage(), e);
+            return null;
+        }
+    }
+
+    public void start() throws IOException {
+        fileSharer.start();
         server.start();
         logger.info("API Server started on port: " + server.getAddress().getPort());
     }
 
+    public int getPort(){
+        return server.getAddress().getPort();
+    }
+
+    // Where other nodes reach this one's shares; -1 in per-port mode.
+    public int getTransferPort() {
+        return fileSharer.getTransferPort();
+    }
+
     public void stop(){
         server.stop(0);
+        fileSharer.stop();
+        chunkedUploads.stop();
+        try {
+            blobStore.close();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Error closing the blob store: " + e.getMessage(), e);
+        }
         executorService.shutdown();
         logger.info("API Server stopped.");
     }
@@ -62,37 +269,38 @@ public class FileController {
             Headers headers = exchange.getResponseHeaders();
             headers.add("Access-Control-Allow-Origin", "*");
             headers.add("Access-Control-Allow-Methods", "GET, POST, OPTIONS");
-            headers.add("Access-Control-Allow-Headers", "Content-Type, Authorization");
+            headers.add("Access-Control-Allow-Headers", "Content-Type, Authorization, Range");
 
             if (exchange.getRequestMethod().equalsIgnoreCase("OPTIONS")) {
                 exchange.sendResponseHeaders(204, -1);
                 return;
             }
 
-            String response = "Not Found";
-            exchange.sendResponseHeaders(404, response.getBytes().length);
-            try (OutputStream os = exchange.getResponseBody()) {
-                os.write(response.getBytes());
-            }
+            send(exchange, 404, NOT_FOUND);
         }
     }
 
     private class UploadHandler implements HttpHandler {
 
-        final int MAX_UPLOAD_SIZE = 200 * 1024 * 1024; // 200 MB
+        static final int MAX_UPLOAD_SIZE = 200 * 1024 * 1024; // 200 MB
+        // room for the multipart boundaries and part headers around the file
+        static final int MULTIPART_OVERHEAD = 64 * 1024;
 
         @Override
         public void handle(HttpExchange exchange) throws IOException {
             Headers headers = exchange.getResponseHeaders();
             headers.add("Access-Control-Allow-Origin", "*");
 
+            if (exchange.getRequestMethod().equalsIgnoreCase("OPTIONS")) {
+                headers.add("Access-Control-Allow-Methods", "POST, OPTIONS");
+                headers.add("Access-Control-Allow-Headers", "Content-Type, X-Content-SHA256");
+                exchange.sendResponseHeaders(204, -1);
+                return;
+            }
+
             if (!exchange.getRequestMethod().equalsIgnoreCase("POST")) {
                 logger.warning("Rejected non-POST request to /upload");
-                String response = "Method Not Allowed";
-                exchange.sendResponseHeaders(405, response.getBytes().length);
-                try (OutputStream os = exchange.getResponseBody()) {
-                    os.write(response.getBytes());
-                }
+                send(exchange, 405, METHOD_NOT_ALLOWED);
                 return;
             }
 
@@ -101,325 +309,836 @@ public class FileController {
 
             if (contentType == null || !contentType.startsWith("multipart/form-data")) {
                 logger.warning("Upload failed: Content-Type is not multipart/form-data");
-                String response = "Bad Request: Content-Type must be multipart/form-data";
-                exchange.sendResponseHeaders(400, response.getBytes().length);
-                try (OutputStream os = exchange.getResponseBody()) {
-                    os.write(response.getBytes());
-                }
+                send(exchange, 400, NOT_MULTIPART);
+                return;
+            }
+            String boundary = MultipartParser.extractBoundary(contentType);
+            if (boundary == null) {
+                logger.warning("Upload failed: multipart boundary missing");
+                send(exchange, 400, NO_BOUNDARY);
                 return;
             }
-            long startTime = System.currentTimeMillis();
-            logger.info("Received file upload request.");
-            try{
-                String boundry = contentType.substring(contentType.indexOf("boundary=") + 9);
-
-                InputStream inputStream = exchange.getRequestBody();
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
 
-                byte[] buffer = new byte[4096];
-                int bytesRead;
-                int totalBytes = 0;
-                while ((bytesRead = inputStream.read(buffer)) != -1) {
+            UploadAdmission.Ticket ticket = admit(exchange);
+            if (ticket == null) {
+                return;
+            }
+            long startTime = System.nanoTime();
+            logger.fine("Received file upload request.");
+            UploadTarget target = new UploadTarget(requestHeaders.getFirst("X-Content-SHA256"));
+            try (ticket) {
+                MultipartParser parser = new MultipartParser(exchange.getRequestBody(), boundary, MAX_UPLOAD_SIZE);
+                List<ParseResult> results = parser.parseAll(target, maxFilesPerUpload);
+                uploadParseTime.record((System.nanoTime() - startTime) / 1000);
+
+                if(results == null || results.isEmpty()){
+                    logger.warning("Upload failed: Could not parse multipart data.");
+                    target.discard();
+                    send(exchange, 400, UNPARSEABLE_UPLOAD);
+                    return;
+                }
 
-                    totalBytes+=bytesRead;
+                List<BlobStore.Blob> blobs = target.commit();
+                uploadWriteTime.record(target.getWriteNanos() / 1000);
+                uploadsCompleted.increment();
+                if (results.size() == 1) {
+                    BlobStore.Blob blob = blobs.get(0);
+                    String fileName = new File(target.names.get(0)).getName();
+                    int port = offer(exchange, blob, fileName);
+                    target.offered();
+                    uploadBytes.add(results.get(0).size);
+                    logger.fine(() -> "File uploaded successfully: " + fileName +
+                            " | Size: " + blob.size + " bytes" +
+                            " | SHA-256: " + blob.digest +
+                            (target.uploads.get(0).isReused() ? " | Reused stored copy" : "") +
+                            " | Share: " + port);
+
+                    String jsonResponse = "{\"port\": " + port + ", \"sha256\": \"" + blob.digest + "\"}";
+                    sendJson(exchange, 200, jsonResponse);
+                    return;
+                }
 
-                    if (totalBytes > MAX_UPLOAD_SIZE) {
-                        logger.warning("File too large");
-                        String response = "File too large. Maximum allowed size is 200 MB.";
-                        exchange.sendResponseHeaders(413, response.getBytes().length);
-                        try (OutputStream os = exchange.getResponseBody()) {
-                            os.write(response.getBytes());
-                        }
-                        return;
-                    }
-                    baos.write(buffer, 0, bytesRead);
+                int port = offer(exchange, blobs, target.names);
+                target.offered();
+                long total = 0;
+                for (ParseResult result : results) {
+                    total += result.size;
                 }
-                byte[] requestData = baos.toByteArray();
+                uploadBytes.add(total);
+                long uploaded = total;
+                logger.fine(() -> "Files uploaded successfully: " + blobs.size() + " files" +
+                        " | Size: " + uploaded + " bytes" +
+                        " | Share: " + port);
+                sendJson(exchange, 200, "{\"port\": " + port + ", \"files\": " + filesJson(fileSharer.files(port)) + "}");
+            }catch (MultipartParser.SizeLimitExceededException ex){
+                logger.warning("File too large");
+                target.discard();
+                send(exchange, 413, UPLOAD_TOO_LARGE);
+            }catch (NumberFormatException ex){
+                logger.warning("Upload failed: invalid share limits");
+                target.discard();
+                send(exchange, 400, INVALID_LIMITS);
+            }catch (IllegalArgumentException ex){
+                logger.warning("Upload rejected: " + ex.getMessage());
+                target.discard();
+                sendText(exchange, 400, "Bad Request: " + ex.getMessage());
+            }catch (Exception ex){
+                logger.log(Level.SEVERE, "Upload failed with exception", ex);
+                target.discard();
+                sendText(exchange, 500, "Server Error: " + ex.getMessage());
+            }
+        }
 
-                MultipartParser parser = new MultipartParser(requestData, boundry);
-                ParseResult result = parser.parse();
+        // Receives the bytes of each file into the blob store once its part headers are known.
+        private class UploadTarget implements MultipartParser.PartHandler {
 
-                if(result == null){
-                    logger.warning("Upload failed: Could not parse multipart data.");
-                    String response = "Bad Request: Could not parse file content";
+            private final String expectedDigest;
+            // relative paths as sent, so a folder keeps its layout inside the ZIP
+            final List<String> names = new ArrayList<>();
+            final List<BlobStore.Upload> uploads = new ArrayList<>();
+            // stored and not yet handed to a share
+            private final List<BlobStore.Blob> blobs = new ArrayList<>();
 
-                    exchange.sendResponseHeaders(400, response.getBytes().length);
+            UploadTarget(String expectedDigest) {
+                this.expectedDigest = expectedDigest;
+            }
 
-                    try(OutputStream oos = exchange.getResponseBody()){
-                        oos.write(response.getBytes());
-                    }
-                    return;
+            @Override
+            public OutputStream openPart(String fileName, String contentType) throws IOException {
+                names.add(relativeName(fileName));
+                // the announced digest describes the file of a single-file upload
+                BlobStore.Upload upload = blobStore.begin(uploads.isEmpty() ? expectedDigest : null);
+                uploads.add(upload);
+                return upload;
+            }
+
+            List<BlobStore.Blob> commit() throws IOException {
+                for (BlobStore.Upload upload : uploads) {
+                    blobs.add(upload.commit());
                 }
+                return new ArrayList<>(blobs);
+            }
 
-                String fileName = result.filename;
-                if(fileName == null || fileName.trim().isEmpty()){
-                    fileName = "unnamed-file";
+            long getWriteNanos() {
+                long nanos = 0;
+                for (BlobStore.Upload upload : uploads) {
+                    nanos += upload.getWriteNanos();
                 }
+                return nanos;
+            }
+
+            // The share owns the blobs now.
+            void offered() {
+                blobs.clear();
+            }
 
-                String uniqueFileName = UUID.randomUUID().toString()+"_"+new File(fileName).getName();
-                String filePath = uploadDir + File.separator + uniqueFileName;
+            // Drops the uploads that were not committed and the blobs no share took.
+            void discard() {
+                uploads.forEach(BlobStore.Upload::discard);
+                blobs.forEach(BlobStore.Blob::release);
+                blobs.clear();
+            }
+        }
 
-                try (FileOutputStream fos = new FileOutputStream(filePath)) {
-                    fos.write(result.fileContent);
+        // "a/b.txt" as sent for a file in a folder, without empty, "." or ".." segments.
+        private String relativeName(String fileName) {
+            StringBuilder name = new StringBuilder();
+            if (fileName != null) {
+                for (String segment : fileName.replace('\\', '/').split("/")) {
+                    String trimmed = segment.trim();
+                    if (trimmed.isEmpty() || trimmed.equals(".") || trimmed.equals("..")) {
+                        continue;
+                    }
+                    if (name.length() > 0) {
+                        name.append('/');
+                    }
+                    name.append(trimmed);
                 }
+            }
+            return name.length() == 0 ? "unnamed-file" : name.toString();
+        }
 
-                int port = fileSharer.offerFile(filePath);
+    }
 
-                new Thread(() -> fileSharer.startFileServer(port)).start();
+    /**
+     * Chunked upload protocol:
+     *   POST   /upload/init?filename=a.iso&size=N[&partSize=M]  -> {"uploadId": "...", "partSize": M, "parts": K}
+     *   PUT    /upload/{id}/parts/{n}   body = part n, optional X-Part-Checksum (CRC32C, hex)
+     *   GET    /upload/{id}             -> parts received so far, for resuming
+     *   POST   /upload/{id}/complete    -> {"port": shareId}
+     *   DELETE /upload/{id}
+     */
+    private class ChunkedUploadHandler implements HttpHandler {
 
-                long endTime = System.currentTimeMillis();
-                long fileSize = result.fileContent.length;
+        private static final int DEFAULT_PART_SIZE = 8 * 1024 * 1024;
 
-                logger.info("File uploaded successfully: " + uniqueFileName +
-                        " | Size: " + fileSize + " bytes" +
-                        " | Port: " + port +
-                        " | Time taken: " + (endTime - startTime) + " ms");
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            Headers headers = exchange.getResponseHeaders();
+            headers.add("Access-Control-Allow-Origin", "*");
+            String method = exchange.getRequestMethod().toUpperCase();
 
-                String jsonResponse = "{\"port\": " + port + "}";
-                headers.add("Content-Type", "application/json");
-                exchange.sendResponseHeaders(200, jsonResponse.getBytes().length);
-                try(OutputStream oos = exchange.getResponseBody()){
-                    oos.write(jsonResponse.getBytes());
+            if (method.equals("OPTIONS")) {
+                headers.add("Access-Control-Allow-Methods", "GET, POST, PUT, DELETE, OPTIONS");
+                headers.add("Access-Control-Allow-Headers", "Content-Type, X-Part-Checksum");
+                exchange.sendResponseHeaders(204, -1);
+                return;
+            }
+
+            String[] segments = exchange.getRequestURI().getPath().substring("/upload/".length()).split("/");
+            try {
+                if (segments.length == 1 && segments[0].equals("init") && method.equals("POST")) {
+                    Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+                    long size = Long.parseLong(query.getOrDefault("size", "-1"));
+                    int partSize = Integer.parseInt(query.getOrDefault("partSize", String.valueOf(DEFAULT_PART_SIZE)));
+                    // the file is sparse until its parts arrive, so its space is held from now on
+                    UploadAdmission.Space space;
+                    try {
+                        space = uploadAdmission.hold(Math.max(size, 0));
+                    } catch (UploadAdmission.RejectedException e) {
+                        refuse(exchange, e);
+                        return;
+                    }
+                    ChunkedUploadManager.Session session;
+                    try {
+                        session = chunkedUploads.init(query.get("filename"), size, partSize, space);
+                    } catch (IOException | RuntimeException e) {
+                        space.close();
+                        throw e;
+                    }
+                    sendJson(exchange, 200, "{\"uploadId\": \"" + session.uploadId + "\", \"partSize\": "
+                            + session.partSize + ", \"parts\": " + session.partCount + "}");
+                } else if (segments.length == 1 && method.equals("GET")) {
+                    sendJson(exchange, 200, status(chunkedUploads.get(segments[0])));
+                } else if (segments.length == 3 && segments[1].equals("parts") && method.equals("PUT")) {
+                    UploadAdmission.Ticket ticket = admit(exchange, true);
+                    if (ticket == null) {
+                        return;
+                    }
+                    try (ticket) {
+                        String checksumHeader = exchange.getRequestHeaders().getFirst("X-Part-Checksum");
+                        Long expected = checksumHeader == null ? null : Long.parseLong(checksumHeader.trim(), 16);
+                        int index = Integer.parseInt(segments[2]);
+                        long checksum = chunkedUploads.writePart(segments[0], index, exchange.getRequestBody(), expected);
+                        sendJson(exchange, 200, "{\"part\": " + index + ", \"checksum\": \"" + Long.toHexString(checksum) + "\"}");
+                    }
+                } else if (segments.length == 1 && method.equals("DELETE")) {
+                    chunkedUploads.abort(segments[0]);
+                    exchange.sendResponseHeaders(204, -1);
+                } else if (segments.length == 2 && segments[1].equals("complete") && method.equals("POST")) {
+                    ChunkedUploadManager.Session session = chunkedUploads.complete(segments[0]);
+                    int port = offer(exchange, session.target.toString());
+                    logger.info("Chunked upload shared: " + session.target.getFileName() + " | Share: " + port);
+                    sendJson(exchange, 200, "{\"port\": " + port + "}");
+                } else {
+                    send(exchange, 404, NOT_FOUND);
                 }
-            }catch (Exception ex){
-                logger.log(Level.SEVERE, "Upload failed with exception", ex);
-                String response = "Server Error: " + ex.getMessage();
-                exchange.sendResponseHeaders(500, response.getBytes().length);
+            } catch (NoSuchElementException e) {
+                sendText(exchange, 404, "Not Found: " + e.getMessage());
+            } catch (IllegalArgumentException e) {
+                // NumberFormatException lands here too
+                logger.warning("Chunked upload rejected: " + e.getMessage());
+                sendText(exchange, 400, "Bad Request: " + e.getMessage());
+            } catch (IllegalStateException e) {
+                sendText(exchange, 409, "Conflict: " + e.getMessage());
+            } catch (Exception e) {
+                logger.log(Level.SEVERE, "Chunked upload failed with exception", e);
+                sendText(exchange, 500, "Server Error: " + e.getMessage());
+            }
+        }
 
-                try(OutputStream oos = exchange.getResponseBody()){
-                    oos.write(response.getBytes());
+        private String status(ChunkedUploadManager.Session session) {
+            StringBuilder received = new StringBuilder();
+            for (int i = 0; i < session.partCount; i++) {
+                if (session.hasPart(i)) {
+                    if (received.length() > 0) {
+                        received.append(", ");
+                    }
+                    received.append("{\"part\": ").append(i)
+                            .append(", \"checksum\": \"").append(Long.toHexString(session.checksum(i))).append("\"}");
                 }
             }
+            return "{\"uploadId\": \"" + session.uploadId + "\", \"size\": " + session.size
+                    + ", \"partSize\": " + session.partSize + ", \"parts\": " + session.partCount
+                    + ", \"received\": [" + received + "]}";
         }
 
     }
 
-    private static class MultipartParser{
+    /**
+     * Bandwidth limits in bytes per second, 0 for no limit:
+     *   GET  /admin/bandwidth                                           -> current limits
+     *   POST /admin/bandwidth?global=N&share=N&client=N&connection=N     (any subset)
+     *   POST /admin/bandwidth?shareId=S&rate=N                           (one share; -1 restores the default)
+     * Only loopback callers are allowed unless peerconnect.admin.token is set, in which case the
+     * token must be sent as "Authorization: Bearer <token>".
+     */
+    private class BandwidthAdminHandler implements HttpHandler {
 
-        private final byte[] data;
-        private final String boundary;
+        private final String token = ConfigUtils.getString("peerconnect.admin.token", null);
 
-        public MultipartParser(byte[] data, String boundary) {
-            this.data = data;
-            this.boundary = boundary;
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!authorized(exchange)) {
+                logger.warning("Rejected bandwidth admin request from " + clientAddress(exchange));
+                send(exchange, 403, FORBIDDEN);
+                return;
+            }
+            String method = exchange.getRequestMethod().toUpperCase();
+            try {
+                if (method.equals("POST") || method.equals("PUT")) {
+                    if (!update(parseQuery(exchange.getRequestURI().getRawQuery()))) {
+                        sendText(exchange, 404, "Not Found: no such share");
+                        return;
+                    }
+                } else if (!method.equals("GET")) {
+                    send(exchange, 405, METHOD_NOT_ALLOWED);
+                    return;
+                }
+                sendJson(exchange, 200, limits());
+            } catch (IllegalArgumentException e) {
+                sendText(exchange, 400, "Bad Request: rates must be whole numbers of bytes per second");
+            }
         }
 
+        private boolean authorized(HttpExchange exchange) {
+            if (token == null || token.isEmpty()) {
+                // behind a proxy on the same host every caller would look local otherwise
+                return clientAddress(exchange).isLoopbackAddress();
+            }
+            return ("Bearer " + token).equals(exchange.getRequestHeaders().getFirst("Authorization"));
+        }
 
+        // Returns false if a per-share rate names a share that does not exist.
+        private boolean update(Map<String, String> query) {
+            // parse everything first so a bad value changes nothing
+            long global = rate(query, "global");
+            long share = rate(query, "share");
+            long client = rate(query, "client");
+            long connection = rate(query, "connection");
+            if (query.containsKey("shareId")) {
+                int shareId = Integer.parseInt(query.get("shareId"));
+                long rate = Long.parseLong(query.getOrDefault("rate", "-1"));
+                if (!fileSharer.setShareRate(shareId, rate)) {
+                    return false;
+                }
+            }
+            BandwidthLimiter bandwidth = fileSharer.getBandwidth();
+            if (global >= 0) {
+                bandwidth.setGlobalRate(global);
+            }
+            if (share >= 0) {
+                bandwidth.setShareRate(share);
+            }
+            if (client >= 0) {
+                bandwidth.setClientRate(client);
+            }
+            if (connection >= 0) {
+                bandwidth.setConnectionRate(connection);
+            }
+            logger.info("Bandwidth limits changed: " + query);
+            return true;
+        }
 
-        private ParseResult parse() throws IOException{
+        // The rate given for key, or -1 if the key is absent.
+        private long rate(Map<String, String> query, String key) {
+            if (!query.containsKey(key)) {
+                return -1;
+            }
+            long rate = Long.parseLong(query.get(key));
+            if (rate < 0) {
+                throw new IllegalArgumentException(key + " must not be negative");
+            }
+            return rate;
+        }
 
-            try{
-                //file name extraction
-                String dataAsString = new String(data, StandardCharsets.ISO_8859_1);
-                String fileNameMarker = "filename=\"";
-                int fileNameStart = dataAsString.indexOf(fileNameMarker);
-                if( fileNameStart == -1) {
-                    logger.warning("No filename found in multipart data.");
-                    throw new IOException("No filename found in the multipart data");
-                }
-                int fileNameEnd = dataAsString.indexOf("\"", fileNameStart + fileNameMarker.length());
-                if(fileNameEnd == -1) {
-                    logger.warning("Malformed filename found in multipart data.");
-                    throw new IOException("Malformed filename in the multipart data");
+        private String limits() {
+            BandwidthLimiter bandwidth = fileSharer.getBandwidth();
+            StringBuilder overrides = new StringBuilder();
+            for (Map.Entry<Integer, Long> entry : bandwidth.getShareOverrides().entrySet()) {
+                if (overrides.length() > 0) {
+                    overrides.append(", ");
                 }
-                String fileName = dataAsString.substring(fileNameStart + fileNameMarker.length(), fileNameEnd);
-                logger.info("Parsed filename: " + fileName);
-
-                //content type extraction
-                String contentTypeMarker = "Content-Type: ";
-                int contentTypeStart = dataAsString.indexOf(contentTypeMarker, fileNameEnd);
-                String contentType = "application/octet-stream";
-                if( contentTypeStart == -1) {
-                    logger.warning("No content-type found in multipart data. Using default.");
-                    throw new IOException("No content-type found in the multipart data");
-                }else{
-                    int contentTypeEnd = dataAsString.indexOf("\r\n", contentTypeStart);
-                    contentType = dataAsString.substring(contentTypeStart + contentTypeMarker.length(), contentTypeEnd);
-                    logger.info("Parsed content-type: " + contentType);
-                }
-
-                // Data extraction
+                overrides.append('"').append(entry.getKey()).append("\": ").append(entry.getValue());
+            }
+            return "{\"global\": " + bandwidth.getGlobalRate() + ", \"share\": " + bandwidth.getShareRate()
+                    + ", \"client\": " + bandwidth.getClientRate() + ", \"connection\": " + bandwidth.getConnectionRate()
+                    + ", \"shares\": {" + overrides + "}}";
+        }
+    }
 
-                String headerEndMarker = "\r\n\r\n";
+    /**
+     * Reserves room for the request body before any of it is read. On rejection the answer
+     * (413, or 503 with Retry-After) has been sent and null is returned; the unread body is
+     * left for the server to drop with the connection.
+     */
+    private UploadAdmission.Ticket admit(HttpExchange exchange) throws IOException {
+        return admit(exchange, false);
+    }
 
-                int headerEnd = dataAsString.indexOf(headerEndMarker, contentTypeStart);
-                if(headerEnd == -1){
-                    logger.warning("Header end marker not found in multipart data.");
-                    throw new IOException("No data found");
-                }
-                int contentStart = headerEnd + headerEndMarker.length();
+    // inHeldSpace: a part of a chunked upload, whose disk space was held when it started.
+    private UploadAdmission.Ticket admit(HttpExchange exchange, boolean inHeldSpace) throws IOException {
+        long contentLength = -1;
+        String declared = exchange.getRequestHeaders().getFirst("Content-Length");
+        if (declared != null) {
+            try {
+                contentLength = Long.parseLong(declared.trim());
+            } catch (NumberFormatException e) {
+                sendText(exchange, 400, "Bad Request: invalid Content-Length");
+                return null;
+            }
+        }
+        try {
+            return uploadAdmission.admit(contentLength, inHeldSpace);
+        } catch (UploadAdmission.RejectedException e) {
+            refuse(exchange, e);
+            return null;
+        }
+    }
 
-                String endBoundry = "\r\n--" + boundary + "--";
-                byte[] boundryBytes = endBoundry.getBytes();
+    // Answers an upload UploadAdmission turned away: 413, or 503 with Retry-After.
+    private static void refuse(HttpExchange exchange, UploadAdmission.RejectedException e) throws IOException {
+        logger.warning("Upload refused (" + e.reason + "): " + e.getMessage());
+        if (e.reason == UploadAdmission.Rejection.TOO_LARGE) {
+            send(exchange, 413, UPLOAD_TOO_LARGE);
+        } else {
+            exchange.getResponseHeaders().add("Retry-After", e.reason == UploadAdmission.Rejection.BUSY ? "5" : "60");
+            sendText(exchange, 503, e.reason == UploadAdmission.Rejection.BUSY
+                    ? "Service Unavailable: too many uploads in progress, try again shortly"
+                    : "Service Unavailable: not enough disk space for this upload");
+        }
+    }
 
-                int contentEnd = ParseResult.findSequence(data, boundryBytes, contentStart);
+    // Prometheus text exposition of the server's counters.
+    private class MetricsHandler implements HttpHandler {
 
-                if(contentEnd == -1){
-                    endBoundry = "\r\n--" + boundary;
-                    boundryBytes = endBoundry.getBytes();
-                    contentEnd = ParseResult.findSequence(data, boundryBytes, contentStart);
-                }
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            exchange.getResponseHeaders().add("Content-Type", "text/plain; version=0.0.4");
+            sendText(exchange, 200, metrics.render());
+        }
+    }
 
-                if(contentEnd == -1 || contentEnd <= contentStart){
-                    logger.severe("Invalid content range: start=" + contentStart + ", end=" + contentEnd);
-                    return null;
-                }
+    // GET /stats/{id}: counters of one share and its running transfers.
+    private class StatsHandler implements HttpHandler {
 
-                byte[] fileContent = new byte[contentEnd - contentStart];
-                logger.info("Parsed file content. Size: " + fileContent.length + " bytes");
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            exchange.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
+            String path = exchange.getRequestURI().getPath();
+            FileSharer.ShareStats stats;
+            try {
+                stats = fileSharer.stats(Integer.parseInt(path.substring("/stats/".length())));
+            } catch (NumberFormatException e) {
+                sendText(exchange, 400, "Bad Request: share IDs are numbers");
+                return;
+            }
+            if (stats == null) {
+                send(exchange, 404, INVALID_INVITE);
+                return;
+            }
+            sendJson(exchange, 200, "{\"id\": " + stats.id + ", \"name\": \"" + jsonEscape(stats.name)
+                    + "\", \"size\": " + stats.size + ", \"ageSeconds\": "
+                    + (System.currentTimeMillis() - stats.createdMillis) / 1000
+                    + ", \"downloads\": " + stats.downloads + ", \"active\": " + stats.active
+                    + ", \"completed\": " + stats.completed + ", \"failed\": " + stats.failed
+                    + ", \"bytesSent\": " + stats.bytesSent
+                    + ", \"lastThroughputBytesPerSecond\": " + stats.lastThroughput + "}");
+        }
+    }
 
-                System.arraycopy(data, contentStart, fileContent, 0, fileContent.length);
+    // GET /files/{id}: the files of a share, each downloadable from /download/{id}/{index}.
+    private class FilesHandler implements HttpHandler {
 
-                return new ParseResult(fileName, contentType, fileContent);
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            exchange.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
+            String path = exchange.getRequestURI().getPath();
+            int shareId;
+            try {
+                shareId = Integer.parseInt(path.substring("/files/".length()));
+            } catch (NumberFormatException e) {
+                sendText(exchange, 400, "Bad Request: share IDs are numbers");
+                return;
+            }
+            List<SharedFile> files = fileSharer.files(shareId);
+            if (files == null) {
+                send(exchange, 404, INVALID_INVITE);
+                return;
+            }
+            sendJson(exchange, 200, "{\"id\": " + shareId + ", \"files\": " + filesJson(files) + "}");
+        }
+    }
 
-            }catch (Exception ex){
-                logger.log(Level.SEVERE, "Error parsing multipart data: " + ex.getMessage(), ex);
-                return null;
+    private static String filesJson(List<SharedFile> files) {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < files.size(); i++) {
+            SharedFile file = files.get(i);
+            if (i > 0) {
+                json.append(", ");
             }
+            json.append("{\"index\": ").append(i)
+                    .append(", \"name\": \"").append(jsonEscape(file.name))
+                    .append("\", \"size\": ").append(file.size)
+                    .append(", \"sha256\": ").append(file.digest == null ? "null" : "\"" + file.digest + "\"")
+                    .append('}');
+        }
+        return json.append(']').toString();
+    }
 
+    private static String jsonEscape(String value) {
+        StringBuilder out = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if (c < 0x20) {
+                out.append(String.format("\\u%04x", (int) c));
+            } else {
+                out.append(c);
+            }
         }
+        return out.toString();
+    }
 
+    // The caller's address, as forwarded by a trusted proxy if the request came through one.
+    private InetAddress clientAddress(HttpExchange exchange) {
+        Headers headers = exchange.getRequestHeaders();
+        return trustedProxies.clientAddress(exchange.getRemoteAddress().getAddress(),
+                headers.get("X-Forwarded-For"), headers.getFirst("X-Real-IP"));
     }
 
-    private static class ParseResult {
+    private static void sendJson(HttpExchange exchange, int status, String json) throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        sendText(exchange, status, json);
+    }
 
-        public final String filename;
-        public final String contentType;
-        public final byte[] fileContent;
+    private static void sendText(HttpExchange exchange, int status, String response) throws IOException {
+        send(exchange, status, response.getBytes(StandardCharsets.UTF_8));
+    }
 
-        public ParseResult(
-                String filename,
-                String contentType,
-                byte[] fileContent
-        ) {
-            this.filename = filename;
-            this.contentType = contentType;
-            this.fileContent = fileContent;
-        }
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
 
-        static int findSequence(byte[] data, byte[] sequence, int start){
-            outer: for(int i = 0; i<=data.length - sequence.length; i++){
+    private static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+    }
 
-                for(int j = 0; j<sequence.length; j++){
+    // Shares an uploaded file, honouring optional ?maxDownloads=&maxConcurrent= limits.
+    private int offer(HttpExchange exchange, BlobStore.Blob blob, String name) {
+        Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+        if (!query.containsKey("maxDownloads") && !query.containsKey("maxConcurrent")) {
+            return fileSharer.offerBlob(blob, name);
+        }
+        return fileSharer.offerBlob(blob, name,
+                Integer.parseInt(query.getOrDefault("maxDownloads", "0")),
+                Integer.parseInt(query.getOrDefault("maxConcurrent", "0")));
+    }
 
-                    if(data[i + j] != sequence[j])continue outer;
+    // Shares the files of one upload together, named by ?name= or after the folder they came in.
+    private int offer(HttpExchange exchange, List<BlobStore.Blob> blobs, List<String> names) {
+        Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+        String name = query.get("name");
+        if (name == null || name.isBlank()) {
+            String folder = names.get(0).contains("/") ? names.get(0).substring(0, names.get(0).indexOf('/')) : null;
+            for (String file : names) {
+                if (folder != null && !file.startsWith(folder + "/")) {
+                    folder = null;
                 }
-
-                return i;
             }
+            name = (folder != null ? folder : "files") + ".zip";
+        }
+        if (!query.containsKey("maxDownloads") && !query.containsKey("maxConcurrent")) {
+            return fileSharer.offerBlobs(blobs, names, name);
+        }
+        return fileSharer.offerBlobs(blobs, names, name,
+                Integer.parseInt(query.getOrDefault("maxDownloads", "0")),
+                Integer.parseInt(query.getOrDefault("maxConcurrent", "0")));
+    }
 
-            return -1;
+    private int offer(HttpExchange exchange, String filePath) {
+        Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+        if (!query.containsKey("maxDownloads") && !query.containsKey("maxConcurrent")) {
+            return fileSharer.offerFile(filePath);
+        }
+        return fileSharer.offerFile(filePath,
+                Integer.parseInt(query.getOrDefault("maxDownloads", "0")),
+                Integer.parseInt(query.getOrDefault("maxConcurrent", "0")));
+    }
 
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> params = new HashMap<>();
+        if (rawQuery == null) {
+            return params;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0) {
+                params.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                        URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+            }
         }
+        return params;
     }
 
-    private static class DownloadHandler implements HttpHandler{
+    private class DownloadHandler implements HttpHandler{
+
+        private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+        // Copies length bytes while hashing them and holds back the last byte until the hash
+        // matches, so a corrupted file never reaches the browser as a complete download.
+        private static long copyVerified(InputStream in, OutputStream out, long length, String expectedDigest,
+                                         FileTransfer.Throttle throttle) throws IOException {
+            MessageDigest sha256;
+            try {
+                sha256 = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException("SHA-256 is not available", e);
+            }
+            DigestInputStream digestIn = new DigestInputStream(in, sha256);
+            long copied = FileTransfer.streamCopy(digestIn, out, STREAM_BUFFER_SIZE, length - 1, throttle);
+            int last = digestIn.read();
+            if (copied < length - 1 || last == -1) {
+                return copied;
+            }
+            String actual = HexFormat.of().formatHex(sha256.digest());
+            if (!actual.equalsIgnoreCase(expectedDigest)) {
+                throw new IOException("Digest mismatch: expected " + expectedDigest + ", got " + actual);
+            }
+            out.write(last);
+            return length;
+        }
+
+        // Turns a single "bytes=" range into the {offset, length} pair of the transfer protocol.
+        // Multi-range and malformed headers return null, so the whole file is sent.
+        private static long[] parseRange(String rangeHeader) {
+            if (rangeHeader == null || !rangeHeader.startsWith("bytes=") || rangeHeader.indexOf(',') != -1) {
+                return null;
+            }
+            String spec = rangeHeader.substring("bytes=".length()).trim();
+            int dash = spec.indexOf('-');
+            if (dash == -1) {
+                return null;
+            }
+            try {
+                String first = spec.substring(0, dash).trim();
+                String last = spec.substring(dash + 1).trim();
+                if (first.isEmpty()) {
+                    long suffix = Long.parseLong(last);
+                    return suffix > 0 ? new long[]{-suffix, -1} : null;
+                }
+                long start = Long.parseLong(first);
+                if (last.isEmpty()) {
+                    return new long[]{start, -1};
+                }
+                long end = Long.parseLong(last);
+                return end >= start ? new long[]{start, end - start + 1} : null;
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        // Names may hold any character now; quoted ASCII for old clients, RFC 5987 for the rest.
+        static String contentDisposition(String fileName) {
+            StringBuilder fallback = new StringBuilder(fileName.length());
+            for (int i = 0; i < fileName.length(); i++) {
+                char c = fileName.charAt(i);
+                fallback.append(c < 0x20 || c > 0x7e || c == '"' || c == '\\' ? '_' : c);
+            }
+            StringBuilder encoded = new StringBuilder();
+            for (byte b : fileName.getBytes(StandardCharsets.UTF_8)) {
+                int c = b & 0xff;
+                if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                        || "!#$&+-.^_`|~".indexOf(c) != -1) {
+                    encoded.append((char) c);
+                } else {
+                    encoded.append('%').append(Character.toUpperCase(Character.forDigit(c >> 4, 16)))
+                            .append(Character.toUpperCase(Character.forDigit(c & 0xf, 16)));
+                }
+            }
+            return "attachment; filename=\"" + fallback + "\"; filename*=UTF-8''" + encoded;
+        }
 
         @Override
         public void handle(HttpExchange exchange) throws IOException{
 
-            logger.info("DownloadHandler triggered with URI: " + exchange.getRequestURI());
+            long requestTime = System.nanoTime();
+            logger.fine(() -> "DownloadHandler triggered with URI: " + exchange.getRequestURI());
 
             Headers headers = exchange.getResponseHeaders();
             headers.add("Access-Control-Allow-Origin", "*");
 
             if (!exchange.getRequestMethod().equalsIgnoreCase("GET")) {
                 logger.warning("Received non-GET request.");
-                String response = "Method Not Allowed";
-                exchange.sendResponseHeaders(405, response.getBytes().length);
-                try (OutputStream os = exchange.getResponseBody()) {
-                    os.write(response.getBytes());
-                }
+                send(exchange, 405, METHOD_NOT_ALLOWED);
                 return;
             }
 
+            // /download/{id} for the whole share, /download/{id}/{index} for one of its files
             String path = exchange.getRequestURI().getPath();
-            String portStr = path.substring(path.lastIndexOf('/') + 1);
+            String rest = path.startsWith("/download/") ? path.substring("/download/".length()) : "";
+            int slash = rest.indexOf('/');
+            String portStr = slash == -1 ? rest : rest.substring(0, slash);
 
             try{
                 int port = Integer.parseInt(portStr);
+                int member = slash == -1 ? -1 : Integer.parseInt(rest.substring(slash + 1));
+                if (slash != -1 && member < 0) {
+                    throw new NumberFormatException("negative file index");
+                }
 
-                try(
-                        Socket socket = new Socket("localhost", port);
-                        InputStream socketInput = socket.getInputStream();
-
-                ){
-                    long downloadStartTime = System.currentTimeMillis();
-                    logger.info("Socket connection established with localhost:" + port);
-                    File tempFile = File.createTempFile("download-", ".tmp");
-                    String fileName = "download-file";
-
-                    try(FileOutputStream fos = new FileOutputStream(tempFile)){
-                        byte[] buffer = new byte[4096];
-
-                        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                        int b;
-
-                        while((b = socketInput.read()) != -1){
-                            if(b == '\n')break;
-                            baos.write(b);
-                        }
-
-                        String header = baos.toString().trim();
-
-                        if(header.startsWith("Filename: ")){
-                            fileName = header.substring("Filename: ".length());
-                        }
-                        int bytesRead;
-
-                        while((bytesRead = socketInput.read(buffer)) != -1){
-                            fos.write(buffer, 0, bytesRead);
-                        }
-                    }
-
-                    long downloadEndTime = System.currentTimeMillis();
-                    long duration = downloadEndTime - downloadStartTime;
-                    logger.info("File downloaded from peer: " +
-                            " | Size: " + tempFile.length() + " bytes" +
-                            " | Time: " + duration + " ms");
-
-                    headers.add("Content-Disposition", "attachment; filename=\"" + fileName + "\"");
-                    headers.add("Content-Type", "application/octet-stream");
-
-                    exchange.sendResponseHeaders(200, tempFile.length());
-                    try(OutputStream oos = exchange.getResponseBody();
-                        FileInputStream fis = new FileInputStream(tempFile);
-                    ){
-
-
-                        byte[] buffer = new byte[4096];
-
-                        int byteRead;
-
-                        while((byteRead = fis.read(buffer)) != -1){
-                            oos.write(buffer, 0, byteRead);
-                        }
+                long[] range = parseRange(exchange.getRequestHeaders().getFirst("Range"));
+                String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+                Compression.Codec accept = range == null && acceptEncoding != null && acceptEncoding.contains("gzip")
+                        ? Compression.Codec.GZIP : Compression.Codec.IDENTITY;
+                TransferProtocol.Request request = range == null
+                        ? new TransferProtocol.Request(port, member, 0, -1, accept, true)
+                        : new TransferProtocol.Request(port, member, range[0], range[1], Compression.Codec.IDENTITY, true);
+
+                // small local files are answered from memory, without a transfer connection
+                FileSharer.CachedDownload cached = fileSharer.serveCached(request);
+                if (cached != null) {
+                    boolean succeeded = false;
+                    try {
+                        // verified when it was cached
+                        respond(exchange, port, cached.response, cached.body, range != null, false, requestTime);
+                        succeeded = true;
+                    } catch (IOException e) {
+                        failed(exchange, e);
+                    } finally {
+                        cached.finish(succeeded);
                     }
-                    tempFile.delete();
-                    logger.info("Download completed!!");
+                    return;
+                }
 
+                InetSocketAddress peer = fileSharer.transferAddress(port);
+                if (peer == null) {
+                    logger.warning("No transfer server for share " + port);
+                    send(exchange, 404, INVALID_INVITE);
+                    return;
+                }
+                try(
+                        Socket socket = new Socket(peer.getHostString(), peer.getPort());
+                        InputStream socketInput = BufferPool.heap(STREAM_BUFFER_SIZE).buffered(socket.getInputStream());
+                ){
+                    logger.fine(() -> "Socket connection established with " + peer + " for share " + port);
+                    socket.getOutputStream().write(TransferProtocol.requestFrame(
+                            port, member, request.offset, request.length, request.accept));
+
+                    TransferProtocol.Response peerResponse = TransferProtocol.readResponse(socketInput);
+                    respond(exchange, port, peerResponse, socketInput, range != null, true, requestTime);
+                }catch (ConnectException e){
+                    logger.warning("Nothing is serving share " + port + ": " + e.getMessage());
+                    send(exchange, 404, INVALID_INVITE);
                 }catch (IOException e){
-
-                    logger.log(Level.SEVERE, "Error downloading file from peer: " + e.getMessage(), e);
-                    String response = "Error downloading file: " + e.getMessage();
-                    headers.add("Content-Type", "text/plain");
-                    exchange.sendResponseHeaders(500, response.getBytes().length);
-                    try (OutputStream os = exchange.getResponseBody()) {
-                        os.write(response.getBytes());
-                    }
-
+                    failed(exchange, e);
                 }
             }catch (NumberFormatException e){
                 logger.warning("Invalid port number in URI: " + portStr);
-                String response = "Bad Request: Invalid Port Number";
-                exchange.sendResponseHeaders(500, response.length());
+                send(exchange, 500, INVALID_PORT);
+            }
 
-                try(OutputStream oos = exchange.getResponseBody()){
-                    oos.write(response.getBytes());
-                }
+        }
+
+        // Answers with the sender's response and streams its body, checking it against the
+        // digest if verify is set and one came with it. ranged says a Range was asked for.
+        private void respond(HttpExchange exchange, int port, TransferProtocol.Response peerResponse, InputStream body,
+                             boolean ranged, boolean verify, long requestTime) throws IOException {
+            Headers headers = exchange.getResponseHeaders();
+            if(TransferProtocol.ERROR_RANGE.equals(peerResponse.error)){
+                send(exchange, 416, RANGE_NOT_SATISFIABLE);
+                return;
+            }
+            if(TransferProtocol.ERROR_BUSY.equals(peerResponse.error)){
+                headers.add("Retry-After", "5");
+                send(exchange, 503, SHARE_BUSY);
+                return;
+            }
+            if(TransferProtocol.ERROR_GONE.equals(peerResponse.error)){
+                send(exchange, 410, SHARE_GONE);
+                return;
+            }
+            if(peerResponse.error != null){
+                logger.warning("Peer refused share " + port + ": " + peerResponse.error);
+                send(exchange, 404, INVALID_INVITE);
+                return;
             }
 
+            long length = peerResponse.length;
+            // a share of several files comes as a ZIP whose length is only known at its end
+            boolean archive = length < 0;
+            String fileName = peerResponse.fileName != null ? peerResponse.fileName : "download-file";
+            headers.add("Content-Disposition", contentDisposition(fileName));
+            headers.add("Content-Type", archive ? "application/zip" : "application/octet-stream");
+            if (!archive) {
+                headers.add("Accept-Ranges", "bytes");
+            }
+            headers.add("Vary", "Accept-Encoding");
+
+            boolean encoded = peerResponse.encoding != Compression.Codec.IDENTITY;
+            int status = 200;
+            if (ranged && !archive) {
+                status = 206;
+                headers.add("Content-Range", "bytes " + peerResponse.offset + "-"
+                        + (peerResponse.offset + length - 1) + "/" + peerResponse.size);
+            }
+            if (peerResponse.digest != null) {
+                headers.add("Digest", "SHA-256=" + Base64.getEncoder().encodeToString(
+                        HexFormat.of().parseHex(peerResponse.digest)));
+            }
+            if (encoded) {
+                // the browser inflates it; the compressed size is unknown, so the body is chunked
+                headers.add("Content-Encoding", peerResponse.encoding.token());
+                exchange.sendResponseHeaders(status, 0);
+            } else if (archive) {
+                exchange.sendResponseHeaders(status, 0);
+            } else {
+                // a zero length must be sent as -1, 0 would switch the response to chunked
+                exchange.sendResponseHeaders(status, length == 0 ? -1 : length);
+            }
+            long firstByteTime = System.nanoTime();
+            timeToFirstByte.record((firstByteTime - requestTime) / 1000);
+
+            activeDownloads.incrementAndGet();
+            try {
+                // not try-with-resources: closing would end the body cleanly even after a failure
+                OutputStream oos = exchange.getResponseBody();
+                // the sender paces the share and the server; the client's own cap is applied here,
+                // where its address is known
+                FileTransfer.Throttle throttle = fileSharer.getBandwidth().forClient(clientAddress(exchange));
+                long size = verify && peerResponse.digest != null && length > 0
+                        ? copyVerified(body, oos, length, peerResponse.digest, throttle)
+                        : FileTransfer.streamCopy(body, oos, STREAM_BUFFER_SIZE,
+                                encoded || archive ? Long.MAX_VALUE : length, throttle);
+                if (!encoded && size < length) {
+                    throw new IOException("Peer stream ended after " + size + " of " + length + " bytes");
+                }
+                oos.close();
+
+                long nanos = System.nanoTime() - firstByteTime;
+                downloadsCompleted.increment();
+                downloadBytes.add(size);
+                if (nanos > 0) {
+                    downloadRate.record((long) (size * 1e9 / nanos));
+                }
+                logger.fine(() -> "File streamed from peer | Share: " + port + " | Size: " + size + " bytes");
+            } finally {
+                activeDownloads.decrementAndGet();
+            }
         }
 
+        private static void failed(HttpExchange exchange, IOException e) throws IOException {
+            logger.log(Level.SEVERE, "Error downloading file from peer: " + e.getMessage(), e);
+            if (exchange.getResponseCode() != -1) {
+                // headers are gone already; rethrowing makes the server drop the connection mid-body
+                throw e;
+            }
+            exchange.getResponseHeaders().add("Content-Type", "text/plain");
+            sendText(exchange, 500, "Error downloading file: " + e.getMessage());
+        }
     }
 }
@@ -0,0 +1,157 @@
+package peerconnect.service;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.RateLimiter;
+
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token buckets pacing transfer egress: one for the whole server, one per share, one per client
+ * address and one per connection. Each is optional and can be changed while transfers run.
+ * <p>
+ * A sender takes every slice from its own buckets first and from the global bucket last, and a
+ * bucket hands out slices in request order. Running senders therefore split the global limit
+ * round robin, a sender held back by its own cap leaves its turn to the others, and a small
+ * download waits behind at most one slice per running transfer.
+ */
+public class BandwidthLimiter {
+
+    private final Bucket global;
+    private volatile long shareRate;
+    private volatile long clientRate;
+    private volatile long connectionRate;
+    private final ConcurrentMap<Integer, Bucket> shares = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Integer, Long> shareOverrides = new ConcurrentHashMap<>();
+    private final Cache<InetAddress, Bucket> clients = CacheBuilder.newBuilder()
+            .expireAfterAccess(10, TimeUnit.MINUTES)
+            .build();
+
+    // All rates are bytes per second, 0 for no limit.
+    public BandwidthLimiter(long globalRate, long shareRate, long clientRate, long connectionRate) {
+        this.global = new Bucket(globalRate);
+        this.shareRate = shareRate;
+        this.clientRate = clientRate;
+        this.connectionRate = connectionRate;
+    }
+
+    // Paces one sender of a share: its connection, the share and the server as a whole.
+    public FileTransfer.Throttle forTransfer(int shareId) {
+        Bucket connection = new Bucket(connectionRate);
+        Bucket share = shares.computeIfAbsent(shareId, id -> new Bucket(shareOverrides.getOrDefault(id, shareRate)));
+        return bytes -> {
+            connection.acquire(bytes);
+            share.acquire(bytes);
+            global.acquire(bytes);
+        };
+    }
+
+    // Paces everything sent to one client address, across all of its downloads.
+    public FileTransfer.Throttle forClient(InetAddress address) {
+        Bucket client = clients.asMap().computeIfAbsent(address, a -> new Bucket(clientRate));
+        return client::acquire;
+    }
+
+    // Drops the share's bucket and override once the share is gone, as its ID may be reused.
+    public void forget(int shareId) {
+        shareOverrides.remove(shareId);
+        shares.remove(shareId);
+    }
+
+    public long getGlobalRate() {
+        return global.getRate();
+    }
+
+    public void setGlobalRate(long rate) {
+        global.setRate(rate);
+    }
+
+    public long getShareRate() {
+        return shareRate;
+    }
+
+    // The default for every share without an override of its own.
+    public void setShareRate(long rate) {
+        shareRate = rate;
+        shares.forEach((id, bucket) -> {
+            if (!shareOverrides.containsKey(id)) {
+                bucket.setRate(rate);
+            }
+        });
+    }
+
+    // Overrides the limit of one share; a negative rate goes back to the default.
+    public void setShareRate(int shareId, long rate) {
+        if (rate < 0) {
+            shareOverrides.remove(shareId);
+        } else {
+            shareOverrides.put(shareId, rate);
+        }
+        Bucket bucket = shares.get(shareId);
+        if (bucket != null) {
+            bucket.setRate(rate < 0 ? shareRate : rate);
+        }
+    }
+
+    public Map<Integer, Long> getShareOverrides() {
+        return new TreeMap<>(shareOverrides);
+    }
+
+    public long getClientRate() {
+        return clientRate;
+    }
+
+    public void setClientRate(long rate) {
+        clientRate = rate;
+        clients.asMap().values().forEach(bucket -> bucket.setRate(rate));
+    }
+
+    public long getConnectionRate() {
+        return connectionRate;
+    }
+
+    // Applies to connections opened after the change.
+    public void setConnectionRate(long rate) {
+        connectionRate = rate;
+    }
+
+    /**
+     * A token bucket (Guava's RateLimiter, which allows a one second burst) that can be switched
+     * off and on again without replacing it.
+     */
+    static final class Bucket {
+
+        private volatile RateLimiter limiter;
+
+        Bucket(long rate) {
+            setRate(rate);
+        }
+
+        synchronized void setRate(long rate) {
+            if (rate <= 0) {
+                limiter = null;
+            } else if (limiter == null) {
+                limiter = RateLimiter.create(rate);
+            } else {
+                limiter.setRate(rate);
+            }
+        }
+
+        long getRate() {
+            RateLimiter current = limiter;
+            return current == null ? 0 : (long) current.getRate();
+        }
+
+        void acquire(int bytes) {
+            RateLimiter current = limiter;
+            if (current != null) {
+                current.acquire(bytes);
+            }
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package peerconnect.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Content-addressed upload store. Uploads are hashed with SHA-256 while they stream to a temp
+ * file through {@link WriteBehind} and then kept as one blob per digest, shared by every share of the same content through
+ * a reference count. A client that announces the digest of a file the store already holds is
+ * not written to disk at all, only hashed to prove it matches.
+ */
+public class BlobStore implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(BlobStore.class.getName());
+
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final String TEMP_SUFFIX = ".upload";
+    private static final String LOCK_FILE = "store.lock";
+
+    private final Path root;
+    private final FileChannel lock;
+    private final WriteBehind writeBehind;
+    private final Map<String, Integer> refs = new HashMap<>();
+
+    public BlobStore(String root) throws IOException {
+        this(root, WriteBehind.fromConfig());
+    }
+
+    public BlobStore(String root, WriteBehind writeBehind) throws IOException {
+        this.root = Paths.get(root);
+        this.writeBehind = writeBehind;
+        Files.createDirectories(this.root);
+        // the sweeps below would delete the uploads and blobs of another server using the directory
+        this.lock = FileChannel.open(this.root.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            if (lock.tryLock() == null) {
+                throw new IOException("Blob store " + root + " is in use by another process");
+            }
+        } catch (IOException | RuntimeException e) {
+            lock.close();
+            if (e instanceof OverlappingFileLockException) {
+                throw new IOException("Blob store " + root + " is already open", e);
+            }
+            throw e;
+        }
+        // uploads cut short by a restart; blobs wait for restore() and purgeUnreferenced()
+        try (Stream<Path> leftovers = Files.list(this.root)) {
+            leftovers.filter(path -> path.getFileName().toString().endsWith(TEMP_SUFFIX))
+                    .forEach(BlobStore::deleteQuietly);
+        }
+    }
+
+    /**
+     * Takes a reference to a blob stored before a restart, for a share brought back from the
+     * journal. Returns null if the blob is gone.
+     */
+    public synchronized Blob restore(String digest) {
+        Path blob = root.resolve(digest);
+        if (!Files.isRegularFile(blob)) {
+            return null;
+        }
+        refs.merge(digest, 1, Integer::sum);
+        return new Blob(digest, blob, blob.toFile().length());
+    }
+
+    /**
+     * Deletes the blobs no share has restored. Only call it once the journal has been replayed
+     * in full: without it every blob looks unreferenced.
+     */
+    public synchronized int purgeUnreferenced() throws IOException {
+        int purged = 0;
+        try (Stream<Path> blobs = Files.list(root)) {
+            for (Path blob : (Iterable<Path>) blobs::iterator) {
+                String name = blob.getFileName().toString();
+                if (!name.endsWith(TEMP_SUFFIX) && !name.equals(LOCK_FILE) && !refs.containsKey(name)) {
+                    deleteQuietly(blob);
+                    purged++;
+                }
+            }
+        }
+        if (purged > 0) {
+            logger.info("Deleted " + purged + " blobs no share refers to");
+        }
+        return purged;
+    }
+
+    // Starts an upload; expectedDigest (hex SHA-256) may be null.
+    public Upload begin(String expectedDigest) throws IOException {
+        String expected = expectedDigest == null ? null : expectedDigest.trim().toLowerCase();
+        if (expected != null && retain(expected)) {
+            return new Upload(expected, null);
+        }
+        Path temp = root.resolve(UUID.randomUUID() + TEMP_SUFFIX);
+        return new Upload(null, temp);
+    }
+
+    // Lets another store open the directory; blobs and uploads already handed out stay usable.
+    @Override
+    public void close() throws IOException {
+        lock.close();
+    }
+
+    public synchronized int getRefCount(String digest) {
+        return refs.getOrDefault(digest, 0);
+    }
+
+    public synchronized int size() {
+        return refs.size();
+    }
+
+    private synchronized boolean retain(String digest) {
+        Integer count = refs.get(digest);
+        if (count == null) {
+            return false;
+        }
+        refs.put(digest, count + 1);
+        return true;
+    }
+
+    private synchronized Blob commit(Path temp, String digest, long size) throws IOException {
+        Path blob = root.resolve(digest);
+        Integer count = refs.get(digest);
+        if (count != null) {
+            Files.delete(temp);
+            refs.put(digest, count + 1);
+            logger.info("Deduplicated upload: " + digest + " | References: " + (count + 1));
+        } else {
+            Files.move(temp, blob, StandardCopyOption.ATOMIC_MOVE);
+            refs.put(digest, 1);
+        }
+        return new Blob(digest, blob, size);
+    }
+
+    synchronized void release(String digest) {
+        Integer count = refs.get(digest);
+        if (count == null) {
+            logger.warning("Released unknown blob: " + digest);
+            return;
+        }
+        if (count > 1) {
+            refs.put(digest, count - 1);
+            return;
+        }
+        refs.remove(digest);
+        deleteQuietly(root.resolve(digest));
+        logger.info("[TTL CLEANUP] Blob deleted: " + digest);
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not delete " + path + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(DIGEST_ALGORITHM + " is not available", e);
+        }
+    }
+
+    /**
+     * One stored file. Each Blob handed out holds one reference, dropped by {@link #release()}.
+     */
+    public class Blob {
+
+        public final String digest;
+        public final Path path;
+        public final long size;
+
+        Blob(String digest, Path path, long size) {
+            this.digest = digest;
+            this.path = path;
+            this.size = size;
+        }
+
+        public void release() {
+            BlobStore.this.release(digest);
+        }
+    }
+
+    /**
+     * The stream an upload is written to. Either commit() or discard() must be called.
+     */
+    public class Upload extends OutputStream {
+
+        private final String reused;
+        private final Path temp;
+        // null when nothing is written
+        private final WriteBehind.Stream file;
+        private final MessageDigest digest = newDigest();
+        private long size;
+        private long commitNanos;
+        private boolean done;
+
+        Upload(String reused, Path temp) throws IOException {
+            this.reused = reused;
+            this.temp = temp;
+            this.file = temp == null ? null : writeBehind.open(temp);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (file != null) {
+                file.write(b, off, len);
+            }
+            digest.update(b, off, len);
+            size += len;
+        }
+
+        // Time spent waiting for the disk and on the final move, excluding hashing and the network.
+        public long getWriteNanos() {
+            return (file == null ? 0 : file.getWaitNanos()) + commitNanos;
+        }
+
+        // True if the client named a digest the store already had, so nothing was written.
+        public boolean isReused() {
+            return reused != null;
+        }
+
+        public Blob commit() throws IOException {
+            String actual = HexFormat.of().formatHex(digest.digest());
+            if (reused == null) {
+                // on failure done stays false, so discard() still removes the temp file
+                file.finish();
+                long start = System.nanoTime();
+                Blob blob = BlobStore.this.commit(temp, actual, size);
+                commitNanos += System.nanoTime() - start;
+                done = true;
+                return blob;
+            }
+            done = true;
+            if (!reused.equals(actual)) {
+                release(reused);
+                throw new IllegalArgumentException("Upload does not match the announced digest " + reused);
+            }
+            logger.info("Upload matched stored blob: " + actual + " | Nothing written");
+            return new Blob(actual, root.resolve(actual), size);
+        }
+
+        public void discard() {
+            if (done) {
+                return;
+            }
+            done = true;
+            if (reused != null) {
+                release(reused);
+            } else {
+                file.abort();
+                deleteQuietly(temp);
+            }
+        }
+    }
+}
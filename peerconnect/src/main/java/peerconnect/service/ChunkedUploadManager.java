@@ -0,0 +1,266 @@
+package peerconnect.service;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import peerconnect.utils.BufferPool;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32C;
+
+/**
+ * Multi-part uploads: a session preallocates the target file, parts are written into it with
+ * positional FileChannel writes (so they can arrive in any order and in parallel), and each part
+ * is checksummed with CRC32C as it is written. Clients resume by asking which parts arrived.
+ * Unknown sessions raise NoSuchElementException, bad input IllegalArgumentException and
+ * completing with missing parts IllegalStateException.
+ */
+public class ChunkedUploadManager {
+
+    private static final Logger logger = Logger.getLogger(ChunkedUploadManager.class.getName());
+
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    public static final int MIN_PART_SIZE = 64 * 1024;
+    public static final int MAX_PART_SIZE = 64 * 1024 * 1024;
+
+    // states of a part; an overwritten part already took its disk space but is missing until it checks out
+    private static final long MISSING = 0;
+    private static final long RECEIVED = 1;
+    private static final long OVERWRITTEN = 2;
+
+    private final String uploadDir;
+    private final long maxFileSize;
+    private final Cache<String, Session> sessions;
+    private final ScheduledExecutorService maintenance;
+
+    public ChunkedUploadManager(String uploadDir, long maxFileSize, long sessionTtlMinutes) {
+        this(uploadDir, maxFileSize, sessionTtlMinutes, TimeUnit.MINUTES);
+    }
+
+    public ChunkedUploadManager(String uploadDir, long maxFileSize, long sessionTtl, TimeUnit unit) {
+        this.uploadDir = uploadDir;
+        this.maxFileSize = maxFileSize;
+        this.sessions = CacheBuilder.newBuilder()
+                .expireAfterAccess(sessionTtl, unit)
+                .removalListener((RemovalListener<String, Session>) notification -> {
+                    if (notification.getCause() != RemovalCause.EXPLICIT) {
+                        logger.info("[TTL CLEANUP] Abandoned upload " + notification.getKey());
+                        notification.getValue().discard();
+                    }
+                }).build();
+
+        // Guava only expires entries during cache activity; sweep so abandoned files and their held
+        // space go without new uploads
+        this.maintenance = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "upload-maintenance");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long sweepMillis = Math.max(1, Math.min(unit.toMillis(sessionTtl), TimeUnit.SECONDS.toMillis(30)));
+        maintenance.scheduleWithFixedDelay(sessions::cleanUp, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        maintenance.shutdown();
+    }
+
+    public Session init(String fileName, long size, int partSize) throws IOException {
+        return init(fileName, size, partSize, null);
+    }
+
+    /**
+     * Starts a session; space, if not null, holds the disk space of the file, and the session
+     * gives it back as parts arrive and closes it when it ends.
+     */
+    public Session init(String fileName, long size, int partSize, UploadAdmission.Space space) throws IOException {
+        if (size < 0 || size > maxFileSize) {
+            throw new IllegalArgumentException("File size must be between 0 and " + maxFileSize + " bytes");
+        }
+        if (partSize < MIN_PART_SIZE || partSize > MAX_PART_SIZE) {
+            throw new IllegalArgumentException("Part size must be between " + MIN_PART_SIZE + " and " + MAX_PART_SIZE + " bytes");
+        }
+        if (fileName == null || fileName.trim().isEmpty()) {
+            fileName = "unnamed-file";
+        }
+        String uploadId = UUID.randomUUID().toString();
+        String uniqueFileName = uploadId + "_" + new File(fileName).getName();
+        Path target = Paths.get(uploadDir, uniqueFileName);
+        Path partial = Paths.get(uploadDir, uniqueFileName + ".part");
+
+        try (RandomAccessFile raf = new RandomAccessFile(partial.toFile(), "rw")) {
+            raf.setLength(size);
+        }
+        FileChannel channel = FileChannel.open(partial, StandardOpenOption.WRITE);
+        Session session = new Session(uploadId, fileName, target, partial, channel, size, partSize, space);
+        sessions.put(uploadId, session);
+        logger.info("Chunked upload started: " + uploadId + " | Size: " + size + " bytes | Parts: " + session.partCount);
+        return session;
+    }
+
+    public Session get(String uploadId) {
+        Session session = sessions.getIfPresent(uploadId);
+        if (session == null) {
+            throw new NoSuchElementException("Unknown upload: " + uploadId);
+        }
+        return session;
+    }
+
+    /**
+     * Streams one part from the request body into its slot of the target file and returns the
+     * part's CRC32C. When the client sends a checksum it must match, or the part stays missing.
+     */
+    public long writePart(String uploadId, int index, InputStream body, Long expectedChecksum) throws IOException {
+        Session session = get(uploadId);
+        if (index < 0 || index >= session.partCount) {
+            throw new IllegalArgumentException("Part index must be between 0 and " + (session.partCount - 1));
+        }
+        long position = (long) index * session.partSize;
+        long expectedLength = Math.min(session.partSize, session.size - position);
+
+        CRC32C crc = new CRC32C();
+        BufferPool pool = BufferPool.heap(COPY_BUFFER_SIZE);
+        ByteBuffer chunk = pool.acquire();
+        byte[] buffer = chunk.array();
+        long written = 0;
+        int bytesRead;
+        // the slot is about to change, so it no longer holds what its checksum vouches for
+        session.received.compareAndSet(index, RECEIVED, OVERWRITTEN);
+        try {
+            while ((bytesRead = body.read(buffer)) != -1) {
+                if (written + bytesRead > expectedLength) {
+                    throw new IllegalArgumentException("Part " + index + " is longer than " + expectedLength + " bytes");
+                }
+                crc.update(buffer, 0, bytesRead);
+                chunk.clear().limit(bytesRead);
+                while (chunk.hasRemaining()) {
+                    written += session.channel.write(chunk, position + written);
+                }
+            }
+        } finally {
+            pool.release(chunk);
+        }
+        if (written != expectedLength) {
+            throw new IllegalArgumentException("Part " + index + " has " + written + " bytes, expected " + expectedLength);
+        }
+        long checksum = crc.getValue();
+        if (expectedChecksum != null && expectedChecksum != checksum) {
+            throw new IllegalArgumentException("Checksum mismatch for part " + index);
+        }
+        session.checksums.set(index, checksum);
+        // a part sent again overwrites its own bytes and takes no more disk
+        if (session.received.getAndSet(index, RECEIVED) == MISSING && session.space != null) {
+            session.space.written(expectedLength);
+        }
+        return checksum;
+    }
+
+    // Closes the session and moves the assembled file to its final name.
+    public Session complete(String uploadId) throws IOException {
+        Session session = get(uploadId);
+        List<Integer> missing = session.missingParts();
+        if (!missing.isEmpty()) {
+            throw new IllegalStateException("Missing parts: " + missing);
+        }
+        if (!sessions.asMap().remove(uploadId, session)) {
+            throw new NoSuchElementException("Upload already completed or aborted: " + uploadId);
+        }
+        session.channel.force(false);
+        session.channel.close();
+        Files.move(session.partial, session.target, StandardCopyOption.ATOMIC_MOVE);
+        session.releaseSpace();
+        logger.info("Chunked upload completed: " + uploadId + " | Size: " + session.size + " bytes");
+        return session;
+    }
+
+    public void abort(String uploadId) {
+        Session session = get(uploadId);
+        if (sessions.asMap().remove(uploadId, session)) {
+            session.discard();
+        }
+    }
+
+    public static class Session {
+
+        public final String uploadId;
+        public final String fileName;
+        public final Path target;
+        public final long size;
+        public final int partSize;
+        public final int partCount;
+        private final Path partial;
+        private final FileChannel channel;
+        private final AtomicLongArray received;
+        private final AtomicLongArray checksums;
+        private final UploadAdmission.Space space;
+
+        Session(String uploadId, String fileName, Path target, Path partial, FileChannel channel, long size, int partSize,
+                UploadAdmission.Space space) {
+            this.uploadId = uploadId;
+            this.fileName = fileName;
+            this.target = target;
+            this.partial = partial;
+            this.channel = channel;
+            this.size = size;
+            this.partSize = partSize;
+            this.partCount = size == 0 ? 0 : (int) ((size + partSize - 1) / partSize);
+            this.received = new AtomicLongArray(partCount);
+            this.checksums = new AtomicLongArray(partCount);
+            this.space = space;
+        }
+
+        public boolean hasPart(int index) {
+            return received.get(index) == RECEIVED;
+        }
+
+        public long checksum(int index) {
+            return checksums.get(index);
+        }
+
+        public List<Integer> missingParts() {
+            List<Integer> missing = new ArrayList<>();
+            for (int i = 0; i < partCount; i++) {
+                if (!hasPart(i)) {
+                    missing.add(i);
+                }
+            }
+            return missing;
+        }
+
+        private void releaseSpace() {
+            if (space != null) {
+                space.close();
+            }
+        }
+
+        void discard() {
+            releaseSpace();
+            try {
+                channel.close();
+                Files.deleteIfExists(partial);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Error discarding upload " + uploadId + ": " + e.getMessage(), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package peerconnect.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Picks the transfer codec for a shared file. Known compressed formats are recognised from
+ * their magic bytes; anything else is test-compressed from a sample and only gzipped if that
+ * saves enough to be worth the CPU.
+ */
+public final class Compression {
+
+    public enum Codec {
+        IDENTITY,
+        GZIP;
+
+        // token used in the transfer protocol and the HTTP Content-Encoding header
+        public String token() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+
+        public static Codec fromToken(String token) {
+            return token == null ? IDENTITY : Codec.valueOf(token.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    static final int SAMPLE_SIZE = 64 * 1024;
+    // gzip is only used if the sample shrinks below this fraction of its size
+    private static final double MAX_RATIO = 0.9;
+    // small files are not worth a codec switch
+    private static final int MIN_SIZE = 1024;
+
+    private static final byte[][] COMPRESSED_MAGIC = {
+            {'P', 'K', 3, 4},                            // zip, docx, jar, apk
+            {0x1f, (byte) 0x8b},                         // gzip
+            {'B', 'Z', 'h'},                             // bzip2
+            {(byte) 0xfd, '7', 'z', 'X', 'Z', 0},        // xz
+            {0x28, (byte) 0xb5, 0x2f, (byte) 0xfd},      // zstd
+            {'7', 'z', (byte) 0xbc, (byte) 0xaf},        // 7z
+            {'R', 'a', 'r', '!'},                        // rar
+            {(byte) 0x89, 'P', 'N', 'G'},                // png
+            {(byte) 0xff, (byte) 0xd8, (byte) 0xff},     // jpeg
+            {'G', 'I', 'F', '8'},                        // gif
+            {'I', 'D', '3'},                             // mp3 with ID3 tag
+            {'O', 'g', 'g', 'S'},                        // ogg, opus
+            {'f', 'L', 'a', 'C'},                        // flac
+            {0x1a, 0x45, (byte) 0xdf, (byte) 0xa3},      // mkv, webm
+    };
+
+    private Compression() {
+    }
+
+    // Chooses the codec for a file from its first bytes.
+    public static Codec choose(String filePath, int level) throws IOException {
+        byte[] sample;
+        try (InputStream in = Files.newInputStream(Paths.get(filePath))) {
+            sample = in.readNBytes(SAMPLE_SIZE);
+        }
+        return choose(sample, sample.length, level);
+    }
+
+    public static Codec choose(byte[] sample, int length, int level) {
+        if (length < MIN_SIZE || isCompressedFormat(sample, length)) {
+            return Codec.IDENTITY;
+        }
+        return compressedSize(sample, length, level) < length * MAX_RATIO ? Codec.GZIP : Codec.IDENTITY;
+    }
+
+    // A gzip stream at the given Deflater level.
+    public static GZIPOutputStream gzip(OutputStream out, int bufferSize, int level) throws IOException {
+        return new GZIPOutputStream(out, bufferSize) {
+            {
+                def.setLevel(level);
+            }
+        };
+    }
+
+    static boolean isCompressedFormat(byte[] data, int length) {
+        for (byte[] magic : COMPRESSED_MAGIC) {
+            if (startsWith(data, length, 0, magic)) {
+                return true;
+            }
+        }
+        // mp4, mov, m4a: a box size followed by "ftyp"
+        if (startsWith(data, length, 4, new byte[]{'f', 't', 'y', 'p'})) {
+            return true;
+        }
+        // bare mp3 frame sync
+        return length > 1 && (data[0] & 0xff) == 0xff && (data[1] & 0xe0) == 0xe0;
+    }
+
+    static int compressedSize(byte[] data, int length, int level) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+            byte[] out = new byte[SAMPLE_SIZE];
+            int total = 0;
+            while (!deflater.finished()) {
+                total += deflater.deflate(out);
+            }
+            return total;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static boolean startsWith(byte[] data, int length, int offset, byte[] prefix) {
+        if (length < offset + prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -3,132 +3,1212 @@ package peerconnect.service;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.RemovalListener;
+import peerconnect.utils.ConfigUtils;
+import peerconnect.utils.IdAllocator;
+import peerconnect.utils.Metrics;
 import peerconnect.utils.PortUtils;
+import peerconnect.utils.ThreadUtils;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
 
 public class FileSharer {
 
     private static final Logger logger = Logger.getLogger(FileSharer.class.getName());
 
-    private final Cache<Integer, String> availableFiles;
-    private final ConcurrentMap<Integer, Boolean> activeDownloads;
+    public enum ServerMode {
+        // one TransferServer port multiplexes every share
+        SHARED,
+        // a dedicated ServerSocket per share, the original model
+        PER_PORT
+    }
+
+    // shares expire this long after their last download started
+    private static final long SHARE_TTL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private final Cache<Integer, Share> availableFiles;
+    // the same shares, for lookups that must not count as an access and so extend the TTL
+    private final ConcurrentMap<Integer, Share> shares = new ConcurrentHashMap<>();
+    // IDs of expired, exhausted or withdrawn shares, kept reserved for a while so late downloads get 410
+    private final Cache<Integer, Boolean> goneShares;
+    private final FileTransfer.Mode transferMode;
+    private final int streamBufferSize;
+    private final BandwidthLimiter bandwidth;
+    private final long mmapThreshold;
+    private final MappedFileRegistry mappedFiles;
+    private final SmallFileCache smallFiles;
+    private final ServerMode serverMode;
+    private final TransferServer transferServer;
+    private final ExecutorService workerExecutor;
+    private final Executor senderExecutor;
+    private final IdAllocator shareIds;
+    private final ConcurrentMap<Integer, ServerSocketChannel> portListeners;
+    private final ScheduledExecutorService maintenance;
+    private final int defaultMaxDownloads;
+    private final int defaultMaxConcurrent;
+    private final boolean compression;
+    private final int compressionLevel;
+    private final AtomicInteger activeTransfers = new AtomicInteger();
+    private final Metrics.Counter transfersCompleted;
+    private final Metrics.Counter transfersFailed;
+    private final Metrics.Counter bytesSent;
+    private final Metrics.Histogram transferSeconds;
+    private final Metrics.Histogram transferRate;
+    // null when shares are not persisted
+    private final ShareJournal journal;
+    // shares brought back from the journal keep their old deadline until downloaded again
+    private final ConcurrentMap<Integer, Long> restoredDeadlines = new ConcurrentHashMap<>();
+    private final NodeRegistry nodes;
 
     public FileSharer() {
-        activeDownloads = new ConcurrentHashMap<>();
+        this(new Metrics());
+    }
+
+    public FileSharer(Metrics metrics) {
+        this(metrics, null);
+    }
+
+    public FileSharer(Metrics metrics, ShareJournal journal) {
+        this(metrics, journal, NodeRegistry.fromConfig());
+    }
+
+    public FileSharer(Metrics metrics, ShareJournal journal, NodeRegistry nodes) {
+        this(ConfigUtils.getEnum("peerconnect.transfer.mode", FileTransfer.Mode.class, FileTransfer.Mode.ZERO_COPY),
+                ConfigUtils.getEnum("peerconnect.transfer.server", ServerMode.class, ServerMode.SHARED),
+                ConfigUtils.getInt("peerconnect.transfer.port", 9090), metrics, journal, nodes);
+    }
+
+    public FileSharer(FileTransfer.Mode transferMode, ServerMode serverMode, int transferPort) {
+        this(transferMode, serverMode, transferPort, new Metrics(), null);
+    }
+
+    /**
+     * Every change to the shares on offer is recorded in journal, if not null, and the sharer
+     * closes it on stop(). Call {@link #restore(BlobStore)} to bring back the shares it holds.
+     */
+    public FileSharer(FileTransfer.Mode transferMode, ServerMode serverMode, int transferPort, Metrics metrics,
+                      ShareJournal journal) {
+        this(transferMode, serverMode, transferPort, metrics, journal, NodeRegistry.fromConfig());
+    }
+
+    /**
+     * Shares get IDs from the local node's range, and downloads of other nodes' shares are pointed
+     * at their owners. Per-port shares are only reachable through their own node.
+     */
+    public FileSharer(FileTransfer.Mode transferMode, ServerMode serverMode, int transferPort, Metrics metrics,
+                      ShareJournal journal, NodeRegistry nodes) {
+        this.journal = journal;
+        this.nodes = nodes;
+        this.transferMode = transferMode;
+        this.serverMode = serverMode;
+        this.streamBufferSize = ConfigUtils.getInt("peerconnect.transfer.bufferSize", 64 * 1024);
+        // bytes per second, 0 for no cap
+        this.bandwidth = new BandwidthLimiter(
+                ConfigUtils.getLong("peerconnect.bandwidth.global", 0),
+                ConfigUtils.getLong("peerconnect.bandwidth.share", 0),
+                ConfigUtils.getLong("peerconnect.bandwidth.client", 0),
+                ConfigUtils.getLong("peerconnect.transfer.connectionRate", 0));
+        // files at least this large are sent from a shared memory mapping, 0 disables it
+        this.mmapThreshold = ConfigUtils.getLong("peerconnect.transfer.mmapThreshold", 64L * 1024 * 1024);
+        this.mappedFiles = new MappedFileRegistry();
+        this.smallFiles = SmallFileCache.fromConfig();
+        // per-port listeners park on the worker pool unbounded; running senders are capped by a
+        // fixed pool of platform threads, or by permits when each sender gets a virtual thread
+        ThreadUtils.ExecutionMode executionMode = ThreadUtils.getExecutionMode();
+        int maxSenders = ConfigUtils.getInt("peerconnect.transfer.maxConcurrent", 256);
+        this.workerExecutor = ThreadUtils.newExecutor(executionMode, "file-listener", 0);
+        this.senderExecutor = executionMode == ThreadUtils.ExecutionMode.PLATFORM
+                ? ThreadUtils.newBoundedExecutor("file-sender", maxSenders,
+                        ConfigUtils.getInt("peerconnect.transfer.maxQueued", 1024))
+                : ThreadUtils.bounded(workerExecutor, new Semaphore(maxSenders));
+        this.transferServer = serverMode == ServerMode.SHARED ? new TransferServer(transferPort,
+                // the server already calls this on a sender thread, which then sends the file itself
+                (channel, request) -> serve(channel, request, Runnable::run), senderExecutor) : null;
+        this.shareIds = serverMode == ServerMode.SHARED
+                ? new IdAllocator(nodes.idBase() + PortUtils.SHARE_ID_START, nodes.idBase() + PortUtils.SHARE_ID_END)
+                : new IdAllocator(PortUtils.DYNAMIC_STARTING_PORT, PortUtils.DYNAMIC_ENDING_PORT);
+        if (serverMode == ServerMode.PER_PORT && nodes.getLocalNode() != 0) {
+            logger.warning("Per-port shares carry no node ID; downloads must reach node " + nodes.getLocalNode() + " itself");
+        }
+        this.portListeners = new ConcurrentHashMap<>();
+        // 0 means no limit; uploads can override both per share
+        this.defaultMaxDownloads = ConfigUtils.getInt("peerconnect.share.maxDownloads", 0);
+        this.defaultMaxConcurrent = ConfigUtils.getInt("peerconnect.share.maxConcurrent", 0);
+        this.compression = ConfigUtils.getBoolean("peerconnect.transfer.compression", true);
+        this.compressionLevel = ConfigUtils.getInt("peerconnect.transfer.compressionLevel", Deflater.BEST_SPEED);
+        this.goneShares = CacheBuilder.newBuilder()
+                .expireAfterWrite(ConfigUtils.getLong("peerconnect.share.goneSeconds", 600), TimeUnit.SECONDS)
+                .removalListener((RemovalListener<Integer, Boolean>) notification -> shareIds.release(notification.getKey()))
+                .build();
         this.availableFiles = CacheBuilder.newBuilder()
-                .expireAfterAccess(10, TimeUnit.MINUTES)
-                .removalListener((RemovalListener<Integer, String>) notification -> {
-                    Integer port = notification.getKey();
-                    String filePath = notification.getValue();
+                .expireAfterAccess(SHARE_TTL_MILLIS, TimeUnit.MILLISECONDS)
+                .removalListener((RemovalListener<Integer, Share>) notification -> {
+                    Integer shareId = notification.getKey();
+                    Share share = notification.getValue();
 
-                    if (Boolean.TRUE.equals(activeDownloads.get(port))) {
-                        logger.info("[SKIPPED TTL] Port " + port + " is still downloading.");
-                        return;
+                    if (journal != null) {
+                        journal.removed(shareId);
                     }
-
-                    File file = new File(filePath);
-                    if (file.exists()) {
-                        boolean deleted = file.delete();
-                        logger.info("[TTL CLEANUP] File deleted (" + deleted + "): " + filePath);
+                    restoredDeadlines.remove(shareId);
+                    shares.remove(shareId, share);
+                    closeListener(shareId);
+                    bandwidth.forget(shareId);
+                    // the ID is released when its tombstone expires
+                    goneShares.asMap().putIfAbsent(shareId, Boolean.TRUE);
+                    if (share.files == null) {
+                        mappedFiles.retire(share.path);
+                        smallFiles.invalidate(share.path);
                     } else {
-                        logger.warning("[TTL CLEANUP] File not found to delete: " + filePath);
+                        share.files.forEach(file -> {
+                            mappedFiles.retire(file.path);
+                            smallFiles.invalidate(file.path);
+                        });
+                    }
+
+                    if (!share.retire()) {
+                        // the last sender to finish cleans up
+                        logger.info("[DEFERRED TTL] Share " + shareId + " is still downloading.");
+                        return;
                     }
+                    share.cleanup.run();
                 }).build();
+
+        // Guava only expires entries during cache activity; sweep so idle shares free their IDs on time
+        this.maintenance = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "share-maintenance");
+            thread.setDaemon(true);
+            return thread;
+        });
+        maintenance.scheduleWithFixedDelay(this::sweep, 30, 30, TimeUnit.SECONDS);
+        if (journal != null) {
+            maintenance.scheduleWithFixedDelay(journal::force, 1, 1, TimeUnit.SECONDS);
+        }
+
+        metrics.gauge("peerconnect_shares_active", "Shares currently offered", () -> availableFiles.size());
+        metrics.gauge("peerconnect_transfers_active", "File senders currently running", activeTransfers::get);
+        this.transfersCompleted = metrics.counter("peerconnect_transfers_completed_total", "File transfers sent in full");
+        this.transfersFailed = metrics.counter("peerconnect_transfers_failed_total", "File transfers that ended in an error");
+        this.bytesSent = metrics.counter("peerconnect_transfer_bytes_total", "File bytes sent by completed transfers");
+        this.transferSeconds = metrics.histogram("peerconnect_transfer_duration_seconds",
+                "Time to send one file or range", 1e-6);
+        this.transferRate = metrics.histogram("peerconnect_transfer_throughput_bytes_per_second",
+                "Throughput of each completed transfer", 1);
+        metrics.counter("peerconnect_small_file_cache_hits_total", "Downloads answered from the small file cache", "",
+                smallFiles::getHits);
+        metrics.counter("peerconnect_small_file_cache_misses_total", "Small files read into the cache", "",
+                smallFiles::getMisses);
+        metrics.gauge("peerconnect_small_file_cache_bytes", "Bytes held by the small file cache", smallFiles::getBytes);
+    }
+
+    public void start() throws IOException {
+        if (transferServer != null) {
+            transferServer.start();
+        }
+    }
+
+    public void stop() {
+        if (transferServer != null) {
+            transferServer.stop();
+        }
+        maintenance.shutdown();
+        workerExecutor.shutdown();
+        if (senderExecutor instanceof ExecutorService) {
+            ((ExecutorService) senderExecutor).shutdown();
+        }
+        portListeners.keySet().forEach(this::closeListener);
+        mappedFiles.retireAll();
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Error closing the share journal: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    private void sweep() {
+        availableFiles.cleanUp();
+        goneShares.cleanUp();
+        long now = System.currentTimeMillis();
+        restoredDeadlines.forEach((shareId, deadline) -> {
+            if (deadline <= now && restoredDeadlines.remove(shareId, deadline)) {
+                logger.info("[TTL] Restored share " + shareId + " expired");
+                availableFiles.asMap().remove(shareId);
+            }
+        });
+        if (journal != null) {
+            try {
+                journal.compact();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Could not compact the share journal: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Brings back the shares recorded in the journal under their old IDs, dropping those that
+     * expired or whose file is gone; blob shares take their reference from blobs. Returns the
+     * number of shares restored. Must run before start() and before any new share is offered.
+     */
+    public int restore(BlobStore blobs) {
+        if (journal == null) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        int restored = 0;
+        int dropped = 0;
+        for (ShareJournal.Entry entry : journal.entries()) {
+            Share share = entry.expiresAt > now ? restore(entry, blobs) : null;
+            if (share == null) {
+                if (entry.expiresAt <= now && entry.files == null && entry.digest == null) {
+                    deleteFile(entry.path);
+                }
+                if (entry.expiresAt <= now && shareIds.reserve(entry.id)) {
+                    goneShares.put(entry.id, Boolean.TRUE);
+                }
+                // an expired blob or multi-file share takes no references, so the purge after the
+                // replay frees its blobs unless a live share holds them
+                journal.removed(entry.id);
+                dropped++;
+                continue;
+            }
+            shares.put(entry.id, share);
+            availableFiles.put(entry.id, share);
+            restoredDeadlines.put(entry.id, entry.expiresAt);
+            restored++;
+        }
+        logger.info("Restored " + restored + " shares from the journal, dropped " + dropped);
+        return restored;
+    }
+
+    private Share restore(ShareJournal.Entry entry, BlobStore blobs) {
+        String path;
+        Runnable cleanup;
+        if (entry.files != null) {
+            path = null;
+            cleanup = restoreBlobs(entry.files, blobs);
+            if (cleanup == null) {
+                return null;
+            }
+        } else if (entry.digest != null) {
+            BlobStore.Blob blob = blobs.restore(entry.digest);
+            if (blob == null) {
+                return null;
+            }
+            path = blob.path.toString();
+            cleanup = blob::release;
+        } else if (new File(entry.path).isFile()) {
+            path = entry.path;
+            cleanup = () -> deleteFile(entry.path);
+        } else {
+            return null;
+        }
+
+        boolean reserved = shareIds.reserve(entry.id);
+        ServerSocketChannel listener = reserved && serverMode == ServerMode.PER_PORT ? bind(entry.id) : null;
+        if (!reserved || serverMode == ServerMode.PER_PORT && listener == null) {
+            logger.warning("Could not restore share " + entry.id + ": its ID is not available");
+            if (reserved) {
+                shareIds.release(entry.id);
+            }
+            cleanup.run();
+            return null;
+        }
+        if (listener != null) {
+            portListeners.put(entry.id, listener);
+            workerExecutor.execute(() -> startFileServer(entry.id, listener));
+        }
+        Share share = new Share(entry.id, path, entry.name, entry.digest, entry.maxDownloads, entry.maxConcurrent,
+                entry.codec, entry.files, cleanup);
+        share.started = entry.downloads;
+        return share;
+    }
+
+    // References to the blobs of a multi-file share, and the cleanup releasing them; null if one is gone.
+    private static Runnable restoreBlobs(List<SharedFile> files, BlobStore store) {
+        List<BlobStore.Blob> restored = new ArrayList<>(files.size());
+        for (SharedFile file : files) {
+            BlobStore.Blob blob = file.digest == null ? null : store.restore(file.digest);
+            if (blob == null) {
+                restored.forEach(BlobStore.Blob::release);
+                return null;
+            }
+            restored.add(blob);
+        }
+        return () -> restored.forEach(BlobStore.Blob::release);
+    }
+
+    public ServerMode getServerMode() {
+        return serverMode;
+    }
+
+    public BandwidthLimiter getBandwidth() {
+        return bandwidth;
+    }
+
+    public boolean isShared(int shareId) {
+        return peek(shareId) != null;
+    }
+
+    // Withdraws a share before it expires; running downloads finish first, as on expiry.
+    public boolean unshare(int shareId) {
+        return availableFiles.asMap().remove(shareId) != null;
+    }
+
+    // Overrides the bandwidth limit of one share; returns false if there is no such share.
+    public boolean setShareRate(int shareId, long rate) {
+        if (!isShared(shareId)) {
+            return false;
+        }
+        bandwidth.setShareRate(shareId, rate);
+        return true;
+    }
+
+    public int getAllocatedShares() {
+        return shareIds.getAllocated();
+    }
+
+    public int getShareCapacity() {
+        return shareIds.getCapacity();
+    }
+
+    public double getShareOccupancy() {
+        return shareIds.getOccupancy();
     }
 
     public int offerFile(String fileName) {
-        int MAX_ATTEMPTS = 1000;
-        int port;
+        return offerFile(fileName, defaultMaxDownloads, defaultMaxConcurrent);
+    }
+
+    /**
+     * Shares a file under a new ID. maxDownloads caps the number of downloads (requests starting at
+     * offset 0, so resumes and parallel ranges are free), maxConcurrent the transfers running at once.
+     * Either may be 0 for no limit.
+     */
+    public int offerFile(String fileName, int maxDownloads, int maxConcurrent) {
+        return offer(fileName, new File(fileName).getName(), null, () -> deleteFile(fileName), maxDownloads, maxConcurrent);
+    }
+
+    /**
+     * Shares a stored blob under its original name. The share owns the blob's reference and
+     * releases it when the share is gone, instead of deleting the file.
+     */
+    public int offerBlob(BlobStore.Blob blob, String name, int maxDownloads, int maxConcurrent) {
+        return offer(blob.path.toString(), name, blob.digest, blob::release, maxDownloads, maxConcurrent);
+    }
+
+    public int offerBlob(BlobStore.Blob blob, String name) {
+        return offerBlob(blob, name, defaultMaxDownloads, defaultMaxConcurrent);
+    }
+
+    /**
+     * Shares several stored blobs under one ID, downloaded together as a ZIP named name or one
+     * by one. names holds the name of each blob inside the archive; repeated names get a
+     * numbered suffix. The share owns the blobs' references.
+     */
+    public int offerBlobs(List<BlobStore.Blob> blobs, List<String> names, String name, int maxDownloads, int maxConcurrent) {
+        List<SharedFile> files = new ArrayList<>(blobs.size());
+        Set<String> taken = new HashSet<>();
+        for (int i = 0; i < blobs.size(); i++) {
+            BlobStore.Blob blob = blobs.get(i);
+            String path = blob.path.toString();
+            files.add(new SharedFile(uniqueName(names.get(i), taken), path, blob.digest, blob.size, chooseCodec(path)));
+        }
+        Runnable cleanup = () -> blobs.forEach(BlobStore.Blob::release);
+        return offer(null, name, null, files, cleanup, maxDownloads, maxConcurrent);
+    }
+
+    public int offerBlobs(List<BlobStore.Blob> blobs, List<String> names, String name) {
+        return offerBlobs(blobs, names, name, defaultMaxDownloads, defaultMaxConcurrent);
+    }
+
+    // "a.txt", then "a (1).txt", "a (2).txt" for the same name again.
+    private static String uniqueName(String name, Set<String> taken) {
+        String unique = name;
+        int dot = name.lastIndexOf('.');
+        int slash = name.lastIndexOf('/');
+        String stem = dot > slash + 1 ? name.substring(0, dot) : name;
+        String extension = dot > slash + 1 ? name.substring(dot) : "";
+        for (int i = 1; !taken.add(unique); i++) {
+            unique = stem + " (" + i + ")" + extension;
+        }
+        return unique;
+    }
+
+    private int offer(String fileName, String name, String digest, Runnable cleanup, int maxDownloads, int maxConcurrent) {
+        return offer(fileName, name, digest, null, cleanup, maxDownloads, maxConcurrent);
+    }
+
+    private int offer(String fileName, String name, String digest, List<SharedFile> files, Runnable cleanup,
+                      int maxDownloads, int maxConcurrent) {
+        int MAX_BIND_ATTEMPTS = 16;
+        // a ZIP is never gzipped again; its entries are compressed one by one instead
+        Compression.Codec codec = files == null ? chooseCodec(fileName) : Compression.Codec.IDENTITY;
+
+        for (int i = 0; i < MAX_BIND_ATTEMPTS; i++) {
+            int shareId = shareIds.allocate();
+            if (shareId == -1) {
+                throw new RuntimeException("No free share IDs, all " + shareIds.getCapacity() + " are in use");
+            }
+            Share share = new Share(shareId, fileName, name, digest, maxDownloads, maxConcurrent, codec, files, cleanup);
+            if (serverMode == ServerMode.SHARED) {
+                record(share);
+                shares.put(shareId, share);
+                availableFiles.put(shareId, share);
+                return shareId;
+            }
 
-        for (int i = 0; i < MAX_ATTEMPTS; i++) {
-            port = PortUtils.getPort();
-            if (availableFiles.getIfPresent(port) == null) {
-                availableFiles.put(port, fileName);
-                return port;
+            // the bitmap only knows our own ports, so bind now to find out whether the OS agrees
+            ServerSocketChannel listener = bind(shareId);
+            if (listener == null) {
+                shareIds.release(shareId);
+                continue;
             }
+            portListeners.put(shareId, listener);
+            record(share);
+            shares.put(shareId, share);
+            availableFiles.put(shareId, share);
+            workerExecutor.execute(() -> startFileServer(shareId, listener));
+            return shareId;
         }
-        throw new RuntimeException("Could not find an available port");
+        throw new RuntimeException("Could not bind a free port after " + MAX_BIND_ATTEMPTS + " attempts");
     }
 
-    public void startFileServer(int port) {
-        String filePath = availableFiles.getIfPresent(port);
+    // Journals a new share before it is visible, so its removal is always recorded after it.
+    private void record(Share share) {
+        if (journal != null) {
+            journal.offered(new ShareJournal.Entry(share.id, share.path, share.name, share.digest,
+                    share.size(), share.maxDownloads, share.maxConcurrent, share.codec, share.files,
+                    System.currentTimeMillis() + SHARE_TTL_MILLIS, 0));
+        }
+    }
 
-        if (filePath == null) {
-            logger.warning("No file associated with the given port: " + port);
-            return;
+    private Compression.Codec chooseCodec(String filePath) {
+        if (!compression) {
+            return Compression.Codec.IDENTITY;
+        }
+        try {
+            return Compression.choose(filePath, compressionLevel);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not sniff " + filePath + ", sending it uncompressed: " + e.getMessage(), e);
+            return Compression.Codec.IDENTITY;
+        }
+    }
+
+    /**
+     * Where a downloader should connect for the given share ID: this node's transfer server, or
+     * that of the node owning the share. Null if no known server can hold it.
+     */
+    public InetSocketAddress transferAddress(int shareId) {
+        if (shareId <= PortUtils.DYNAMIC_ENDING_PORT) {
+            // a per-port share is its own port; any other ID this low is no share, and must not
+            // turn a download into a connection to whatever else listens on this host
+            return serverMode == ServerMode.PER_PORT && shareId >= PortUtils.DYNAMIC_STARTING_PORT
+                    ? new InetSocketAddress("localhost", shareId) : null;
+        }
+        if (!nodes.isLocal(shareId)) {
+            return nodes.transferAddress(NodeRegistry.nodeOf(shareId));
+        }
+        if (shareId >= nodes.idBase() + PortUtils.SHARE_ID_START && transferServer != null) {
+            return new InetSocketAddress("localhost", transferServer.getPort());
+        }
+        return null;
+    }
+
+    // Port of the shared transfer server, for peers to reach this node; -1 in per-port mode.
+    public int getTransferPort() {
+        return transferServer == null ? -1 : transferServer.getPort();
+    }
+
+    private static ServerSocketChannel bind(int port) {
+        try {
+            ServerSocketChannel channel = ServerSocketChannel.open();
+            try {
+                channel.bind(new InetSocketAddress(port));
+                return channel;
+            } catch (IOException e) {
+                channel.close();
+                logger.fine("Port " + port + " is taken outside PeerConnect: " + e.getMessage());
+                return null;
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not open a server channel: " + e.getMessage(), e);
+            return null;
+        }
+    }
+
+    private void closeListener(int port) {
+        ServerSocketChannel listener = portListeners.remove(port);
+        if (listener != null) {
+            try {
+                listener.close();
+            } catch (IOException e) {
+                logger.log(Level.FINE, "Error closing listener on port " + port + ": " + e.getMessage(), e);
+            }
         }
+    }
 
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
-            logger.info("Serving file: " + filePath + " on port: " + port);
-            Socket clientSocket = serverSocket.accept();
-            logger.info("Client connected from: " + clientSocket.getInetAddress());
-            activeDownloads.put(port, true);
-            new Thread(new FileSenderHandler(clientSocket, filePath, port, activeDownloads)).start();
+    // Accepts downloads until the share expires and closeListener closes the port.
+    private void startFileServer(int port, ServerSocketChannel listener) {
+        try (ServerSocketChannel serverChannel = listener) {
+            logger.info("Serving share on port: " + port + " (" + transferMode + ")");
+            while (serverChannel.isOpen()) {
+                SocketChannel clientChannel = serverChannel.accept();
+                logger.info("Client connected from: " + clientChannel.getRemoteAddress());
+                try {
+                    TransferProtocol.Request request = TransferProtocol.readRequest(clientChannel);
+                    if (request == null || request.shareId != port) {
+                        reject(clientChannel, request, TransferProtocol.ERROR_BAD_REQUEST);
+                        continue;
+                    }
+                    serve(clientChannel, request, senderExecutor);
+                } catch (IOException ex) {
+                    logger.log(Level.WARNING, "Error reading request on port " + port + ": " + ex.getMessage(), ex);
+                    clientChannel.close();
+                }
+            }
+        } catch (AsynchronousCloseException ex) {
+            logger.fine("Listener on port " + port + " closed");
         } catch (IOException ex) {
             logger.log(Level.SEVERE, "Error starting file server on port " + port + ": " + ex.getMessage(), ex);
         }
     }
 
+    // Answers a parsed request, starting its sender on senders.
+    private void serve(SocketChannel clientChannel, TransferProtocol.Request request, Executor senders) {
+        int shareId = request.shareId;
+        Share share = availableFiles.getIfPresent(shareId);
+
+        if (share == null) {
+            if (goneShares.asMap().containsKey(shareId)) {
+                logger.info("Refused download of share " + shareId + ": it is gone");
+                reject(clientChannel, request, TransferProtocol.ERROR_GONE);
+                return;
+            }
+            logger.warning("No file associated with share: " + shareId);
+            reject(clientChannel, request, TransferProtocol.ERROR_NOT_FOUND);
+            return;
+        }
+        // a single file is member 0 of its share
+        int members = share.files == null ? 1 : share.files.size();
+        if (request.member >= members || share.files == null && request.member > 0) {
+            logger.warning("Share " + shareId + " has no file " + request.member);
+            reject(clientChannel, request, TransferProtocol.ERROR_NOT_FOUND);
+            return;
+        }
+        String refused = share.tryStart(request.offset == 0);
+        if (refused != null) {
+            logger.info("Refused download of share " + shareId + ": " + refused);
+            reject(clientChannel, request, refused);
+            return;
+        }
+
+        FileTransfer.Throttle throttle = begin(share);
+        Completion onFinish = (sent, nanos, succeeded) -> finish(share, sent, nanos, succeeded);
+        if (share.files != null && request.member < 0) {
+            execute(new ZipSenderHandler(clientChannel, share.files, share.name, request, onFinish,
+                    streamBufferSize, throttle, compressionLevel), senders, share, clientChannel, request, null);
+            return;
+        }
+
+        // one file of a multi-file share is sent like a share of its own
+        SharedFile file = share.files != null ? share.files.get(request.member) : null;
+        String filePath = file != null ? file.path : share.path;
+        Compression.Codec codec = file != null ? file.codec : share.codec;
+        // compressed bodies have no byte offsets, so ranges are always sent raw
+        Compression.Codec encoding = !request.isPartial() && request.accept == codec
+                ? codec : Compression.Codec.IDENTITY;
+        MappedFileRegistry.Mapping mapping = encoding == Compression.Codec.IDENTITY ? mapFor(shareId, filePath) : null;
+        // the digest covers the whole raw file, so it only travels with full, unencoded responses
+        String digest = !request.isPartial() && encoding == Compression.Codec.IDENTITY
+                ? (file != null ? file.digest : share.digest) : null;
+        execute(new FileSenderHandler(clientChannel, filePath, file != null ? file.name : share.name,
+                digest, request, onFinish, transferMode, streamBufferSize, throttle, mapping, mappedFiles, encoding,
+                compressionLevel), senders, share, clientChannel, request, mapping);
+    }
+
+    // Hands a sender to the pool; when every sender is taken and the queue is full, the request
+    // is answered busy and the download it was admitted as is taken back.
+    private void execute(Runnable sender, Executor senders, Share share, SocketChannel clientChannel,
+                         TransferProtocol.Request request, MappedFileRegistry.Mapping mapping) {
+        try {
+            senders.execute(sender);
+        } catch (RejectedExecutionException e) {
+            logger.warning("No sender free for share " + share.id + ", refusing the download");
+            if (mapping != null) {
+                mappedFiles.release(mapping);
+            }
+            share.withdraw(request.offset == 0);
+            // begin() journaled the download as started; a restart must not count it
+            touched(share);
+            finish(share, -1, 0, false);
+            reject(clientChannel, request, TransferProtocol.ERROR_BUSY);
+        }
+    }
+
+    /**
+     * Starts a download of a small file of a local share from memory, so the API server can
+     * answer it without a transfer connection. Null if the request has to go to the transfer
+     * server: the share is elsewhere or unknown, the file is too large, has no digest or could
+     * not be cached, or the whole of a multi-file share is asked for. Otherwise the download is
+     * admitted and counted as one the transfer server would send, and must be finished.
+     */
+    public CachedDownload serveCached(TransferProtocol.Request request) {
+        Share share = availableFiles.getIfPresent(request.shareId);
+        if (share == null) {
+            return null;
+        }
+        SharedFile file = null;
+        if (share.files != null) {
+            if (request.member < 0 || request.member >= share.files.size()) {
+                return null;
+            }
+            file = share.files.get(request.member);
+        } else if (request.member > 0) {
+            return null;
+        }
+        String path = file != null ? file.path : share.path;
+        String digest = file != null ? file.digest : share.digest;
+        Compression.Codec codec = file != null ? file.codec : share.codec;
+        if (digest == null || !smallFiles.accepts(file != null ? file.size : new File(path).length())) {
+            return null;
+        }
+        SmallFileCache.Content content;
+        try {
+            content = smallFiles.get(path, digest, codec, compressionLevel);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not cache " + path + ", sending it from disk: " + e.getMessage(), e);
+            return null;
+        }
+
+        String refused = share.tryStart(request.offset == 0);
+        if (refused != null) {
+            logger.info("Refused download of share " + share.id + ": " + refused);
+            return new CachedDownload(TransferProtocol.Response.error(refused), null, null);
+        }
+        FileTransfer.Throttle throttle = begin(share);
+        long start = System.nanoTime();
+        long fileSize = content.data.length;
+        // the same range rules as FileSenderHandler
+        long offset = request.offset < 0 ? Math.max(0, fileSize + request.offset) : request.offset;
+        long length = request.length < 0 ? fileSize - offset : Math.min(request.length, fileSize - offset);
+        if (request.isPartial() && offset >= fileSize) {
+            finish(share, -1, 0, false);
+            return new CachedDownload(TransferProtocol.Response.error(TransferProtocol.ERROR_RANGE), null, null);
+        }
+        Compression.Codec encoding = !request.isPartial() && request.accept == codec && content.gzipped != null
+                ? codec : Compression.Codec.IDENTITY;
+        // at most smallFileSize bytes, so the pacing is taken in one go
+        throttle.acquire((int) length);
+        TransferProtocol.Response response = new TransferProtocol.Response(null,
+                file != null ? file.name : share.name, fileSize, offset, length, encoding,
+                !request.isPartial() && encoding == Compression.Codec.IDENTITY ? digest : null);
+        InputStream body = encoding == Compression.Codec.GZIP
+                ? new ByteArrayInputStream(content.gzipped)
+                : new ByteArrayInputStream(content.data, (int) offset, (int) length);
+        return new CachedDownload(response, body,
+                succeeded -> finish(share, length, System.nanoTime() - start, succeeded));
+    }
+
+    // Journals the share's new deadline and the downloads it has started so far.
+    private void touched(Share share) {
+        if (journal != null) {
+            journal.touched(share.id, System.currentTimeMillis() + SHARE_TTL_MILLIS, share.getStarted());
+        }
+    }
+
+    // Accounts for a sender the share admitted and returns the throttle pacing it.
+    private FileTransfer.Throttle begin(Share share) {
+        touched(share);
+        if (!restoredDeadlines.isEmpty()) {
+            // from now on the cache's own expiry applies
+            restoredDeadlines.remove(share.id);
+        }
+
+        activeTransfers.incrementAndGet();
+        // always paced, so limits set while the transfer runs still apply to it; the same hook
+        // keeps the share's live byte count
+        FileTransfer.Throttle limit = bandwidth.forTransfer(share.id);
+        return bytes -> {
+            limit.acquire(bytes);
+            share.bytesSent.add(bytes);
+        };
+    }
+
+    private void finish(Share share, long sent, long nanos, boolean succeeded) {
+        activeTransfers.decrementAndGet();
+        // a refused range sent nothing and is not counted as a transfer
+        if (sent >= 0) {
+            long rate = nanos > 0 ? (long) (sent * 1e9 / nanos) : 0;
+            if (succeeded) {
+                transfersCompleted.increment();
+                bytesSent.add(sent);
+                transferSeconds.record(nanos / 1000);
+                transferRate.record(rate);
+            } else {
+                transfersFailed.increment();
+            }
+            share.recordTransfer(succeeded, rate);
+        }
+
+        Share.Outcome outcome = share.finish();
+        if (outcome == Share.Outcome.EXHAUSTED) {
+            logger.info("Share " + share.id + " reached its limit of " + share.maxDownloads + " downloads");
+            // tombstoned first, so no request in between finds neither the share nor its tombstone
+            goneShares.asMap().putIfAbsent(share.id, Boolean.TRUE);
+            // fires the removal listener, which deletes the file now that nothing is sending it
+            availableFiles.asMap().remove(share.id, share);
+        } else if (outcome == Share.Outcome.DELETE) {
+            share.cleanup.run();
+        }
+    }
+
+    private static void deleteFile(String filePath) {
+        File file = new File(filePath);
+        if (file.exists()) {
+            boolean deleted = file.delete();
+            logger.info("[TTL CLEANUP] File deleted (" + deleted + "): " + filePath);
+        } else {
+            logger.warning("[TTL CLEANUP] File not found to delete: " + filePath);
+        }
+    }
+
+    // Shared mapping for a large file, or null to read it through a channel.
+    private MappedFileRegistry.Mapping mapFor(int shareId, String filePath) {
+        if (mmapThreshold <= 0 || new File(filePath).length() < mmapThreshold) {
+            return null;
+        }
+        try {
+            MappedFileRegistry.Mapping mapping = mappedFiles.acquire(filePath);
+            if (!availableFiles.asMap().containsKey(shareId)) {
+                // expired while we mapped it; let the last release unmap it
+                mappedFiles.retire(filePath);
+            }
+            return mapping;
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not map " + filePath + ", sending from the channel: " + e.getMessage(), e);
+            return null;
+        }
+    }
+
+    /**
+     * The files of a share, in the order they were uploaded, for listing and fetching them one
+     * by one; a single-file share lists its file. Null if there is no such share.
+     */
+    public List<SharedFile> files(int shareId) {
+        Share share = peek(shareId);
+        if (share == null) {
+            return null;
+        }
+        if (share.files != null) {
+            return share.files;
+        }
+        return List.of(new SharedFile(share.name, share.path, share.digest, new File(share.path).length(), share.codec));
+    }
+
+    // Counters of one share for /stats, or null if there is no such share.
+    public ShareStats stats(int shareId) {
+        Share share = peek(shareId);
+        return share == null ? null : share.stats();
+    }
+
+    // Finds a share without touching it: only downloads keep a share alive, not listings or stats.
+    private Share peek(int shareId) {
+        // unlike get, containsKey leaves the access time alone, and it never sees an expired entry
+        return availableFiles.asMap().containsKey(shareId) ? shares.get(shareId) : null;
+    }
+
+    private static void reject(SocketChannel clientChannel, TransferProtocol.Request request, String reason) {
+        try (clientChannel) {
+            FileTransfer.writeFully(clientChannel, ByteBuffer.wrap(TransferProtocol.error(request, reason)));
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Error rejecting transfer request: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * A shared file and its download accounting. Its cleanup (deleting the file or releasing the
+     * blob) may only run once the share is retired (expired or exhausted) and no sender is still
+     * reading it.
+     */
+    static final class Share {
+
+        enum Outcome { NONE, EXHAUSTED, DELETE }
+
+        final int id;
+        final String path;
+        final String name;
+        // hex SHA-256 of the content, computed while it was uploaded; null if unknown
+        final String digest;
+        final int maxDownloads;
+        final int maxConcurrent;
+        final Compression.Codec codec;
+        // set for a share of several files, whose path is null
+        final List<SharedFile> files;
+        final Runnable cleanup;
+        final long created = System.currentTimeMillis();
+        // bytes handed to the socket, updated while transfers run
+        final LongAdder bytesSent = new LongAdder();
+        private int active;
+        private int started;
+        private boolean retired;
+        private int completed;
+        private int failed;
+        private long lastThroughput;
+
+        Share(int id, String path, int maxDownloads, int maxConcurrent) {
+            this(id, path, new File(path).getName(), null, maxDownloads, maxConcurrent, Compression.Codec.IDENTITY, () -> { });
+        }
+
+        Share(int id, String path, String name, String digest, int maxDownloads, int maxConcurrent,
+              Compression.Codec codec, Runnable cleanup) {
+            this(id, path, name, digest, maxDownloads, maxConcurrent, codec, null, cleanup);
+        }
+
+        Share(int id, String path, String name, String digest, int maxDownloads, int maxConcurrent,
+              Compression.Codec codec, List<SharedFile> files, Runnable cleanup) {
+            this.id = id;
+            this.path = path;
+            this.name = name;
+            this.digest = digest;
+            this.maxDownloads = maxDownloads;
+            this.maxConcurrent = maxConcurrent;
+            this.codec = codec;
+            this.files = files;
+            this.cleanup = cleanup;
+        }
+
+        // Registers a sender; returns the protocol error to answer with, or null if it may start.
+        synchronized String tryStart(boolean newDownload) {
+            if (retired) {
+                return TransferProtocol.ERROR_GONE;
+            }
+            if (newDownload && maxDownloads > 0 && started >= maxDownloads) {
+                return TransferProtocol.ERROR_GONE;
+            }
+            if (maxConcurrent > 0 && active >= maxConcurrent) {
+                return TransferProtocol.ERROR_BUSY;
+            }
+            if (newDownload) {
+                started++;
+            }
+            active++;
+            return null;
+        }
+
+        // Takes back a download tryStart admitted but that could not start, before finish().
+        synchronized void withdraw(boolean newDownload) {
+            if (newDownload) {
+                started--;
+            }
+        }
+
+        synchronized Outcome finish() {
+            active--;
+            if (active > 0) {
+                return Outcome.NONE;
+            }
+            if (retired) {
+                return Outcome.DELETE;
+            }
+            return maxDownloads > 0 && started >= maxDownloads ? Outcome.EXHAUSTED : Outcome.NONE;
+        }
+
+        // Returns true if nothing is sending the file, so it can be deleted right away.
+        synchronized boolean retire() {
+            retired = true;
+            return active == 0;
+        }
+
+        synchronized void recordTransfer(boolean succeeded, long bytesPerSecond) {
+            if (succeeded) {
+                completed++;
+                lastThroughput = bytesPerSecond;
+            } else {
+                failed++;
+            }
+        }
+
+        synchronized ShareStats stats() {
+            return new ShareStats(id, name, size(), created, started, active, completed, failed,
+                    bytesSent.sum(), lastThroughput);
+        }
+
+        // Bytes of content: the file, or all files of a multi-file share.
+        long size() {
+            if (files == null) {
+                return new File(path).length();
+            }
+            long total = 0;
+            for (SharedFile file : files) {
+                total += file.size;
+            }
+            return total;
+        }
+
+        synchronized int getActive() {
+            return active;
+        }
+
+        synchronized int getStarted() {
+            return started;
+        }
+    }
+
+    /**
+     * A point-in-time view of one share's transfers.
+     */
+    public static final class ShareStats {
+
+        public final int id;
+        public final String name;
+        public final long size;
+        public final long createdMillis;
+        public final int downloads;
+        public final int active;
+        public final int completed;
+        public final int failed;
+        public final long bytesSent;
+        public final long lastThroughput;
+
+        ShareStats(int id, String name, long size, long createdMillis, int downloads, int active, int completed,
+                   int failed, long bytesSent, long lastThroughput) {
+            this.id = id;
+            this.name = name;
+            this.size = size;
+            this.createdMillis = createdMillis;
+            this.downloads = downloads;
+            this.active = active;
+            this.completed = completed;
+            this.failed = failed;
+            this.bytesSent = bytesSent;
+            this.lastThroughput = lastThroughput;
+        }
+    }
+
+    /**
+     * A download answered from the small file cache: the response the transfer server would
+     * have sent and its body. Refused downloads have an error and no body.
+     */
+    public static final class CachedDownload {
+
+        public final TransferProtocol.Response response;
+        public final InputStream body;
+        private final Consumer<Boolean> onFinish;
+
+        CachedDownload(TransferProtocol.Response response, InputStream body, Consumer<Boolean> onFinish) {
+            this.response = response;
+            this.body = body;
+            this.onFinish = onFinish;
+        }
+
+        // Ends an admitted download, whether or not the body reached the client; once only.
+        public void finish(boolean succeeded) {
+            if (onFinish != null) {
+                onFinish.accept(succeeded);
+            }
+        }
+    }
+
+    // Told how a sender ended: bytes sent (-1 if the request was refused), time taken and
+    // whether the transfer completed.
+    private interface Completion {
+        void done(long sent, long nanos, boolean succeeded);
+    }
+
     private static class FileSenderHandler implements Runnable {
 
-        private final Socket clientSocket;
+        private final SocketChannel clientChannel;
         private final String filePath;
-        private final int port;
-        private final ConcurrentMap<Integer, Boolean> activeDownloads;
+        private final String fileName;
+        private final String digest;
+        private final int shareId;
+        private final TransferProtocol.Request request;
+        private final Completion onFinish;
+        private final FileTransfer.Mode transferMode;
+        private final int streamBufferSize;
+        private final FileTransfer.Throttle throttle;
+        private final MappedFileRegistry.Mapping mapping;
+        private final MappedFileRegistry mappedFiles;
+        private final Compression.Codec encoding;
+        private final int compressionLevel;
 
-        public FileSenderHandler(Socket clientSocket, String filePath, int port, ConcurrentMap<Integer, Boolean> activeDownloads) {
-            this.clientSocket = clientSocket;
+        public FileSenderHandler(SocketChannel clientChannel, String filePath, String fileName, String digest,
+                                 TransferProtocol.Request request,
+                                 Completion onFinish, FileTransfer.Mode transferMode,
+                                 int streamBufferSize, FileTransfer.Throttle throttle, MappedFileRegistry.Mapping mapping,
+                                 MappedFileRegistry mappedFiles, Compression.Codec encoding, int compressionLevel) {
+            this.clientChannel = clientChannel;
             this.filePath = filePath;
-            this.port = port;
-            this.activeDownloads = activeDownloads;
+            this.fileName = fileName;
+            this.digest = digest;
+            this.shareId = request.shareId;
+            this.request = request;
+            this.onFinish = onFinish;
+            this.transferMode = transferMode;
+            this.streamBufferSize = streamBufferSize;
+            this.throttle = throttle;
+            this.mapping = mapping;
+            this.mappedFiles = mappedFiles;
+            this.encoding = encoding;
+            this.compressionLevel = compressionLevel;
         }
 
         @Override
         public void run() {
-            long start = System.currentTimeMillis();
+            long start = System.nanoTime();
             File file = new File(filePath);
-            long fileSize = file.length();
+            long fileSize = mapping != null ? mapping.size : file.length();
+            long sent = 0;
+            boolean succeeded = false;
 
-            try (FileInputStream fis = new FileInputStream(file);
-                 OutputStream oss = clientSocket.getOutputStream()) {
+            try {
+                String filename = fileName;
 
-                String filename = file.getName();
-                String header = "Filename: " + filename + "\n";
-                oss.write(header.getBytes());
+                // a negative offset asks for the last -offset bytes, a negative length for the rest of the file
+                long offset = request.offset < 0 ? Math.max(0, fileSize + request.offset) : request.offset;
+                long length = request.length < 0 ? fileSize - offset : Math.min(request.length, fileSize - offset);
+                if (request.isPartial() && offset >= fileSize) {
+                    FileTransfer.writeFully(clientChannel, ByteBuffer.wrap(TransferProtocol.error(request, TransferProtocol.ERROR_RANGE)));
+                    sent = -1;
+                    return;
+                }
 
-                byte[] buffer = new byte[4096];
-                int bytesRead;
+                FileTransfer.writeFully(clientChannel,
+                        ByteBuffer.wrap(TransferProtocol.fileHeader(request, filename, fileSize, offset, length, encoding, digest)));
 
-                while ((bytesRead = fis.read(buffer)) != -1) {
-                    oss.write(buffer, 0, bytesRead);
+                if (encoding == Compression.Codec.GZIP) {
+                    // closing the gzip stream writes the trailer and closes the connection
+                    try (FileInputStream fis = new FileInputStream(file);
+                         GZIPOutputStream gzip = Compression.gzip(Channels.newOutputStream(clientChannel),
+                                 streamBufferSize, compressionLevel)) {
+                        sent = FileTransfer.streamCopy(fis, gzip, streamBufferSize, length, throttle);
+                    }
+                } else if (mapping != null) {
+                    sent = FileTransfer.transferMapped(mapping, offset, length, clientChannel, throttle);
+                } else if (transferMode == FileTransfer.Mode.ZERO_COPY) {
+                    try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                        sent = FileTransfer.transferTo(fileChannel, offset, length, clientChannel, throttle);
+                    }
+                } else {
+                    try (FileInputStream fis = new FileInputStream(file)) {
+                        fis.getChannel().position(offset);
+                        OutputStream oss = clientChannel.socket().getOutputStream();
+                        sent = FileTransfer.streamCopy(fis, oss, streamBufferSize, length, throttle);
+                        oss.flush();
+                    }
                 }
-                oss.flush();
+                succeeded = true;
 
-                long end = System.currentTimeMillis();
-                logger.info("File sent successfully: " + filename +
+                // timings go to the metrics; the line itself is only built when asked for
+                logger.fine(() -> "File sent successfully: " + filename +
                         " | Size: " + fileSize + " bytes" +
-                        " | Port: " + port +
-                        " | Time: " + (end - start) + " ms");
+                        " | Range: " + offset + "+" + length +
+                        " | Share: " + shareId +
+                        " | Mode: " + (mapping != null ? "MAPPED" : transferMode) +
+                        " | Encoding: " + encoding.token());
 
             } catch (IOException e) {
-                logger.log(Level.SEVERE, "Error sending file on port " + port + ": " + e.getMessage(), e);
+                logger.log(Level.SEVERE, "Error sending file for share " + shareId + ": " + e.getMessage(), e);
+            } finally {
+                if (mapping != null) {
+                    mappedFiles.release(mapping);
+                }
+                onFinish.done(sent, System.nanoTime() - start, succeeded);
+                try {
+                    clientChannel.close();
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Error closing client socket for share " + shareId + ": " + e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    // Sends every file of a share as one ZIP assembled on the fly. Ranges are ignored: the
+    // archive's bytes are not known before it is written, so it always goes out whole.
+    private static class ZipSenderHandler implements Runnable {
+
+        private final SocketChannel clientChannel;
+        private final List<SharedFile> files;
+        private final String archiveName;
+        private final TransferProtocol.Request request;
+        private final Completion onFinish;
+        private final int streamBufferSize;
+        private final FileTransfer.Throttle throttle;
+        private final int compressionLevel;
+
+        ZipSenderHandler(SocketChannel clientChannel, List<SharedFile> files, String archiveName,
+                         TransferProtocol.Request request, Completion onFinish, int streamBufferSize,
+                         FileTransfer.Throttle throttle, int compressionLevel) {
+            this.clientChannel = clientChannel;
+            this.files = files;
+            this.archiveName = archiveName;
+            this.request = request;
+            this.onFinish = onFinish;
+            this.streamBufferSize = streamBufferSize;
+            this.throttle = throttle;
+            this.compressionLevel = compressionLevel;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            long sent = 0;
+            boolean succeeded = false;
+            try {
+                FileTransfer.writeFully(clientChannel, ByteBuffer.wrap(TransferProtocol.fileHeader(request, archiveName,
+                        -1, 0, -1, Compression.Codec.IDENTITY, null)));
+                // entry headers are small writes; file data mostly passes straight through
+                BufferedOutputStream out = new BufferedOutputStream(Channels.newOutputStream(clientChannel), 8192);
+                sent = ZipStreamer.write(files, out, streamBufferSize, compressionLevel, throttle);
+                out.flush();
+                succeeded = true;
+                long zipped = sent;
+                logger.fine(() -> "Archive sent successfully: " + archiveName +
+                        " | Files: " + files.size() +
+                        " | Size: " + zipped + " bytes" +
+                        " | Share: " + request.shareId);
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Error sending archive for share " + request.shareId + ": " + e.getMessage(), e);
             } finally {
-                activeDownloads.remove(port);
+                onFinish.done(sent, System.nanoTime() - start, succeeded);
                 try {
-                    clientSocket.close();
+                    clientChannel.close();
                 } catch (IOException e) {
-                    logger.log(Level.WARNING, "Error closing client socket on port " + port + ": " + e.getMessage(), e);
+                    logger.log(Level.WARNING, "Error closing client socket for share " + request.shareId + ": " + e.getMessage(), e);
                 }
             }
         }
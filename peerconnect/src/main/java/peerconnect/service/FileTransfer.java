@@ -0,0 +1,113 @@
+package peerconnect.service;
+
+import peerconnect.utils.BufferPool;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Copy loops used by the file senders.
+ */
+public final class FileTransfer {
+
+    public enum Mode {
+        // FileChannel.transferTo, lets the kernel use sendfile
+        ZERO_COPY,
+        // read into a heap buffer and write it out, the original sender loop
+        STREAM
+    }
+
+    // Paces a copy loop; called with each slice before it is written and may block.
+    @FunctionalInterface
+    public interface Throttle {
+        void acquire(int bytes);
+    }
+
+    // slice size used when a throttle paces the copy
+    private static final int THROTTLE_SLICE = 64 * 1024;
+
+    private FileTransfer() {
+    }
+
+    public static long transferTo(FileChannel source, long position, long count, WritableByteChannel target) throws IOException {
+        return transferTo(source, position, count, target, null);
+    }
+
+    public static long transferTo(FileChannel source, long position, long count, WritableByteChannel target,
+                                  Throttle throttle) throws IOException {
+        long end = position + count;
+        long sent = 0;
+        while (position < end) {
+            long slice = end - position;
+            if (throttle != null) {
+                slice = Math.min(slice, THROTTLE_SLICE);
+                throttle.acquire((int) slice);
+            }
+            long n = source.transferTo(position, slice, target);
+            if (n <= 0) {
+                if (position >= source.size()) {
+                    break;
+                }
+                continue;
+            }
+            position += n;
+            sent += n;
+        }
+        return sent;
+    }
+
+    // Writes [position, position + count) of a shared mapping; the page cache is read directly.
+    public static long transferMapped(MappedFileRegistry.Mapping source, long position, long count,
+                                      WritableByteChannel target, Throttle throttle) throws IOException {
+        long end = Math.min(position + count, source.size);
+        long sent = 0;
+        while (position < end) {
+            // never cross a segment boundary in one slice
+            long segmentEnd = (position / MappedFileRegistry.SEGMENT_SIZE + 1) * MappedFileRegistry.SEGMENT_SIZE;
+            int slice = (int) Math.min(Math.min(end, segmentEnd) - position, throttle != null ? THROTTLE_SLICE : Integer.MAX_VALUE);
+            if (throttle != null) {
+                throttle.acquire(slice);
+            }
+            writeFully(target, source.slice(position, slice));
+            position += slice;
+            sent += slice;
+        }
+        return sent;
+    }
+
+    public static long streamCopy(InputStream in, OutputStream out, int bufferSize) throws IOException {
+        return streamCopy(in, out, bufferSize, Long.MAX_VALUE, null);
+    }
+
+    // Copies at most limit bytes, pacing the writes through the throttle when one is given.
+    public static long streamCopy(InputStream in, OutputStream out, int bufferSize, long limit,
+                                  Throttle throttle) throws IOException {
+        BufferPool pool = BufferPool.heap(bufferSize);
+        ByteBuffer pooled = pool.acquire();
+        byte[] buffer = pooled.array();
+        long copied = 0;
+        int bytesRead;
+        try {
+            while (copied < limit && (bytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, limit - copied))) != -1) {
+                if (throttle != null) {
+                    throttle.acquire(bytesRead);
+                }
+                out.write(buffer, 0, bytesRead);
+                copied += bytesRead;
+            }
+        } finally {
+            pool.release(pooled);
+        }
+        return copied;
+    }
+
+    public static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
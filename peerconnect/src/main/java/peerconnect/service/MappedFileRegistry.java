@@ -0,0 +1,153 @@
+package peerconnect.service;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Read-only mappings of shared files, keyed by the path stored in {@link FileSharer}. Concurrent
+ * senders of the same file share one mapping, so a popular file is paged in once. A mapping is
+ * unmapped when its share has been retired (TTL eviction) and the last sender has released it.
+ */
+public class MappedFileRegistry {
+
+    private static final Logger logger = Logger.getLogger(MappedFileRegistry.class.getName());
+
+    // a MappedByteBuffer is int-indexed, so large files are mapped in segments
+    static final long SEGMENT_SIZE = 1L << 30;
+
+    private static final Method INVOKE_CLEANER;
+    private static final Object UNSAFE;
+
+    static {
+        Method invokeCleaner = null;
+        Object unsafe = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            logger.warning("Explicit unmapping unavailable, mappings are released by GC: " + e.getMessage());
+        }
+        INVOKE_CLEANER = invokeCleaner;
+        UNSAFE = unsafe;
+    }
+
+    private final Map<String, Mapping> mappings = new HashMap<>();
+
+    public synchronized Mapping acquire(String path) throws IOException {
+        Mapping mapping = mappings.get(path);
+        if (mapping == null) {
+            mapping = Mapping.map(path);
+            mappings.put(path, mapping);
+            logger.fine("Mapped " + path + " (" + mapping.size + " bytes)");
+        }
+        mapping.refs++;
+        return mapping;
+    }
+
+    public synchronized void release(Mapping mapping) {
+        mapping.refs--;
+        if (mapping.refs == 0 && mapping.retired) {
+            remove(mapping);
+        }
+    }
+
+    // Called when the share behind this path expires; unmaps now or after the last sender.
+    public synchronized void retire(String path) {
+        Mapping mapping = mappings.get(path);
+        if (mapping == null) {
+            return;
+        }
+        mapping.retired = true;
+        if (mapping.refs == 0) {
+            remove(mapping);
+        }
+    }
+
+    public synchronized int size() {
+        return mappings.size();
+    }
+
+    // Retires every mapping; ones still being sent are unmapped by their last release.
+    public synchronized void retireAll() {
+        for (String path : new ArrayList<>(mappings.keySet())) {
+            retire(path);
+        }
+    }
+
+    private void remove(Mapping mapping) {
+        mappings.remove(mapping.path);
+        mapping.unmap();
+        logger.fine("Unmapped " + mapping.path);
+    }
+
+    public static class Mapping {
+
+        public final String path;
+        public final long size;
+        private final MappedByteBuffer[] segments;
+        private int refs;
+        private boolean retired;
+        private volatile boolean unmapped;
+
+        private Mapping(String path, long size, MappedByteBuffer[] segments) {
+            this.path = path;
+            this.size = size;
+            this.segments = segments;
+        }
+
+        static Mapping map(String path) throws IOException {
+            try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+                long size = channel.size();
+                int count = (int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+                MappedByteBuffer[] segments = new MappedByteBuffer[count];
+                for (int i = 0; i < count; i++) {
+                    long position = i * SEGMENT_SIZE;
+                    segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(SEGMENT_SIZE, size - position));
+                }
+                return new Mapping(path, size, segments);
+            }
+        }
+
+        // A private view of the bytes [position, position + length) within one segment.
+        ByteBuffer slice(long position, int length) {
+            int segment = (int) (position / SEGMENT_SIZE);
+            int start = (int) (position % SEGMENT_SIZE);
+            ByteBuffer view = segments[segment].duplicate();
+            view.limit(start + length).position(start);
+            return view;
+        }
+
+        public boolean isUnmapped() {
+            return unmapped;
+        }
+
+        private void unmap() {
+            unmapped = true;
+            if (INVOKE_CLEANER == null) {
+                return;
+            }
+            for (MappedByteBuffer segment : segments) {
+                try {
+                    INVOKE_CLEANER.invoke(UNSAFE, segment);
+                } catch (ReflectiveOperationException e) {
+                    logger.log(Level.WARNING, "Could not unmap " + path + ": " + e.getMessage(), e);
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package peerconnect.service;
+
+import peerconnect.utils.ConfigUtils;
+import peerconnect.utils.PortUtils;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The backends sharing one set of invite codes. Every share ID carries the node that owns the
+ * file in its upper digits (node * NODE_STRIDE + local ID, so node 0 keeps the plain IDs), and
+ * any node can serve a download by connecting to the owner's transfer port.
+ * <p>
+ * Peers come from peerconnect.nodes ("2=host:9090,3=host:9090") and from an optional file
+ * with one "id host:port" line per node, which is read again whenever it changes, so nodes
+ * can be added without restarting the others.
+ */
+public class NodeRegistry {
+
+    private static final Logger logger = Logger.getLogger(NodeRegistry.class.getName());
+
+    // one node's IDs: the shared server's range, and below it the per-port range
+    public static final int NODE_STRIDE = PortUtils.SHARE_ID_END + 1;
+    public static final int MAX_NODE = (Integer.MAX_VALUE - PortUtils.SHARE_ID_END) / NODE_STRIDE;
+
+    private final int localNode;
+    private final Path file;
+    private final ConcurrentMap<Integer, InetSocketAddress> configured = new ConcurrentHashMap<>();
+    private volatile Map<Integer, InetSocketAddress> fromFile = Map.of();
+    private volatile FileTime fileVersion;
+
+    public NodeRegistry(int localNode, Path file) {
+        if (localNode < 0 || localNode > MAX_NODE) {
+            throw new IllegalArgumentException("Node ID must be between 0 and " + MAX_NODE + ": " + localNode);
+        }
+        this.localNode = localNode;
+        this.file = file;
+    }
+
+    // A single node without peers.
+    public static NodeRegistry standalone() {
+        return new NodeRegistry(0, null);
+    }
+
+    public static NodeRegistry fromConfig() {
+        String file = ConfigUtils.getString("peerconnect.nodes.file", null);
+        NodeRegistry nodes = new NodeRegistry(ConfigUtils.getInt("peerconnect.node.id", 0),
+                file == null ? null : Paths.get(file));
+        String peers = ConfigUtils.getString("peerconnect.nodes", "");
+        for (String peer : peers.split(",")) {
+            if (peer.isBlank()) {
+                continue;
+            }
+            int eq = peer.indexOf('=');
+            try {
+                nodes.register(Integer.parseInt(peer.substring(0, eq).trim()), parseAddress(peer.substring(eq + 1)));
+            } catch (RuntimeException e) {
+                logger.warning("Ignoring invalid peerconnect.nodes entry: " + peer);
+            }
+        }
+        return nodes;
+    }
+
+    public int getLocalNode() {
+        return localNode;
+    }
+
+    public static int nodeOf(int shareId) {
+        return shareId / NODE_STRIDE;
+    }
+
+    public boolean isLocal(int shareId) {
+        return nodeOf(shareId) == localNode;
+    }
+
+    // The first share ID of this node, added to the IDs a standalone server would hand out.
+    public int idBase() {
+        return localNode * NODE_STRIDE;
+    }
+
+    // Adds or moves a peer; its transfer address is where it serves the protocol.
+    public void register(int node, InetSocketAddress transferAddress) {
+        configured.put(node, transferAddress);
+    }
+
+    // Transfer address of a peer, or null if the node is not known.
+    public InetSocketAddress transferAddress(int node) {
+        InetSocketAddress address = configured.get(node);
+        if (address != null) {
+            return address;
+        }
+        if (file != null) {
+            reloadIfChanged();
+        }
+        return fromFile.get(node);
+    }
+
+    private synchronized void reloadIfChanged() {
+        try {
+            FileTime version = Files.getLastModifiedTime(file);
+            if (version.equals(fileVersion)) {
+                return;
+            }
+            Map<Integer, InetSocketAddress> nodes = new HashMap<>();
+            List<String> lines = Files.readAllLines(file);
+            for (String line : lines) {
+                String entry = line.strip();
+                if (entry.isEmpty() || entry.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = entry.split("\\s+");
+                try {
+                    nodes.put(Integer.parseInt(fields[0]), parseAddress(fields[1]));
+                } catch (RuntimeException e) {
+                    logger.warning("Ignoring invalid line in " + file + ": " + line);
+                }
+            }
+            fromFile = nodes;
+            fileVersion = version;
+            logger.info("Node registry loaded from " + file + ": " + nodes.keySet());
+        } catch (IOException e) {
+            // keep routing with what was read last
+            logger.log(Level.WARNING, "Could not read node registry " + file + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static InetSocketAddress parseAddress(String hostPort) {
+        String value = hostPort.trim();
+        int colon = value.lastIndexOf(':');
+        return InetSocketAddress.createUnresolved(value.substring(0, colon), Integer.parseInt(value.substring(colon + 1)));
+    }
+}
@@ -0,0 +1,419 @@
+package peerconnect.service;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only record of the shares on offer, so they survive a restart. Changes are appended to
+ * a memory-mapped log, which costs a memory copy per change and survives a crash of the process;
+ * the page cache reaches the disk on {@link #force()}. When the log fills up, the live shares
+ * are written to a snapshot and the log starts over.
+ * <p>
+ * Both files carry a generation. Log records are checksummed together with the generation of
+ * the log they were written to, so replay stops at a torn record and never picks up stale ones
+ * left over from an earlier generation, and a log older than the snapshot is skipped.
+ */
+public class ShareJournal implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(ShareJournal.class.getName());
+
+    private static final int MAGIC = 0x50435348; // "PCSH"
+    private static final int VERSION = 1;
+    // magic, version, generation
+    private static final int LOG_HEADER = 16;
+    // record length and checksum
+    private static final int RECORD_HEADER = 8;
+    // strings carry a two byte length
+    private static final int MAX_STRING_LENGTH = 0xFFFF;
+
+    private static final byte OFFERED = 1;
+    private static final byte TOUCHED = 2;
+    private static final byte REMOVED = 3;
+    // an OFFERED record followed by the files of a multi-file share
+    private static final byte BUNDLE = 4;
+
+    /**
+     * What is known about one share. Downloads and the expiry are updated as the share is used.
+     */
+    public static final class Entry {
+
+        public final int id;
+        public final String path;
+        public final String name;
+        // hex SHA-256 if the share is a stored blob, null for a plain file
+        public final String digest;
+        public final long size;
+        public final int maxDownloads;
+        public final int maxConcurrent;
+        public final Compression.Codec codec;
+        // the files of a multi-file share, which has no path of its own; null for a single file
+        public final List<SharedFile> files;
+        public long expiresAt;
+        public int downloads;
+
+        public Entry(int id, String path, String name, String digest, long size, int maxDownloads, int maxConcurrent,
+                     Compression.Codec codec, long expiresAt, int downloads) {
+            this(id, path, name, digest, size, maxDownloads, maxConcurrent, codec, null, expiresAt, downloads);
+        }
+
+        public Entry(int id, String path, String name, String digest, long size, int maxDownloads, int maxConcurrent,
+                     Compression.Codec codec, List<SharedFile> files, long expiresAt, int downloads) {
+            this.id = id;
+            this.path = path;
+            this.name = name;
+            this.digest = digest;
+            this.size = size;
+            this.maxDownloads = maxDownloads;
+            this.maxConcurrent = maxConcurrent;
+            this.codec = codec;
+            this.files = files;
+            this.expiresAt = expiresAt;
+            this.downloads = downloads;
+        }
+    }
+
+    private final Path snapshotFile;
+    private final Path logFile;
+    private final FileChannel logChannel;
+    private final MappedByteBuffer log;
+    private final Map<Integer, Entry> live = new HashMap<>();
+    private final CRC32 crc = new CRC32();
+    private long generation;
+    private boolean closed;
+
+    /**
+     * Opens the journal in dir, replaying whatever it holds. logSize is the size of the mapped
+     * log; a larger log means rarer snapshots.
+     */
+    public ShareJournal(Path dir, int logSize) throws IOException {
+        Files.createDirectories(dir);
+        this.snapshotFile = dir.resolve("shares.snapshot");
+        this.logFile = dir.resolve("shares.log");
+        long start = System.nanoTime();
+
+        this.logChannel = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            // two servers appending to one mapped log would corrupt it
+            if (logChannel.tryLock() == null) {
+                throw new IOException("Share journal " + dir + " is in use by another process");
+            }
+            this.generation = readSnapshot();
+            this.log = logChannel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(logSize, LOG_HEADER + 4096));
+        } catch (IOException | RuntimeException e) {
+            logChannel.close();
+            if (e instanceof OverlappingFileLockException) {
+                throw new IOException("Share journal " + dir + " is already open", e);
+            }
+            throw e;
+        }
+        int replayed = replayLog();
+
+        logger.info("Share journal replayed: " + live.size() + " shares, " + replayed + " log records in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+
+    // The shares on record, as of the last change.
+    public synchronized Collection<Entry> entries() {
+        return new ArrayList<>(live.values());
+    }
+
+    public synchronized int size() {
+        return live.size();
+    }
+
+    public synchronized void offered(Entry entry) {
+        byte[] record;
+        try {
+            record = encode(entry);
+        } catch (IllegalArgumentException e) {
+            // the share still works, it is only not brought back after a restart
+            logger.warning("Not journaling share " + entry.id + ": " + e.getMessage());
+            return;
+        }
+        live.put(entry.id, entry);
+        append(record);
+    }
+
+    // A download started: the share now expires later and has one download more.
+    public synchronized void touched(int id, long expiresAt, int downloads) {
+        Entry entry = live.get(id);
+        if (entry == null) {
+            return;
+        }
+        entry.expiresAt = expiresAt;
+        entry.downloads = downloads;
+        append(ByteBuffer.allocate(17).put(TOUCHED).putInt(id).putLong(expiresAt).putInt(downloads).array());
+    }
+
+    public synchronized void removed(int id) {
+        if (live.remove(id) == null) {
+            return;
+        }
+        append(ByteBuffer.allocate(5).put(REMOVED).putInt(id).array());
+    }
+
+    /**
+     * Writes the live shares to a new snapshot and starts an empty log. Called when the log is
+     * full; a caller may also call it to keep the next replay short.
+     */
+    public synchronized void snapshot() throws IOException {
+        long next = generation + 1;
+        Path temp = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 256 * 1024))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(next);
+            out.writeInt(live.size());
+            CRC32 checksum = new CRC32();
+            for (Entry entry : live.values()) {
+                byte[] record = encode(entry);
+                checksum.update(record);
+                out.writeInt(record.length);
+                out.write(record);
+            }
+            out.writeLong(checksum.getValue());
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(temp, snapshotFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        // until the header below is rewritten, a crash replays the new snapshot and skips the older log
+        generation = next;
+        log.clear();
+        log.putInt(MAGIC).putInt(VERSION).putLong(generation);
+        logger.fine("Share journal snapshot written: " + live.size() + " shares, generation " + generation);
+    }
+
+    // Writes a snapshot if the log is more than half full, so appends rarely have to.
+    public synchronized void compact() throws IOException {
+        if (!closed && log.position() > log.capacity() / 2) {
+            snapshot();
+        }
+    }
+
+    // Flushes the appended records to disk.
+    public synchronized void force() {
+        if (!closed) {
+            log.force();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        log.force();
+        closed = true;
+        logChannel.close();
+    }
+
+    // Appends a record to the log, writing a snapshot first if it is full.
+    private void append(byte[] payload) {
+        if (closed) {
+            return;
+        }
+        if (log.remaining() < RECORD_HEADER + payload.length) {
+            try {
+                snapshot();
+            } catch (IOException e) {
+                // the change is in the live map, so the next successful snapshot still has it
+                logger.log(Level.SEVERE, "Could not write the share journal snapshot: " + e.getMessage(), e);
+                return;
+            }
+            if (log.remaining() < RECORD_HEADER + payload.length) {
+                logger.severe("Share journal record of " + payload.length + " bytes does not fit the log");
+                return;
+            }
+        }
+        crc.reset();
+        crc.update(generationBytes(generation));
+        crc.update(payload);
+        log.putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+    }
+
+    private long readSnapshot() throws IOException {
+        if (!Files.exists(snapshotFile)) {
+            return 0;
+        }
+        try (FileChannel channel = FileChannel.open(snapshotFile, StandardOpenOption.READ)) {
+            ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+                throw new IOException("Not a share journal snapshot: " + snapshotFile);
+            }
+            long snapshotGeneration = in.getLong();
+            int count = in.getInt();
+            CRC32 checksum = new CRC32();
+            for (int i = 0; i < count; i++) {
+                int length = in.getInt();
+                ByteBuffer record = in.slice(in.position(), length);
+                checksum.update(record.duplicate());
+                apply(record);
+                in.position(in.position() + record.limit());
+            }
+            if (in.getLong() != checksum.getValue()) {
+                throw new IOException("Share journal snapshot is corrupt: " + snapshotFile);
+            }
+            return snapshotGeneration;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("Share journal snapshot is truncated: " + snapshotFile, e);
+        }
+    }
+
+    private int replayLog() {
+        int replayed = 0;
+        boolean current = log.getInt(0) == MAGIC && log.getInt(4) == VERSION && log.getLong(8) == generation;
+        if (current) {
+            byte[] salt = generationBytes(generation);
+            int position = LOG_HEADER;
+            while (position + RECORD_HEADER <= log.capacity()) {
+                int length = log.getInt(position);
+                if (length <= 0 || length > log.capacity() - position - RECORD_HEADER) {
+                    break;
+                }
+                ByteBuffer record = log.slice(position + RECORD_HEADER, length);
+                crc.reset();
+                crc.update(salt);
+                crc.update(record.duplicate());
+                if ((int) crc.getValue() != log.getInt(position + 4)) {
+                    // a torn write, or a stale record of an earlier generation
+                    break;
+                }
+                apply(record);
+                position += RECORD_HEADER + length;
+                replayed++;
+            }
+            log.position(position);
+        } else {
+            // empty, or already folded into the snapshot
+            log.clear();
+            log.putInt(MAGIC).putInt(VERSION).putLong(generation);
+        }
+        return replayed;
+    }
+
+    private void apply(ByteBuffer record) {
+        byte type = record.get();
+        int id = record.getInt();
+        if (type == OFFERED || type == BUNDLE) {
+            long expiresAt = record.getLong();
+            long size = record.getLong();
+            int maxDownloads = record.getInt();
+            int maxConcurrent = record.getInt();
+            int downloads = record.getInt();
+            Compression.Codec codec = Compression.Codec.values()[record.get()];
+            String path = getString(record);
+            String name = getString(record);
+            String digest = getString(record);
+            List<SharedFile> files = null;
+            if (type == BUNDLE) {
+                int count = record.getInt();
+                files = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    long fileSize = record.getLong();
+                    Compression.Codec fileCodec = Compression.Codec.values()[record.get()];
+                    String filePath = getString(record);
+                    String fileName = getString(record);
+                    files.add(new SharedFile(fileName, filePath, getString(record), fileSize, fileCodec));
+                }
+            }
+            live.put(id, new Entry(id, path, name, digest, size, maxDownloads, maxConcurrent, codec, files,
+                    expiresAt, downloads));
+        } else if (type == TOUCHED) {
+            Entry entry = live.get(id);
+            if (entry != null) {
+                entry.expiresAt = record.getLong();
+                entry.downloads = record.getInt();
+            }
+        } else if (type == REMOVED) {
+            live.remove(id);
+        } else {
+            logger.warning("Unknown share journal record type " + type + " for share " + id);
+        }
+    }
+
+    private static byte[] encode(Entry entry) {
+        byte[] path = utf8(entry.path);
+        byte[] name = utf8(entry.name);
+        byte[] digest = utf8(entry.digest);
+        int length = 40 + path.length + name.length + digest.length;
+        // each file: size, codec, then path, name and digest
+        List<byte[][]> fileStrings = new ArrayList<>();
+        if (entry.files != null) {
+            length += 4;
+            for (SharedFile file : entry.files) {
+                byte[][] strings = {utf8(file.path), utf8(file.name), utf8(file.digest)};
+                length += 15 + strings[0].length + strings[1].length + strings[2].length;
+                fileStrings.add(strings);
+            }
+        }
+        ByteBuffer record = ByteBuffer.allocate(length);
+        record.put(entry.files == null ? OFFERED : BUNDLE).putInt(entry.id).putLong(entry.expiresAt).putLong(entry.size)
+                .putInt(entry.maxDownloads).putInt(entry.maxConcurrent).putInt(entry.downloads)
+                .put((byte) entry.codec.ordinal());
+        putString(record, path);
+        putString(record, name);
+        putString(record, digest);
+        if (entry.files != null) {
+            record.putInt(entry.files.size());
+            for (int i = 0; i < entry.files.size(); i++) {
+                SharedFile file = entry.files.get(i);
+                record.putLong(file.size).put((byte) file.codec.ordinal());
+                for (byte[] string : fileStrings.get(i)) {
+                    putString(record, string);
+                }
+            }
+        }
+        return record.array();
+    }
+
+    // Strings are a two byte length and UTF-8; an empty string stands for null.
+    private static byte[] utf8(String value) {
+        byte[] bytes = value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_STRING_LENGTH) {
+            throw new IllegalArgumentException("String too long for the share journal: " + bytes.length + " bytes");
+        }
+        return bytes;
+    }
+
+    private static void putString(ByteBuffer record, byte[] value) {
+        record.putShort((short) value.length).put(value);
+    }
+
+    private static String getString(ByteBuffer record) {
+        int length = Short.toUnsignedInt(record.getShort());
+        if (length == 0) {
+            return null;
+        }
+        byte[] value = new byte[length];
+        record.get(value);
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] generationBytes(long generation) {
+        return ByteBuffer.allocate(8).putLong(generation).array();
+    }
+}
@@ -0,0 +1,60 @@
+package peerconnect.service;
+
+import peerconnect.utils.BufferPool;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * One file of a share holding several, as uploaded together. The codec says whether it is
+ * worth compressing, which for a ZIP download decides between a deflated and a stored entry.
+ */
+public final class SharedFile {
+
+    private static final int CRC_BUFFER_SIZE = 64 * 1024;
+
+    // unique within its share
+    public final String name;
+    public final String path;
+    // hex SHA-256 if the file is a stored blob, null for a plain file
+    public final String digest;
+    public final long size;
+    public final Compression.Codec codec;
+    private volatile long crc = -1;
+
+    public SharedFile(String name, String path, String digest, long size, Compression.Codec codec) {
+        this.name = name;
+        this.path = path;
+        this.digest = digest;
+        this.size = size;
+        this.codec = codec;
+    }
+
+    /**
+     * CRC-32 of the content, which a stored ZIP entry must carry before its data. Read from the
+     * file on first use and kept, so only the first ZIP download pays for it.
+     */
+    long crc32() throws IOException {
+        long value = crc;
+        if (value >= 0) {
+            return value;
+        }
+        CRC32 checksum = new CRC32();
+        BufferPool pool = BufferPool.heap(CRC_BUFFER_SIZE);
+        ByteBuffer buffer = pool.acquire();
+        try (InputStream in = new FileInputStream(path)) {
+            int read;
+            while ((read = in.read(buffer.array())) != -1) {
+                checksum.update(buffer.array(), 0, read);
+            }
+        } finally {
+            pool.release(buffer);
+        }
+        value = checksum.getValue();
+        crc = value;
+        return value;
+    }
+}
@@ -0,0 +1,129 @@
+package peerconnect.service;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import peerconnect.utils.ConfigUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Contents of small shared files held in memory, so the API server can answer their downloads
+ * itself instead of opening a transfer connection per request. Files are read on their first
+ * download, checked against their digest, and kept until the cache is over maxBytes, when the
+ * least recently used ones go. Files worth compressing keep a gzipped copy as well.
+ */
+public class SmallFileCache {
+
+    private final long maxFileSize;
+    private final Cache<String, Content> files;
+    private final AtomicLong bytes = new AtomicLong();
+
+    // maxFileSize or maxBytes of 0 disables the cache
+    public SmallFileCache(long maxFileSize, long maxBytes) {
+        this.maxFileSize = maxBytes > 0 ? maxFileSize : 0;
+        this.files = CacheBuilder.newBuilder()
+                // Guava splits the weight between segments; one keeps the LRU order and the budget whole
+                .concurrencyLevel(1)
+                .maximumWeight(Math.max(maxBytes, 0))
+                .weigher((String path, Content content) -> content.weight())
+                .removalListener((RemovalListener<String, Content>) notification ->
+                        bytes.addAndGet(-notification.getValue().weight()))
+                .recordStats()
+                .build();
+    }
+
+    public static SmallFileCache fromConfig() {
+        return new SmallFileCache(
+                ConfigUtils.getLong("peerconnect.cache.smallFileSize", 64 * 1024),
+                ConfigUtils.getLong("peerconnect.cache.maxBytes", 64L * 1024 * 1024));
+    }
+
+    // Whether a file of this size is served from memory.
+    public boolean accepts(long size) {
+        return maxFileSize > 0 && size <= maxFileSize;
+    }
+
+    /**
+     * The content of path, read and verified against its hex SHA-256 digest on a miss; a gzipped
+     * copy at level is made if codec says the file is worth it. Throws if the file cannot be
+     * read or does not match, and nothing is cached then.
+     */
+    public Content get(String path, String digest, Compression.Codec codec, int level) throws IOException {
+        try {
+            return files.get(path, () -> load(path, digest, codec, level));
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause()
+                    : new IOException("Could not cache " + path + ": " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    // Drops the copy of a file that is no longer shared.
+    public void invalidate(String path) {
+        files.invalidate(path);
+    }
+
+    public long getHits() {
+        return files.stats().hitCount();
+    }
+
+    public long getMisses() {
+        return files.stats().missCount();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    private Content load(String path, String digest, Compression.Codec codec, int level) throws IOException {
+        byte[] data = Files.readAllBytes(Paths.get(path));
+        if (data.length > maxFileSize) {
+            throw new IOException(path + " has grown past the cached size limit");
+        }
+        String actual;
+        try {
+            actual = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 is not available", e);
+        }
+        if (!actual.equalsIgnoreCase(digest)) {
+            throw new IOException("Digest mismatch: expected " + digest + ", got " + actual);
+        }
+        byte[] gzipped = null;
+        if (codec == Compression.Codec.GZIP) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 64);
+            try (GZIPOutputStream gzip = Compression.gzip(out, 8192, level)) {
+                gzip.write(data);
+            }
+            gzipped = out.toByteArray();
+        }
+        Content content = new Content(data, gzipped);
+        bytes.addAndGet(content.weight());
+        return content;
+    }
+
+    public static final class Content {
+
+        public final byte[] data;
+        // null unless the file's codec is gzip
+        public final byte[] gzipped;
+
+        Content(byte[] data, byte[] gzipped) {
+            this.data = data;
+            this.gzipped = gzipped;
+        }
+
+        int weight() {
+            return data.length + (gzipped != null ? gzipped.length : 0);
+        }
+    }
+}
@@ -0,0 +1,450 @@
+package peerconnect.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HexFormat;
+
+/**
+ * Protocol spoken between the download proxy and a file sender. It has two framings and a
+ * sender always answers in the one the request used.
+ *
+ * <p>Binary (version 1), used by the proxy. Every frame starts with the magic bytes 0xFE 'P', a
+ * version byte and a type byte; numbers are big-endian, strings are a 2 byte length plus UTF-8.
+ * <pre>
+ *   request: magic, version, 1, shareId(4), offset(8), length(8), accepted encoding(1)
+ *   member:  magic, version, 4, shareId(4), member(4), offset(8), length(8), accepted encoding(1)
+ *   file:    magic, version, 2, size(8), offset(8), length(8), encoding(1),
+ *            digest length(1), SHA-256 digest bytes, name
+ *   error:   magic, version, 3, reason
+ * </pre>
+ *
+ * <p>Text, the original line format, still accepted. The client sends
+ * "GET &lt;shareId&gt; [&lt;offset&gt; &lt;length&gt; [&lt;encoding&gt;]]\n" and the sender answers with a header block
+ * ("Filename:", "Size:", "Offset:", "Length:" and optionally "Encoding:" and "Digest:" lines, then
+ * an empty line) or a single "Error: &lt;reason&gt;\n" line.
+ *
+ * <p>In both, a negative offset asks for the last -offset bytes and a negative length means "to
+ * the end of the file". The body is exactly length bytes, or the encoded bytes up to the end of
+ * the stream when an encoding was chosen. The digest covers the whole file and is only sent
+ * with full, unencoded bodies.
+ *
+ * <p>A share holding several files is sent as a ZIP built while it streams, so its answer has
+ * size and length -1 and the body runs to the end of the stream; ranges do not apply to it. A
+ * member request asks for one of its files instead and is only available as a binary frame.
+ */
+public final class TransferProtocol {
+
+    public static final String REQUEST_PREFIX = "GET ";
+    public static final String FILENAME_HEADER = "Filename: ";
+    public static final String SIZE_HEADER = "Size: ";
+    public static final String OFFSET_HEADER = "Offset: ";
+    public static final String LENGTH_HEADER = "Length: ";
+    public static final String ENCODING_HEADER = "Encoding: ";
+    public static final String DIGEST_HEADER = "Digest: ";
+    public static final String DIGEST_PREFIX = "sha-256=";
+    public static final String ERROR_HEADER = "Error: ";
+    public static final int MAX_LINE_LENGTH = 1024;
+    private static final int MAX_HEADER_LINES = 16;
+
+    public static final String ERROR_NOT_FOUND = "Share not found";
+    public static final String ERROR_RANGE = "Range not satisfiable";
+    public static final String ERROR_BAD_REQUEST = "Bad request";
+    public static final String ERROR_BUSY = "Too many concurrent downloads";
+    public static final String ERROR_GONE = "Download limit reached";
+
+    public static final byte MAGIC_0 = (byte) 0xFE;
+    public static final byte MAGIC_1 = 'P';
+    public static final byte VERSION = 1;
+    private static final byte TYPE_REQUEST = 1;
+    private static final byte TYPE_FILE = 2;
+    private static final byte TYPE_ERROR = 3;
+    private static final byte TYPE_MEMBER_REQUEST = 4;
+    public static final int REQUEST_FRAME_LENGTH = 25;
+    public static final int MEMBER_REQUEST_FRAME_LENGTH = 29;
+    private static final int MAX_STRING_LENGTH = 0xFFFF;
+
+    private TransferProtocol() {
+    }
+
+    public static final class Request {
+
+        public final int shareId;
+        // index of the file asked for in a multi-file share, -1 for the whole share
+        public final int member;
+        public final long offset;
+        public final long length;
+        // the encoding the client accepts, IDENTITY if it only takes raw bytes
+        public final Compression.Codec accept;
+        // true if the request came as a binary frame, so the answer must be one too
+        public final boolean binary;
+
+        public Request(int shareId, long offset, long length) {
+            this(shareId, offset, length, Compression.Codec.IDENTITY);
+        }
+
+        public Request(int shareId, long offset, long length, Compression.Codec accept) {
+            this(shareId, offset, length, accept, false);
+        }
+
+        public Request(int shareId, long offset, long length, Compression.Codec accept, boolean binary) {
+            this(shareId, -1, offset, length, accept, binary);
+        }
+
+        public Request(int shareId, int member, long offset, long length, Compression.Codec accept, boolean binary) {
+            this.shareId = shareId;
+            this.member = member;
+            this.offset = offset;
+            this.length = length;
+            this.accept = accept;
+            this.binary = binary;
+        }
+
+        public boolean isPartial() {
+            return offset != 0 || length >= 0;
+        }
+    }
+
+    public static final class Response {
+
+        public final String error;
+        public final String fileName;
+        public final long size;
+        public final long offset;
+        public final long length;
+        public final Compression.Codec encoding;
+        // hex SHA-256 of the body, or null if the sender did not send one
+        public final String digest;
+
+        Response(String error, String fileName, long size, long offset, long length, Compression.Codec encoding,
+                 String digest) {
+            this.error = error;
+            this.fileName = fileName;
+            this.size = size;
+            this.offset = offset;
+            this.length = length;
+            this.encoding = encoding;
+            this.digest = digest;
+        }
+
+        static Response error(String reason) {
+            return new Response(reason, null, -1, 0, -1, Compression.Codec.IDENTITY, null);
+        }
+    }
+
+    // ---- binary frames
+
+    public static boolean isFrame(byte first) {
+        return first == MAGIC_0;
+    }
+
+    public static byte[] requestFrame(int shareId, long offset, long length, Compression.Codec accept) {
+        return requestFrame(shareId, -1, offset, length, accept);
+    }
+
+    // A member of -1 asks for the whole share, in the plain request frame.
+    public static byte[] requestFrame(int shareId, int member, long offset, long length, Compression.Codec accept) {
+        ByteBuffer frame = ByteBuffer.allocate(member < 0 ? REQUEST_FRAME_LENGTH : MEMBER_REQUEST_FRAME_LENGTH);
+        frame.put(MAGIC_0).put(MAGIC_1).put(VERSION).put(member < 0 ? TYPE_REQUEST : TYPE_MEMBER_REQUEST).putInt(shareId);
+        if (member >= 0) {
+            frame.putInt(member);
+        }
+        frame.putLong(offset).putLong(length).put((byte) accept.ordinal());
+        return frame.array();
+    }
+
+    // Length of a request frame, known from its type, the fourth byte.
+    public static int requestFrameLength(byte type) {
+        return type == TYPE_MEMBER_REQUEST ? MEMBER_REQUEST_FRAME_LENGTH : REQUEST_FRAME_LENGTH;
+    }
+
+    // Parses a complete request frame; null if it is not a valid version 1 request.
+    public static Request parseRequestFrame(ByteBuffer frame) {
+        if (frame.remaining() < REQUEST_FRAME_LENGTH || frame.get() != MAGIC_0 || frame.get() != MAGIC_1
+                || frame.get() != VERSION) {
+            return null;
+        }
+        byte type = frame.get();
+        if (type != TYPE_REQUEST && (type != TYPE_MEMBER_REQUEST || frame.remaining() < MEMBER_REQUEST_FRAME_LENGTH - 4)) {
+            return null;
+        }
+        int shareId = frame.getInt();
+        int member = type == TYPE_MEMBER_REQUEST ? frame.getInt() : -1;
+        if (type == TYPE_MEMBER_REQUEST && member < 0) {
+            return null;
+        }
+        long offset = frame.getLong();
+        long length = frame.getLong();
+        int accept = frame.get();
+        if (accept < 0 || accept >= Compression.Codec.values().length) {
+            return null;
+        }
+        return new Request(shareId, member, offset, length, Compression.Codec.values()[accept], true);
+    }
+
+    public static byte[] fileFrame(String fileName, long size, long offset, long length, Compression.Codec encoding,
+                                   String digest) {
+        byte[] name = utf8(fileName);
+        byte[] digestBytes = digest == null ? new byte[0] : HexFormat.of().parseHex(digest);
+        ByteBuffer frame = ByteBuffer.allocate(4 + 8 + 8 + 8 + 1 + 1 + digestBytes.length + 2 + name.length);
+        frame.put(MAGIC_0).put(MAGIC_1).put(VERSION).put(TYPE_FILE)
+                .putLong(size).putLong(offset).putLong(length).put((byte) encoding.ordinal())
+                .put((byte) digestBytes.length).put(digestBytes)
+                .putShort((short) name.length).put(name);
+        return frame.array();
+    }
+
+    public static byte[] errorFrame(String reason) {
+        byte[] text = utf8(reason);
+        ByteBuffer frame = ByteBuffer.allocate(4 + 2 + text.length);
+        frame.put(MAGIC_0).put(MAGIC_1).put(VERSION).put(TYPE_ERROR).putShort((short) text.length).put(text);
+        return frame.array();
+    }
+
+    private static Response readFrame(DataInputStream in) throws IOException {
+        if (in.readByte() != MAGIC_0 || in.readByte() != MAGIC_1) {
+            throw new IOException("Not a transfer frame");
+        }
+        byte version = in.readByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported transfer protocol version " + version);
+        }
+        byte type = in.readByte();
+        if (type == TYPE_ERROR) {
+            return Response.error(readString(in));
+        }
+        if (type != TYPE_FILE) {
+            throw new IOException("Unexpected transfer frame type " + type);
+        }
+        long size = in.readLong();
+        long offset = in.readLong();
+        long length = in.readLong();
+        int encoding = in.readUnsignedByte();
+        if (encoding >= Compression.Codec.values().length) {
+            throw new IOException("Unknown transfer encoding " + encoding);
+        }
+        byte[] digest = new byte[in.readUnsignedByte()];
+        in.readFully(digest);
+        String fileName = readString(in);
+        return new Response(null, fileName, size, offset, length, Compression.Codec.values()[encoding],
+                digest.length == 0 ? null : HexFormat.of().formatHex(digest));
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readUnsignedShort()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] utf8(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_STRING_LENGTH) {
+            throw new IllegalArgumentException("String too long for a transfer frame: " + bytes.length + " bytes");
+        }
+        return bytes;
+    }
+
+    // ---- answers in the request's framing
+
+    public static byte[] fileHeader(Request request, String fileName, long size, long offset, long length,
+                                    Compression.Codec encoding, String digest) {
+        return request.binary
+                ? fileFrame(fileName, size, offset, length, encoding, digest)
+                : fileHeader(fileName, size, offset, length, encoding, digest);
+    }
+
+    public static byte[] error(Request request, String reason) {
+        return request != null && request.binary ? errorFrame(reason) : error(reason);
+    }
+
+    // ---- text format
+
+    public static byte[] request(int shareId) {
+        return request(shareId, 0, -1);
+    }
+
+    public static byte[] request(int shareId, long offset, long length) {
+        return request(shareId, offset, length, Compression.Codec.IDENTITY);
+    }
+
+    public static byte[] request(int shareId, long offset, long length, Compression.Codec accept) {
+        String encoding = accept == Compression.Codec.IDENTITY ? "" : " " + accept.token();
+        return (REQUEST_PREFIX + shareId + " " + offset + " " + length + encoding + "\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // Returns the parsed request, or null if the line is not a valid request.
+    public static Request parseRequest(String line) {
+        if (line == null || !line.startsWith(REQUEST_PREFIX)) {
+            return null;
+        }
+        String[] parts = line.substring(REQUEST_PREFIX.length()).trim().split(" +");
+        try {
+            int shareId = Integer.parseInt(parts[0]);
+            if (parts.length == 1) {
+                return new Request(shareId, 0, -1);
+            }
+            if (parts.length == 3 || parts.length == 4) {
+                Compression.Codec accept = parts.length == 4 ? Compression.Codec.fromToken(parts[3]) : Compression.Codec.IDENTITY;
+                return new Request(shareId, Long.parseLong(parts[1]), Long.parseLong(parts[2]), accept);
+            }
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        return null;
+    }
+
+    public static byte[] fileHeader(String fileName, long size, long offset, long length) {
+        return fileHeader(fileName, size, offset, length, Compression.Codec.IDENTITY);
+    }
+
+    public static byte[] fileHeader(String fileName, long size, long offset, long length, Compression.Codec encoding) {
+        return fileHeader(fileName, size, offset, length, encoding, null);
+    }
+
+    public static byte[] fileHeader(String fileName, long size, long offset, long length, Compression.Codec encoding,
+                                    String digest) {
+        return (FILENAME_HEADER + fileName + "\n"
+                + SIZE_HEADER + size + "\n"
+                + OFFSET_HEADER + offset + "\n"
+                + LENGTH_HEADER + length + "\n"
+                + (encoding == Compression.Codec.IDENTITY ? "" : ENCODING_HEADER + encoding.token() + "\n")
+                + (digest == null ? "" : DIGEST_HEADER + DIGEST_PREFIX + digest + "\n")
+                + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    public static byte[] error(String reason) {
+        return (ERROR_HEADER + reason + "\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Reads the sender's header in either framing; the stream is left at the first content byte.
+     * The stream must support mark/reset (a BufferedInputStream) so the framing can be sniffed.
+     */
+    public static Response readResponse(InputStream in) throws IOException {
+        if (!in.markSupported()) {
+            throw new IllegalArgumentException("readResponse needs a stream that supports mark/reset");
+        }
+        in.mark(1);
+        int first = in.read();
+        in.reset();
+        if (first != -1 && isFrame((byte) first)) {
+            return readFrame(new DataInputStream(in));
+        }
+
+        String line = readLine(in);
+        if (line == null) {
+            throw new IOException("Peer closed the connection without a response");
+        }
+        if (line.startsWith(ERROR_HEADER)) {
+            return Response.error(line.substring(ERROR_HEADER.length()));
+        }
+
+        String fileName = null;
+        long size = -1;
+        long offset = 0;
+        long length = -1;
+        Compression.Codec encoding = Compression.Codec.IDENTITY;
+        String digest = null;
+        int lines = 0;
+        for (; line != null && !line.isEmpty(); line = readLine(in)) {
+            if (++lines > MAX_HEADER_LINES) {
+                throw new IOException("Too many transfer header lines");
+            }
+            try {
+                if (line.startsWith(FILENAME_HEADER)) {
+                    fileName = line.substring(FILENAME_HEADER.length());
+                } else if (line.startsWith(SIZE_HEADER)) {
+                    size = Long.parseLong(line.substring(SIZE_HEADER.length()));
+                } else if (line.startsWith(OFFSET_HEADER)) {
+                    offset = Long.parseLong(line.substring(OFFSET_HEADER.length()));
+                } else if (line.startsWith(LENGTH_HEADER)) {
+                    length = Long.parseLong(line.substring(LENGTH_HEADER.length()));
+                } else if (line.startsWith(ENCODING_HEADER)) {
+                    encoding = Compression.Codec.fromToken(line.substring(ENCODING_HEADER.length()));
+                } else if (line.startsWith(DIGEST_HEADER + DIGEST_PREFIX)) {
+                    digest = line.substring(DIGEST_HEADER.length() + DIGEST_PREFIX.length());
+                }
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Malformed transfer header: " + line);
+            }
+        }
+        return new Response(null, fileName, size, offset, length, encoding, digest);
+    }
+
+    // Reads one '\n' terminated UTF-8 line; returns null on EOF before any byte.
+    public static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                return baos.toString(StandardCharsets.UTF_8).trim();
+            }
+            if (baos.size() >= MAX_LINE_LENGTH) {
+                throw new IOException("Transfer protocol line too long");
+            }
+            baos.write(b);
+        }
+        return baos.size() == 0 ? null : baos.toString(StandardCharsets.UTF_8).trim();
+    }
+
+    /**
+     * Blocking read of a request in either framing straight from a channel. Nothing past the
+     * request is consumed. Returns null on EOF or if the request is malformed.
+     */
+    public static Request readRequest(ReadableByteChannel channel) throws IOException {
+        ByteBuffer first = ByteBuffer.allocate(1);
+        if (channel.read(first) == -1) {
+            return null;
+        }
+        byte b = first.get(0);
+        if (isFrame(b)) {
+            ByteBuffer frame = ByteBuffer.allocate(MEMBER_REQUEST_FRAME_LENGTH);
+            // the type byte tells how long the rest of the frame is
+            frame.put(b).limit(4);
+            if (!readFully(channel, frame)) {
+                return null;
+            }
+            frame.limit(requestFrameLength(frame.get(3)));
+            if (!readFully(channel, frame)) {
+                return null;
+            }
+            frame.flip();
+            return parseRequestFrame(frame);
+        }
+        String rest = b == '\n' ? "" : readLine(channel);
+        return parseRequest(((char) b + (rest == null ? "" : rest)).trim());
+    }
+
+    private static boolean readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) == -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Blocking read of a request line straight from a channel, one byte at a time so that
+    // nothing past the newline is consumed.
+    public static String readLine(ReadableByteChannel channel) throws IOException {
+        ByteBuffer one = ByteBuffer.allocate(1);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        while (channel.read(one) != -1) {
+            one.flip();
+            byte b = one.get();
+            one.clear();
+            if (b == '\n') {
+                return baos.toString(StandardCharsets.US_ASCII).trim();
+            }
+            if (baos.size() >= MAX_LINE_LENGTH) {
+                throw new IOException("Transfer protocol line too long");
+            }
+            baos.write(b);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,235 @@
+package peerconnect.service;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One listening port for every share. A single selector thread accepts connections and reads
+ * the request (frame or line) without blocking; once the share ID is known the connection is
+ * handed to the executor, which switches it to blocking mode and runs the {@link RequestHandler}
+ * there, refusals included. Pending shares therefore cost no thread and no port, and the
+ * selector never waits on a client or a disk.
+ */
+public class TransferServer implements Runnable {
+
+    private static final Logger logger = Logger.getLogger(TransferServer.class.getName());
+
+    private static final long REQUEST_TIMEOUT_MS = 10_000;
+    private static final long SELECT_TIMEOUT_MS = 1_000;
+
+    public interface RequestHandler {
+        void handle(SocketChannel channel, TransferProtocol.Request request);
+    }
+
+    private final int port;
+    private final RequestHandler handler;
+    private final Executor executor;
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread thread;
+    private volatile boolean running;
+
+    public TransferServer(int port, RequestHandler handler, Executor executor) {
+        this.port = port;
+        this.handler = handler;
+        this.executor = executor;
+    }
+
+    public void start() throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+        thread = new Thread(this, "transfer-server");
+        thread.setDaemon(true);
+        thread.start();
+        logger.info("Transfer server listening on port: " + getPort());
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public void stop() {
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    @Override
+    public void run() {
+        List<PendingRequest> ready = new ArrayList<>();
+        try {
+            while (running) {
+                selector.select(SELECT_TIMEOUT_MS);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else if (key.isReadable()) {
+                            PendingRequest request = (PendingRequest) key.attachment();
+                            if (request.read()) {
+                                key.cancel();
+                                ready.add(request);
+                            }
+                        }
+                    } catch (IOException e) {
+                        logger.log(Level.FINE, "Dropping transfer connection: " + e.getMessage(), e);
+                        closeQuietly(key);
+                    }
+                }
+                expireIdle();
+
+                if (!ready.isEmpty()) {
+                    // cancelled keys are only deregistered on the next select
+                    selector.selectNow();
+                    for (PendingRequest request : ready) {
+                        dispatch(request);
+                    }
+                    ready.clear();
+                }
+            }
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Transfer server failed: " + e.getMessage(), e);
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                closeQuietly(key);
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Error closing transfer selector: " + e.getMessage(), e);
+            }
+            logger.info("Transfer server stopped.");
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ, new PendingRequest(channel));
+    }
+
+    private void dispatch(PendingRequest request) {
+        SocketChannel channel = request.channel;
+        TransferProtocol.Request parsed = request.parse();
+        try {
+            executor.execute(() -> handOver(channel, parsed));
+        } catch (RejectedExecutionException e) {
+            logger.warning("No thread free for a transfer request, refusing it");
+            try (channel) {
+                // still non-blocking: one small write into an empty send buffer, never a wait
+                channel.write(ByteBuffer.wrap(TransferProtocol.error(parsed, TransferProtocol.ERROR_BUSY)));
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    // Runs on the executor, where blocking on the client holds up no other connection.
+    private void handOver(SocketChannel channel, TransferProtocol.Request parsed) {
+        try {
+            channel.configureBlocking(true);
+            if (parsed == null) {
+                logger.warning("Malformed transfer request from " + channel.getRemoteAddress());
+                channel.write(ByteBuffer.wrap(TransferProtocol.error(TransferProtocol.ERROR_BAD_REQUEST)));
+                channel.close();
+                return;
+            }
+            handler.handle(channel, parsed);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Error dispatching transfer request: " + e.getMessage(), e);
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void expireIdle() {
+        long now = System.currentTimeMillis();
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof PendingRequest
+                    && now - ((PendingRequest) key.attachment()).acceptedAt > REQUEST_TIMEOUT_MS) {
+                logger.fine("Closing transfer connection that sent no request");
+                closeQuietly(key);
+            }
+        }
+    }
+
+    private static void closeQuietly(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static class PendingRequest {
+
+        private final SocketChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(TransferProtocol.MAX_LINE_LENGTH);
+        private final long acceptedAt = System.currentTimeMillis();
+        private int lineEnd = -1;
+
+        PendingRequest(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        // Returns true once a full request frame or line has arrived.
+        boolean read() throws IOException {
+            int start = buffer.position();
+            if (channel.read(buffer) == -1) {
+                throw new IOException("Connection closed before request");
+            }
+            if (isFrame()) {
+                return buffer.position() >= 4 && buffer.position() >= TransferProtocol.requestFrameLength(buffer.get(3));
+            }
+            for (int i = start; i < buffer.position(); i++) {
+                if (buffer.get(i) == '\n') {
+                    lineEnd = i;
+                    return true;
+                }
+            }
+            if (!buffer.hasRemaining()) {
+                throw new IOException("Request line too long");
+            }
+            return false;
+        }
+
+        private boolean isFrame() {
+            return buffer.position() > 0 && TransferProtocol.isFrame(buffer.get(0));
+        }
+
+        TransferProtocol.Request parse() {
+            if (isFrame()) {
+                return TransferProtocol.parseRequestFrame(ByteBuffer.wrap(buffer.array(), 0, buffer.position()));
+            }
+            return TransferProtocol.parseRequest(new String(buffer.array(), 0, lineEnd, StandardCharsets.US_ASCII).trim());
+        }
+    }
+}
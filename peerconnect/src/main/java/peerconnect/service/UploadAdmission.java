@@ -0,0 +1,206 @@
+package peerconnect.service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Decides whether an upload may start before any of its body is read. The declared length must
+ * fit the size limit, the upload directory must keep a free-space reserve after every admitted
+ * upload is written, and all admitted uploads together must fit the in-flight byte budget.
+ * Uploads without a declared length are counted at the size limit. Chunked uploads hold the
+ * disk space of their whole file from the start, as their parts arrive later into a sparse file.
+ */
+public class UploadAdmission {
+
+    private static final Logger logger = Logger.getLogger(UploadAdmission.class.getName());
+
+    public enum Rejection {
+        // the declared length is over the size limit; answered with 413
+        TOO_LARGE,
+        // the disk would drop below its reserve; answered with 503
+        DISK_FULL,
+        // the in-flight byte budget is used up; answered with 503
+        BUSY
+    }
+
+    /**
+     * Thrown by {@link #admit(long)}; the body has not been read.
+     */
+    public static class RejectedException extends Exception {
+
+        public final Rejection reason;
+
+        RejectedException(Rejection reason, String message) {
+            super(message);
+            this.reason = reason;
+        }
+    }
+
+    private final Path uploadDir;
+    private final long maxUploadSize;
+    private final long budget;
+    private final long minFreeSpace;
+
+    private long reserved;
+    private int inFlight;
+    // disk space promised to chunked uploads and not yet written
+    private long held;
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong[] rejected = new AtomicLong[Rejection.values().length];
+
+    public UploadAdmission(String uploadDir, long maxUploadSize, long budget, long minFreeSpace) {
+        this.uploadDir = Paths.get(uploadDir);
+        this.maxUploadSize = maxUploadSize;
+        this.budget = budget;
+        this.minFreeSpace = minFreeSpace;
+        for (int i = 0; i < rejected.length; i++) {
+            rejected[i] = new AtomicLong();
+        }
+    }
+
+    /**
+     * Reserves room for an upload of the declared length (-1 if unknown). The returned ticket
+     * must be closed once the upload is stored or abandoned.
+     */
+    public Ticket admit(long contentLength) throws RejectedException {
+        return admit(contentLength, false);
+    }
+
+    /**
+     * As {@link #admit(long)}; inHeldSpace skips the free-space check for a part of a chunked
+     * upload, whose bytes its {@link Space} already holds.
+     */
+    public Ticket admit(long contentLength, boolean inHeldSpace) throws RejectedException {
+        if (contentLength > maxUploadSize) {
+            throw reject(Rejection.TOO_LARGE, "Declared length " + contentLength + " is over the limit of " + maxUploadSize);
+        }
+        long bytes = contentLength < 0 ? maxUploadSize : contentLength;
+        // read outside the lock; a stale figure only errs by what finished meanwhile
+        long usable = usableSpace();
+        synchronized (this) {
+            if (reserved > 0 && reserved + bytes > budget) {
+                throw reject(Rejection.BUSY, inFlight + " uploads are holding " + reserved + " of " + budget + " bytes");
+            }
+            if (!inHeldSpace && usable - reserved - held - bytes < minFreeSpace) {
+                throw reject(Rejection.DISK_FULL, "Only " + usable + " bytes free in " + uploadDir);
+            }
+            reserved += bytes;
+            inFlight++;
+        }
+        admitted.incrementAndGet();
+        return new Ticket(bytes);
+    }
+
+    /**
+     * Holds disk space for a chunked upload of size bytes. Its parts are admitted with
+     * inHeldSpace and give back what they write; closing the space gives back the rest.
+     */
+    public Space hold(long size) throws RejectedException {
+        long usable = usableSpace();
+        synchronized (this) {
+            if (usable - reserved - held - size < minFreeSpace) {
+                throw reject(Rejection.DISK_FULL, "Only " + usable + " bytes free in " + uploadDir + " for " + size);
+            }
+            held += size;
+        }
+        return new Space(size);
+    }
+
+    private long usableSpace() {
+        try {
+            return Files.getFileStore(uploadDir).getUsableSpace();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not read free space of " + uploadDir + ": " + e.getMessage(), e);
+            return Long.MAX_VALUE;
+        }
+    }
+
+    private RejectedException reject(Rejection reason, String message) {
+        rejected[reason.ordinal()].incrementAndGet();
+        return new RejectedException(reason, message);
+    }
+
+    private synchronized void release(long bytes) {
+        reserved -= bytes;
+        inFlight--;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized long getReservedBytes() {
+        return reserved;
+    }
+
+    public synchronized long getHeldBytes() {
+        return held;
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    public long getAdmitted() {
+        return admitted.get();
+    }
+
+    public long getRejected(Rejection reason) {
+        return rejected[reason.ordinal()].get();
+    }
+
+    /**
+     * An admitted upload's reservation; closing it more than once is harmless.
+     */
+    public class Ticket implements AutoCloseable {
+
+        private final long bytes;
+        private boolean closed;
+
+        Ticket(long bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            }
+            release(bytes);
+        }
+    }
+
+    /**
+     * Disk space held for a chunked upload; closing it more than once is harmless.
+     */
+    public class Space implements AutoCloseable {
+
+        private long remaining;
+
+        Space(long remaining) {
+            this.remaining = remaining;
+        }
+
+        // Gives back space that a part now takes on disk, where usableSpace() counts it.
+        public void written(long bytes) {
+            synchronized (UploadAdmission.this) {
+                long freed = Math.min(bytes, remaining);
+                remaining -= freed;
+                held -= freed;
+            }
+        }
+
+        @Override
+        public void close() {
+            written(Long.MAX_VALUE);
+        }
+    }
+}
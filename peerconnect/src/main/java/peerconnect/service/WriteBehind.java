@@ -0,0 +1,333 @@
+package peerconnect.service;
+
+import peerconnect.utils.BufferPool;
+import peerconnect.utils.ConfigUtils;
+import peerconnect.utils.ThreadUtils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes uploads to disk behind the thread receiving them. Received bytes are copied into
+ * pooled direct buffers; each full buffer is handed to an AsynchronousFileChannel whose writes
+ * run on dedicated writer threads, so the network and the disk work at the same time. An upload
+ * may have a few buffers in flight; once they are all queued its receiving thread waits, so a
+ * slow disk slows the sender instead of filling memory.
+ * <p>
+ * Durability is set once for all uploads: NONE leaves the data to the page cache,
+ * ON_COMPLETE forces each file to disk before it is stored, and GROUP_COMMIT has one thread
+ * force the files of all uploads finishing within a short window together.
+ */
+public class WriteBehind {
+
+    private static final Logger logger = Logger.getLogger(WriteBehind.class.getName());
+
+    public enum Durability {
+        // no fsync; a crash of the machine may lose recent uploads
+        NONE,
+        // fsync every upload before it is stored
+        ON_COMPLETE,
+        // fsync uploads finishing close together in one batch
+        GROUP_COMMIT
+    }
+
+    private final Durability durability;
+    private final BufferPool buffers;
+    private final int buffersPerFile;
+    private final long groupCommitNanos;
+    private final ExecutorService writers;
+    private final BlockingQueue<Sync> pendingSyncs = new LinkedBlockingQueue<>();
+    private final AtomicLong groupCommits = new AtomicLong();
+    private final AtomicLong syncs = new AtomicLong();
+
+    public WriteBehind(Durability durability, int bufferSize, int buffersPerFile, int writerThreads, long groupCommitMillis) {
+        this.durability = durability;
+        this.buffers = new BufferPool(bufferSize, 64);
+        this.buffersPerFile = buffersPerFile;
+        this.groupCommitNanos = TimeUnit.MILLISECONDS.toNanos(groupCommitMillis);
+        this.writers = ThreadUtils.newExecutor(ThreadUtils.ExecutionMode.PLATFORM, "upload-writer", writerThreads);
+        if (durability == Durability.GROUP_COMMIT) {
+            Thread committer = new Thread(this::groupCommit, "upload-group-commit");
+            committer.setDaemon(true);
+            committer.start();
+        }
+    }
+
+    public static WriteBehind fromConfig() {
+        return new WriteBehind(
+                ConfigUtils.getEnum("peerconnect.upload.durability", Durability.class, Durability.NONE),
+                ConfigUtils.getInt("peerconnect.upload.writeBufferSize", 256 * 1024),
+                ConfigUtils.getInt("peerconnect.upload.writeBuffers", 4),
+                ConfigUtils.getInt("peerconnect.upload.writerThreads", 2),
+                ConfigUtils.getLong("peerconnect.upload.groupCommitMillis", 5));
+    }
+
+    // Creates (or truncates) file and returns the stream to fill it.
+    public Stream open(Path file) throws IOException {
+        return new Stream(AsynchronousFileChannel.open(file,
+                EnumSet.of(StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE),
+                writers));
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    // Batches forced by the group committer, and the files forced in them.
+    public long getGroupCommits() {
+        return groupCommits.get();
+    }
+
+    public long getSyncs() {
+        return syncs.get();
+    }
+
+    // Waits for the first request, gives others the window to join it, then forces them all.
+    private void groupCommit() {
+        List<Sync> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(pendingSyncs.take());
+                long deadline = System.nanoTime() + groupCommitNanos;
+                long left;
+                while ((left = deadline - System.nanoTime()) > 0) {
+                    Sync next = pendingSyncs.poll(left, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                pendingSyncs.drainTo(batch);
+            } catch (InterruptedException e) {
+                return;
+            }
+            List<Throwable> failures = new ArrayList<>(batch.size());
+            for (Sync sync : batch) {
+                try {
+                    sync.channel.force(false);
+                    failures.add(null);
+                } catch (IOException | RuntimeException e) {
+                    failures.add(e);
+                }
+            }
+            // counted before anyone is released, so a finished upload sees its own commit
+            groupCommits.incrementAndGet();
+            syncs.addAndGet(batch.size());
+            for (int i = 0; i < batch.size(); i++) {
+                if (failures.get(i) == null) {
+                    batch.get(i).done.complete(null);
+                } else {
+                    batch.get(i).done.completeExceptionally(failures.get(i));
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    private static final class Sync {
+
+        final AsynchronousFileChannel channel;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Sync(AsynchronousFileChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * One file being written. Not thread safe; either finish() or abort() must be called, and
+     * close() is abort(), so only finish() keeps a partly filled last buffer.
+     */
+    public final class Stream extends OutputStream {
+
+        private final AsynchronousFileChannel channel;
+        private final Semaphore slots = new Semaphore(buffersPerFile);
+        private volatile Throwable failure;
+        private ByteBuffer current;
+        private long position;
+        private long waitNanos;
+        private boolean closed;
+
+        Stream(AsynchronousFileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            checkFailure();
+            while (len > 0) {
+                if (current == null) {
+                    current = buffers.acquire();
+                }
+                int n = Math.min(len, current.remaining());
+                current.put(b, off, n);
+                off += n;
+                len -= n;
+                if (!current.hasRemaining()) {
+                    submit();
+                }
+            }
+        }
+
+        // Queues the current buffer, waiting if this file already has all its buffers in flight.
+        private void submit() throws IOException {
+            ByteBuffer buffer = current;
+            current = null;
+            buffer.flip();
+            long at = position;
+            position += buffer.remaining();
+            long start = System.nanoTime();
+            try {
+                slots.acquire();
+            } catch (InterruptedException e) {
+                buffers.release(buffer);
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for the disk");
+            } finally {
+                waitNanos += System.nanoTime() - start;
+            }
+            channel.write(buffer, at, at, new Write(buffer));
+        }
+
+        // Blocks until every queued buffer is on the channel.
+        private void drain() throws InterruptedIOException {
+            try {
+                slots.acquire(buffersPerFile);
+                slots.release(buffersPerFile);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for the disk");
+            }
+        }
+
+        private void checkFailure() throws IOException {
+            Throwable cause = failure;
+            if (cause != null) {
+                throw new IOException("Writing the upload failed: " + cause.getMessage(), cause);
+            }
+        }
+
+        /**
+         * Writes out what is left, waits for all writes and makes the file as durable as
+         * configured, then closes it.
+         */
+        public void finish() throws IOException {
+            if (closed) {
+                return;
+            }
+            long start = System.nanoTime();
+            try {
+                if (current != null && current.position() > 0) {
+                    submit();
+                }
+                drain();
+                checkFailure();
+                if (durability == Durability.ON_COMPLETE) {
+                    channel.force(false);
+                    syncs.incrementAndGet();
+                } else if (durability == Durability.GROUP_COMMIT) {
+                    Sync sync = new Sync(channel);
+                    pendingSyncs.add(sync);
+                    sync.done.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for the group commit");
+            } catch (ExecutionException e) {
+                throw new IOException("Forcing the upload to disk failed: " + e.getCause().getMessage(), e.getCause());
+            } finally {
+                waitNanos += System.nanoTime() - start;
+                abort();
+            }
+        }
+
+        // Drops the buffered bytes and closes the file once its writes are done; idempotent.
+        public void abort() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (current != null) {
+                buffers.release(current);
+                current = null;
+            }
+            try {
+                drain();
+            } catch (InterruptedIOException e) {
+                logger.fine("Closing an upload file with writes still running");
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.log(Level.FINE, "Error closing upload file: " + e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public void close() {
+            abort();
+        }
+
+        // Time the writing thread spent waiting for the disk: on full buffers and in finish().
+        public long getWaitNanos() {
+            return waitNanos;
+        }
+
+        private final class Write implements CompletionHandler<Integer, Long> {
+
+            private final ByteBuffer buffer;
+
+            Write(ByteBuffer buffer) {
+                this.buffer = buffer;
+            }
+
+            @Override
+            public void completed(Integer written, Long at) {
+                if (buffer.hasRemaining()) {
+                    long next = at + written;
+                    channel.write(buffer, next, next, this);
+                    return;
+                }
+                done();
+            }
+
+            @Override
+            public void failed(Throwable e, Long at) {
+                failure = e;
+                done();
+            }
+
+            private void done() {
+                buffers.release(buffer);
+                slots.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package peerconnect.service;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes the files of a share as one ZIP straight to the connection, without an archive on
+ * disk. Files worth compressing are deflated; media and archives are stored as they are, which
+ * costs no CPU but needs their CRC before their data (see {@link SharedFile#crc32()}).
+ */
+final class ZipStreamer {
+
+    private ZipStreamer() {
+    }
+
+    /**
+     * Writes the archive and finishes it without closing out. Returns the bytes written; the
+     * throttle is charged for the file bytes read, as for gzip bodies.
+     */
+    static long write(List<SharedFile> files, OutputStream out, int bufferSize, int level,
+                      FileTransfer.Throttle throttle) throws IOException {
+        CountingOutputStream counted = new CountingOutputStream(out);
+        ZipOutputStream zip = new ZipOutputStream(counted);
+        zip.setLevel(level);
+        for (SharedFile file : files) {
+            ZipEntry entry = new ZipEntry(file.name);
+            entry.setTime(new File(file.path).lastModified());
+            if (file.codec == Compression.Codec.IDENTITY) {
+                entry.setMethod(ZipEntry.STORED);
+                entry.setSize(file.size);
+                entry.setCompressedSize(file.size);
+                entry.setCrc(file.crc32());
+            }
+            zip.putNextEntry(entry);
+            try (InputStream in = new FileInputStream(file.path)) {
+                long copied = FileTransfer.streamCopy(in, zip, bufferSize, file.size, throttle);
+                if (copied != file.size) {
+                    throw new IOException(file.name + " has " + copied + " bytes, expected " + file.size);
+                }
+            }
+            zip.closeEntry();
+        }
+        zip.finish();
+        return counted.count;
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream {
+
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package peerconnect.utils;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Buffers of one size, kept for reuse. Allocating a direct buffer zeroes it and its memory is
+ * only freed by a later GC, and a fresh 64 KB array per request is most of the garbage a small
+ * request makes, so hot paths take them from here instead. At most maxPooled idle buffers are
+ * kept in the shared queue; extra ones are left to the collector.
+ * <p>
+ * Each platform thread also keeps the last buffer it released, so a thread that copies one
+ * stream after another never touches the queue. Virtual threads skip that slot: there is one
+ * per task and a parked buffer would die with it.
+ */
+public class BufferPool {
+
+    private static final MethodHandle IS_VIRTUAL = isVirtualHandle();
+    private static final ConcurrentMap<Integer, BufferPool> HEAP_POOLS = new ConcurrentHashMap<>();
+
+    private final int bufferSize;
+    private final int maxPooled;
+    private final boolean direct;
+    private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+    private final ThreadLocal<ByteBuffer> local = new ThreadLocal<>();
+
+    public BufferPool(int bufferSize, int maxPooled) {
+        this(bufferSize, maxPooled, true);
+    }
+
+    public BufferPool(int bufferSize, int maxPooled, boolean direct) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+        this.direct = direct;
+    }
+
+    /**
+     * The process-wide pool of heap buffers of the given size, for the copy loops working on
+     * byte arrays. peerconnect.buffers.pooled caps the idle buffers of each size.
+     */
+    public static BufferPool heap(int bufferSize) {
+        BufferPool pool = HEAP_POOLS.get(bufferSize);
+        if (pool == null) {
+            pool = HEAP_POOLS.computeIfAbsent(bufferSize,
+                    size -> new BufferPool(size, ConfigUtils.getInt("peerconnect.buffers.pooled", 64), false));
+        }
+        return pool;
+    }
+
+    // A cleared buffer of bufferSize bytes.
+    public ByteBuffer acquire() {
+        if (!isVirtual()) {
+            ByteBuffer buffer = local.get();
+            if (buffer != null) {
+                local.set(null);
+                return buffer;
+            }
+        }
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+        }
+        pooled.decrementAndGet();
+        return buffer;
+    }
+
+    // Returns a buffer taken from acquire(); it must not be used afterwards.
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != bufferSize || buffer.isDirect() != direct) {
+            return;
+        }
+        buffer.clear();
+        if (!isVirtual() && local.get() == null) {
+            local.set(buffer);
+            return;
+        }
+        if (pooled.incrementAndGet() <= maxPooled) {
+            free.offer(buffer);
+        } else {
+            pooled.decrementAndGet();
+        }
+    }
+
+    /**
+     * A BufferedInputStream over in whose buffer comes from this heap pool and goes back to it
+     * when the stream is closed.
+     */
+    public InputStream buffered(InputStream in) {
+        if (direct) {
+            throw new IllegalStateException("Streams need a heap buffer pool");
+        }
+        return new PooledInputStream(in, this);
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    // Idle buffers in the shared queue; the per-thread ones are not counted.
+    public int getPooled() {
+        return pooled.get();
+    }
+
+    private static boolean isVirtual() {
+        if (IS_VIRTUAL == null) {
+            return false;
+        }
+        try {
+            return (boolean) IS_VIRTUAL.invokeExact(Thread.currentThread());
+        } catch (Throwable e) {
+            return false;
+        }
+    }
+
+    // Thread.isVirtual() exists from JDK 21 on; the build targets 17.
+    private static MethodHandle isVirtualHandle() {
+        try {
+            return MethodHandles.publicLookup().findVirtual(Thread.class, "isVirtual", MethodType.methodType(boolean.class));
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static final class PooledInputStream extends BufferedInputStream {
+
+        private final BufferPool pool;
+        private ByteBuffer pooledBuffer;
+
+        PooledInputStream(InputStream in, BufferPool pool) {
+            super(in, 1);
+            this.pool = pool;
+            this.pooledBuffer = pool.acquire();
+            this.buf = pooledBuffer.array();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                // super.close() dropped buf, so nothing reads the array any more
+                synchronized (this) {
+                    if (pooledBuffer != null) {
+                        pool.release(pooledBuffer);
+                        pooledBuffer = null;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package peerconnect.utils;
+
+/**
+ * Allocation-free byte pattern search. {@link #indexOf} is a Boyer-Moore-Horspool scan
+ * driven by a precomputed skip table; {@link #partialMatchAtEnd} reports how much of the
+ * pattern a chunk ends with, so a streaming reader can carry those bytes into the next chunk.
+ * Instances are immutable and safe to share between threads.
+ */
+public final class BytePatternMatcher {
+
+    private final byte[] pattern;
+    private final int[] skip;
+    private final int[] failure;
+
+    public BytePatternMatcher(byte[] pattern) {
+        if (pattern.length == 0) {
+            throw new IllegalArgumentException("Pattern must not be empty");
+        }
+        this.pattern = pattern.clone();
+        this.skip = new int[256];
+        this.failure = new int[pattern.length];
+
+        int m = pattern.length;
+        for (int i = 0; i < skip.length; i++) {
+            skip[i] = m;
+        }
+        for (int i = 0; i < m - 1; i++) {
+            skip[pattern[i] & 0xff] = m - 1 - i;
+        }
+
+        // KMP prefix function, used to resume a match that straddles two chunks
+        int k = 0;
+        for (int i = 1; i < m; i++) {
+            while (k > 0 && pattern[i] != pattern[k]) {
+                k = failure[k - 1];
+            }
+            if (pattern[i] == pattern[k]) {
+                k++;
+            }
+            failure[i] = k;
+        }
+    }
+
+    public int length() {
+        return pattern.length;
+    }
+
+    /**
+     * Returns the index of the first occurrence of the pattern in data[from, to), or -1.
+     */
+    public int indexOf(byte[] data, int from, int to) {
+        int m = pattern.length;
+        int last = m - 1;
+        byte lastByte = pattern[last];
+        int i = from;
+        while (i <= to - m) {
+            byte b = data[i + last];
+            if (b == lastByte) {
+                int j = last - 1;
+                while (j >= 0 && data[i + j] == pattern[j]) {
+                    j--;
+                }
+                if (j < 0) {
+                    return i;
+                }
+            }
+            i += skip[b & 0xff];
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the length of the longest suffix of data[from, to) that is a proper prefix of
+     * the pattern. Those bytes must be kept until more input shows whether the match completes.
+     */
+    public int partialMatchAtEnd(byte[] data, int from, int to) {
+        int m = pattern.length;
+        int state = 0;
+        for (int i = Math.max(from, to - (m - 1)); i < to; i++) {
+            byte b = data[i];
+            while (state > 0 && b != pattern[state]) {
+                state = failure[state - 1];
+            }
+            if (b == pattern[state]) {
+                state++;
+            }
+            if (state == m) {
+                state = failure[m - 1];
+            }
+        }
+        return state;
+    }
+}
@@ -0,0 +1,57 @@
+package peerconnect.utils;
+
+import java.util.Locale;
+import java.util.logging.Logger;
+
+/**
+ * Reads settings from a system property (-Dpeerconnect.transfer.mode=stream) or, failing
+ * that, the matching environment variable (PEERCONNECT_TRANSFER_MODE=stream) so the same
+ * keys work from the command line and from docker-compose.
+ */
+public class ConfigUtils {
+
+    private static final Logger logger = Logger.getLogger(ConfigUtils.class.getName());
+
+    public static String getString(String key, String defaultValue) {
+        String value = System.getProperty(key);
+        if (value == null) {
+            value = System.getenv(key.toUpperCase(Locale.ROOT).replace('.', '_'));
+        }
+        return value == null || value.isBlank() ? defaultValue : value.trim();
+    }
+
+    public static int getInt(String key, int defaultValue) {
+        return (int) getLong(key, defaultValue);
+    }
+
+    public static long getLong(String key, long defaultValue) {
+        String value = getString(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            logger.warning("Invalid number for " + key + ": " + value + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public static boolean getBoolean(String key, boolean defaultValue) {
+        String value = getString(key, null);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+
+    public static <E extends Enum<E>> E getEnum(String key, Class<E> type, E defaultValue) {
+        String value = getString(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Enum.valueOf(type, value.toUpperCase(Locale.ROOT).replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            logger.warning("Invalid value for " + key + ": " + value + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package peerconnect.utils;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free allocator over a contiguous ID range, one bit per ID. Allocation reserves a slot in
+ * the free count first, so a free bit is known to exist, then claims it with a CAS starting from
+ * a random word. Each probe covers 64 IDs, so allocation stays cheap until the range is nearly
+ * full, and release is a single CAS. Starting at a random position keeps IDs hard to guess.
+ */
+public class IdAllocator {
+
+    private final int first;
+    private final int capacity;
+    private final AtomicLongArray bits;
+    private final AtomicInteger allocated = new AtomicInteger();
+
+    public IdAllocator(int first, int last) {
+        if (last < first) {
+            throw new IllegalArgumentException("Empty ID range: " + first + ".." + last);
+        }
+        this.first = first;
+        this.capacity = last - first + 1;
+        this.bits = new AtomicLongArray((capacity + 63) >>> 6);
+        // mark the unused tail of the last word as taken so it is never handed out
+        int tail = capacity & 63;
+        if (tail != 0) {
+            bits.set(bits.length() - 1, -1L << tail);
+        }
+    }
+
+    // Returns a free ID, or -1 if the range is exhausted.
+    public int allocate() {
+        if (allocated.incrementAndGet() > capacity) {
+            allocated.decrementAndGet();
+            return -1;
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int words = bits.length();
+        int w = random.nextInt(words);
+        while (true) {
+            long word = bits.get(w);
+            long free = ~word;
+            if (free != 0) {
+                int rotation = random.nextInt(64);
+                int bit = (Long.numberOfTrailingZeros(Long.rotateRight(free, rotation)) + rotation) & 63;
+                if (bits.compareAndSet(w, word, word | (1L << bit))) {
+                    return first + (w << 6) + bit;
+                }
+                continue;
+            }
+            w = w + 1 == words ? 0 : w + 1;
+        }
+    }
+
+    // Marks a specific ID as taken; returns false if it was already allocated or is out of range.
+    public boolean reserve(int id) {
+        int index = id - first;
+        if (index < 0 || index >= capacity) {
+            return false;
+        }
+        long mask = 1L << (index & 63);
+        // count first, like allocate(), so the count never trails the set bits
+        allocated.incrementAndGet();
+        while (true) {
+            long word = bits.get(index >>> 6);
+            if ((word & mask) != 0) {
+                allocated.decrementAndGet();
+                return false;
+            }
+            if (bits.compareAndSet(index >>> 6, word, word | mask)) {
+                return true;
+            }
+        }
+    }
+
+    // Returns the ID to the pool; false if it was not allocated.
+    public boolean release(int id) {
+        int index = id - first;
+        if (index < 0 || index >= capacity) {
+            return false;
+        }
+        long mask = 1L << (index & 63);
+        while (true) {
+            long word = bits.get(index >>> 6);
+            if ((word & mask) == 0) {
+                return false;
+            }
+            if (bits.compareAndSet(index >>> 6, word, word & ~mask)) {
+                allocated.decrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    public boolean contains(int id) {
+        return id >= first && id - first < capacity;
+    }
+
+    public int getAllocated() {
+        return allocated.get();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public double getOccupancy() {
+        return (double) allocated.get() / capacity;
+    }
+}
@@ -0,0 +1,228 @@
+package peerconnect.utils;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * A small metrics registry rendered in the Prometheus text format. Recording never locks:
+ * counters are LongAdders and histograms are arrays of atomic bucket counts, so the hot paths
+ * pay a few uncontended atomic adds per event. Only rendering walks the buckets.
+ */
+public class Metrics {
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    // metric name -> its series, in registration order
+    private final Map<String, Family> families = new LinkedHashMap<>();
+
+    public Counter counter(String name, String help) {
+        Counter counter = new Counter();
+        register(name, help, "counter", "", counter::get);
+        return counter;
+    }
+
+    // A counter kept elsewhere, read when rendered; labels look like reason="busy".
+    public void counter(String name, String help, String labels, LongSupplier value) {
+        register(name, help, "counter", labels, value);
+    }
+
+    public void gauge(String name, String help, LongSupplier value) {
+        register(name, help, "gauge", "", value);
+    }
+
+    /**
+     * A histogram of values recorded in some unit, rendered as a summary after multiplying by
+     * scale (1e-6 to record microseconds and expose seconds).
+     */
+    public Histogram histogram(String name, String help, double scale) {
+        Histogram histogram = new Histogram();
+        synchronized (families) {
+            Family family = family(name, help, "summary");
+            family.histogram = histogram;
+            family.scale = scale;
+        }
+        return histogram;
+    }
+
+    private void register(String name, String help, String type, String labels, LongSupplier value) {
+        synchronized (families) {
+            family(name, help, type).series.add(new Series(labels, value));
+        }
+    }
+
+    private Family family(String name, String help, String type) {
+        Family family = families.computeIfAbsent(name, n -> new Family(help, type));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException(name + " is already registered as a " + family.type);
+        }
+        return family;
+    }
+
+    public String render() {
+        StringBuilder out = new StringBuilder(4096);
+        synchronized (families) {
+            for (Map.Entry<String, Family> entry : families.entrySet()) {
+                String name = entry.getKey();
+                Family family = entry.getValue();
+                out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+                out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+                if (family.histogram != null) {
+                    renderSummary(out, name, family.histogram, family.scale);
+                    continue;
+                }
+                for (Series series : family.series) {
+                    out.append(name);
+                    if (!series.labels.isEmpty()) {
+                        out.append('{').append(series.labels).append('}');
+                    }
+                    out.append(' ').append(series.value.getAsLong()).append('\n');
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    private static void renderSummary(StringBuilder out, String name, Histogram histogram, double scale) {
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        for (double q : QUANTILES) {
+            out.append(name).append("{quantile=\"").append(q).append("\"} ")
+                    .append(snapshot.percentile(q) * scale).append('\n');
+        }
+        out.append(name).append("_sum ").append(snapshot.sum * scale).append('\n');
+        out.append(name).append("_count ").append(snapshot.count).append('\n');
+    }
+
+    private static final class Family {
+
+        final String help;
+        final String type;
+        final List<Series> series = new ArrayList<>();
+        Histogram histogram;
+        double scale;
+
+        Family(String help, String type) {
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    private static final class Series {
+
+        final String labels;
+        final LongSupplier value;
+
+        Series(String labels, LongSupplier value) {
+            this.labels = labels;
+            this.value = value;
+        }
+    }
+
+    public static final class Counter {
+
+        private final LongAdder adder = new LongAdder();
+
+        public void increment() {
+            adder.increment();
+        }
+
+        public void add(long n) {
+            adder.add(n);
+        }
+
+        public long get() {
+            return adder.sum();
+        }
+    }
+
+    /**
+     * Log-linear buckets in the style of HdrHistogram: every power of two is split into
+     * SUB_BUCKETS equal buckets, so a reported value is within 1/SUB_BUCKETS (6.25%) of the
+     * recorded ones across the whole non-negative long range, in a fixed 7.5 KB.
+     */
+    public static final class Histogram {
+
+        private static final int SUB_BITS = 4;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+        static final int BUCKETS = (64 - SUB_BITS) << SUB_BITS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+
+        // Negative values are recorded as 0.
+        public void record(long value) {
+            long v = Math.max(0, value);
+            counts.incrementAndGet(index(v));
+            count.increment();
+            sum.add(v);
+        }
+
+        static int index(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+            return ((exponent - SUB_BITS + 1) << SUB_BITS) + sub;
+        }
+
+        // The largest value that lands in the bucket.
+        static long upperBound(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int exponent = (index >>> SUB_BITS) + SUB_BITS - 1;
+            int shift = exponent - SUB_BITS;
+            return ((long) (SUB_BUCKETS | (index & (SUB_BUCKETS - 1))) << shift) + (1L << shift) - 1;
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public Snapshot snapshot() {
+            long[] copy = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                copy[i] = counts.get(i);
+                total += copy[i];
+            }
+            // the bucket counts are the source of truth; count and sum may be a few events ahead
+            return new Snapshot(copy, total, sum.sum());
+        }
+
+        public static final class Snapshot {
+
+            private final long[] counts;
+            public final long count;
+            public final long sum;
+
+            Snapshot(long[] counts, long count, long sum) {
+                this.counts = counts;
+                this.count = count;
+                this.sum = sum;
+            }
+
+            // The value below which the fraction q of recordings fall; 0 if nothing was recorded.
+            public long percentile(double q) {
+                if (count == 0) {
+                    return 0;
+                }
+                long rank = Math.max(1, (long) Math.ceil(q * count));
+                long seen = 0;
+                for (int i = 0; i < counts.length; i++) {
+                    seen += counts[i];
+                    if (seen >= rank) {
+                        return upperBound(i);
+                    }
+                }
+                return upperBound(counts.length - 1);
+            }
+        }
+    }
+}
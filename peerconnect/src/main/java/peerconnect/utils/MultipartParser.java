@@ -0,0 +1,266 @@
+package peerconnect.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Streaming multipart/form-data parser. The request body is read through a fixed
+ * size buffer, borrowed from the shared {@link BufferPool} while parsing, and file
+ * bytes are handed to the {@link PartHandler} as they arrive, so heap use does not
+ * depend on the size of the upload.
+ */
+public class MultipartParser {
+
+    private static final Logger logger = Logger.getLogger(MultipartParser.class.getName());
+
+    static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_HEADER_LINE = 8 * 1024;
+    private static final int MAX_HEADER_LINES = 32;
+
+    public interface PartHandler {
+        OutputStream openPart(String filename, String contentType) throws IOException;
+    }
+
+    public static class SizeLimitExceededException extends IOException {
+        public SizeLimitExceededException(long limit) {
+            super("Request body exceeds the limit of " + limit + " bytes");
+        }
+    }
+
+    private final InputStream in;
+    private final BytePatternMatcher dashBoundary;
+    private final BytePatternMatcher delimiter;
+    private final long maxBytes;
+    private final BufferPool buffers;
+    private byte[] buffer;
+    private int pos;
+    private int limit;
+    private long totalBytes;
+    private boolean eof;
+
+    public MultipartParser(InputStream in, String boundary, long maxBytes) {
+        this(in, boundary, maxBytes, DEFAULT_BUFFER_SIZE);
+    }
+
+    MultipartParser(InputStream in, String boundary, long maxBytes, int bufferSize) {
+        this.in = in;
+        this.dashBoundary = new BytePatternMatcher(("--" + boundary).getBytes(StandardCharsets.ISO_8859_1));
+        this.delimiter = new BytePatternMatcher(("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1));
+        this.maxBytes = maxBytes;
+        this.buffers = BufferPool.heap(Math.max(bufferSize, delimiter.length() * 2));
+    }
+
+    public static String extractBoundary(String contentType) {
+        int idx = contentType.indexOf("boundary=");
+        if (idx == -1) {
+            return null;
+        }
+        String boundary = contentType.substring(idx + "boundary=".length());
+        int end = boundary.indexOf(';');
+        if (end != -1) {
+            boundary = boundary.substring(0, end);
+        }
+        boundary = boundary.trim();
+        if (boundary.length() >= 2 && boundary.startsWith("\"") && boundary.endsWith("\"")) {
+            boundary = boundary.substring(1, boundary.length() - 1);
+        }
+        return boundary.isEmpty() ? null : boundary;
+    }
+
+    /**
+     * Streams the first file part to the stream returned by the handler; other parts
+     * are skipped. Returns null when the body is not valid multipart data or holds no file.
+     */
+    public ParseResult parse(PartHandler handler) throws IOException {
+        List<ParseResult> files = parseAll(handler, 1, false);
+        return files == null || files.isEmpty() ? null : files.get(0);
+    }
+
+    /**
+     * Streams every file part, in order, to a stream the handler opens for it. Returns null
+     * when the body is not valid multipart data; more than maxFiles files is an
+     * IllegalArgumentException.
+     */
+    public List<ParseResult> parseAll(PartHandler handler, int maxFiles) throws IOException {
+        return parseAll(handler, maxFiles, true);
+    }
+
+    private List<ParseResult> parseAll(PartHandler handler, int maxFiles, boolean strict) throws IOException {
+        ByteBuffer pooled = buffers.acquire();
+        buffer = pooled.array();
+        try {
+            return parseParts(handler, maxFiles, strict);
+        } finally {
+            buffer = null;
+            buffers.release(pooled);
+        }
+    }
+
+    private List<ParseResult> parseParts(PartHandler handler, int maxFiles, boolean strict) throws IOException {
+        if (copyUntil(dashBoundary, OutputStream.nullOutputStream()) == -1) {
+            logger.warning("Opening boundary not found in multipart data.");
+            return null;
+        }
+
+        List<ParseResult> results = new ArrayList<>();
+        while (true) {
+            if (!ensure(2)) {
+                logger.warning("Multipart data ended after a boundary.");
+                return results;
+            }
+            if (buffer[pos] == '-' && buffer[pos + 1] == '-') {
+                return results;
+            }
+            String line = readLine();
+            if (!line.isBlank()) {
+                logger.warning("Malformed boundary line in multipart data.");
+                return results;
+            }
+
+            String fileName = null;
+            String contentType = "application/octet-stream";
+            int headerLines = 0;
+            while (!(line = readLine()).isEmpty()) {
+                if (++headerLines > MAX_HEADER_LINES) {
+                    throw new IOException("Too many part headers in the multipart data");
+                }
+                int colon = line.indexOf(':');
+                if (colon == -1) {
+                    continue;
+                }
+                String name = line.substring(0, colon).trim();
+                String value = line.substring(colon + 1).trim();
+                if (name.equalsIgnoreCase("Content-Disposition")) {
+                    fileName = extractFileName(value);
+                } else if (name.equalsIgnoreCase("Content-Type")) {
+                    contentType = value;
+                }
+            }
+
+            if (fileName != null && results.size() >= maxFiles && strict) {
+                throw new IllegalArgumentException("More than " + maxFiles + " files in one upload");
+            }
+            if (fileName == null || results.size() >= maxFiles) {
+                if (copyUntil(delimiter, OutputStream.nullOutputStream()) == -1) {
+                    logger.warning("Closing boundary not found in multipart data.");
+                    return results;
+                }
+                continue;
+            }
+
+            long size;
+            try (OutputStream out = handler.openPart(fileName, contentType)) {
+                size = copyUntil(delimiter, out);
+            }
+            if (size == -1) {
+                logger.warning("Closing boundary not found after file content.");
+                return null;
+            }
+            results.add(new ParseResult(fileName, contentType, size));
+        }
+    }
+
+    private static String extractFileName(String disposition) {
+        String marker = "filename=\"";
+        int start = disposition.indexOf(marker);
+        if (start == -1) {
+            return null;
+        }
+        int end = disposition.indexOf('"', start + marker.length());
+        if (end == -1) {
+            return null;
+        }
+        return disposition.substring(start + marker.length(), end);
+    }
+
+    // Copies bytes up to the next occurrence of the pattern and consumes the pattern.
+    // Returns the number of bytes copied, or -1 if the stream ended first.
+    private long copyUntil(BytePatternMatcher pattern, OutputStream out) throws IOException {
+        long copied = 0;
+        while (true) {
+            int idx = pattern.indexOf(buffer, pos, limit);
+            if (idx != -1) {
+                out.write(buffer, pos, idx - pos);
+                copied += idx - pos;
+                pos = idx + pattern.length();
+                return copied;
+            }
+            // a pattern split across reads shows up as a partial match at the end of the buffer
+            int safe = limit - pattern.partialMatchAtEnd(buffer, pos, limit);
+            out.write(buffer, pos, safe - pos);
+            copied += safe - pos;
+            pos = safe;
+            if (!fill()) {
+                return -1;
+            }
+        }
+    }
+
+    private String readLine() throws IOException {
+        while (true) {
+            for (int i = pos; i < limit - 1; i++) {
+                if (buffer[i] == '\r' && buffer[i + 1] == '\n') {
+                    String line = new String(buffer, pos, i - pos, StandardCharsets.UTF_8);
+                    pos = i + 2;
+                    return line;
+                }
+            }
+            if (limit - pos >= Math.min(MAX_HEADER_LINE, buffer.length)) {
+                throw new IOException("Multipart header line too long");
+            }
+            if (!fill()) {
+                throw new IOException("Unexpected end of multipart data in part headers");
+            }
+        }
+    }
+
+    private boolean ensure(int count) throws IOException {
+        while (limit - pos < count) {
+            if (!fill()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean fill() throws IOException {
+        if (eof) {
+            return false;
+        }
+        if (pos > 0) {
+            System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+        int read = in.read(buffer, limit, buffer.length - limit);
+        if (read == -1) {
+            eof = true;
+            return false;
+        }
+        totalBytes += read;
+        if (totalBytes > maxBytes) {
+            throw new SizeLimitExceededException(maxBytes);
+        }
+        limit += read;
+        return true;
+    }
+
+    public static class ParseResult {
+
+        public final String filename;
+        public final String contentType;
+        public final long size;
+
+        public ParseResult(String filename, String contentType, long size) {
+            this.filename = filename;
+            this.contentType = contentType;
+            this.size = size;
+        }
+    }
+}
@@ -1,17 +1,12 @@
 package peerconnect.utils;
 
-import java.util.Random;
-
 public class PortUtils {
 
+    public static final int DYNAMIC_STARTING_PORT = 49152;
+    public static final int DYNAMIC_ENDING_PORT = 65535;
 
-    public static int getPort(){
-
-        int DYNAMIC_STARTING_PORT = 49152;
-        int DYNAMIC_ENDING_PORT = 65535;
-
-        Random random = new Random();
-        return random.nextInt(DYNAMIC_ENDING_PORT - DYNAMIC_STARTING_PORT) + DYNAMIC_STARTING_PORT;
-
-    }
+    // Share IDs handed out by the shared transfer server sit above the port range,
+    // so an invite code alone tells which server model it belongs to.
+    public static final int SHARE_ID_START = 100_000;
+    public static final int SHARE_ID_END = 9_999_999;
 }
@@ -0,0 +1,91 @@
+package peerconnect.utils;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+public class ThreadUtils {
+
+    private static final Logger logger = Logger.getLogger(ThreadUtils.class.getName());
+
+    public enum ExecutionMode {
+        // pooled platform threads, concurrency capped by the pool size
+        PLATFORM,
+        // a virtual thread per task, concurrency capped by semaphores
+        VIRTUAL
+    }
+
+    public static ExecutionMode getExecutionMode() {
+        return ConfigUtils.getEnum("peerconnect.execution.mode", ExecutionMode.class, ExecutionMode.PLATFORM);
+    }
+
+    /**
+     * Platform mode uses a fixed pool of the given size (cached when size is 0). Virtual mode
+     * starts a virtual thread per task; the build targets Java 17, so the JDK 21 factory is looked
+     * up reflectively and a cached pool is used when the runtime does not have it.
+     */
+    public static ExecutorService newExecutor(ExecutionMode mode, String name, int platformThreads) {
+        if (mode == ExecutionMode.VIRTUAL) {
+            try {
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) factory.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                logger.log(Level.WARNING, "Virtual threads need JDK 21+, falling back to platform threads for " + name);
+                return Executors.newCachedThreadPool(namedThreads(name));
+            }
+        }
+        return platformThreads > 0
+                ? Executors.newFixedThreadPool(platformThreads, namedThreads(name))
+                : Executors.newCachedThreadPool(namedThreads(name));
+    }
+
+    /**
+     * At most threads platform threads, with room for queued tasks waiting for one; tasks beyond
+     * that are refused with a RejectedExecutionException instead of growing the pool or the
+     * queue. Idle threads exit after a minute.
+     */
+    public static ExecutorService newBoundedExecutor(String name, int threads, int queued) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                queued > 0 ? new ArrayBlockingQueue<>(queued) : new SynchronousQueue<>(),
+                namedThreads(name), new ThreadPoolExecutor.AbortPolicy());
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    // Runs each task on the delegate once a permit is free. The wait happens inside the task,
+    // which is cheap on a virtual thread and keeps the submitting thread from blocking.
+    public static Executor bounded(Executor delegate, Semaphore permits) {
+        return task -> delegate.execute(() -> {
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            try {
+                task.run();
+            } finally {
+                permits.release();
+            }
+        });
+    }
+
+    private static ThreadFactory namedThreads(String name) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,120 @@
+package peerconnect.utils;
+
+import com.google.common.net.InetAddresses;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * The reverse proxies whose X-Forwarded-For and X-Real-IP headers are believed, so per-client
+ * limits and loopback checks see the client behind them instead of the proxy. Entries are
+ * addresses or CIDR ranges; with none configured the headers are ignored, as anyone can send them.
+ */
+public class TrustedProxies {
+
+    private static final Logger logger = Logger.getLogger(TrustedProxies.class.getName());
+
+    private final List<Range> ranges = new ArrayList<>();
+
+    // A comma-separated list such as "127.0.0.1, 172.16.0.0/12, ::1".
+    public TrustedProxies(String list) {
+        for (String entry : list.split(",")) {
+            if (entry.isBlank()) {
+                continue;
+            }
+            try {
+                ranges.add(Range.parse(entry.trim()));
+            } catch (IllegalArgumentException e) {
+                logger.warning("Ignoring invalid peerconnect.http.trustedProxies entry: " + entry);
+            }
+        }
+    }
+
+    public static TrustedProxies fromConfig() {
+        return new TrustedProxies(ConfigUtils.getString("peerconnect.http.trustedProxies", ""));
+    }
+
+    public boolean isTrusted(InetAddress address) {
+        for (Range range : ranges) {
+            if (range.contains(address)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The client a request came from. peer is the address of the connection; forwardedFor holds
+     * the X-Forwarded-For headers and realIp the X-Real-IP header, either null if absent. Only a
+     * trusted peer's headers are read: the client is the rightmost forwarded address not itself
+     * a trusted proxy, since everything left of it was written by the client.
+     */
+    public InetAddress clientAddress(InetAddress peer, List<String> forwardedFor, String realIp) {
+        if (!isTrusted(peer)) {
+            return peer;
+        }
+        if (forwardedFor != null && !forwardedFor.isEmpty()) {
+            List<String> hops = new ArrayList<>();
+            for (String header : forwardedFor) {
+                for (String hop : header.split(",")) {
+                    hops.add(hop.trim());
+                }
+            }
+            InetAddress client = peer;
+            for (int i = hops.size() - 1; i >= 0; i--) {
+                if (!InetAddresses.isInetAddress(hops.get(i))) {
+                    // nothing left of a malformed hop can be relied on
+                    return client;
+                }
+                client = InetAddresses.forString(hops.get(i));
+                if (!isTrusted(client)) {
+                    return client;
+                }
+            }
+            return client;
+        }
+        if (realIp != null && InetAddresses.isInetAddress(realIp.trim())) {
+            return InetAddresses.forString(realIp.trim());
+        }
+        return peer;
+    }
+
+    private static final class Range {
+
+        final byte[] network;
+        final int prefix;
+
+        Range(byte[] network, int prefix) {
+            this.network = network;
+            this.prefix = prefix;
+        }
+
+        // "10.0.0.0/8", or a single address
+        static Range parse(String entry) {
+            int slash = entry.indexOf('/');
+            byte[] network = InetAddresses.forString(slash < 0 ? entry : entry.substring(0, slash)).getAddress();
+            int prefix = slash < 0 ? network.length * 8 : Integer.parseInt(entry.substring(slash + 1));
+            if (prefix < 0 || prefix > network.length * 8) {
+                throw new IllegalArgumentException("Prefix out of range: " + entry);
+            }
+            return new Range(network, prefix);
+        }
+
+        boolean contains(InetAddress address) {
+            byte[] bytes = address.getAddress();
+            if (bytes.length != network.length) {
+                return false;
+            }
+            int bits = prefix;
+            for (int i = 0; i < bytes.length && bits > 0; i++, bits -= 8) {
+                int mask = bits >= 8 ? 0xff : 0xff << (8 - bits) & 0xff;
+                if ((bytes[i] & mask) != (network[i] & mask)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package peerconnect.benchmark;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import peerconnect.utils.BytePatternMatcher;
+
+/**
+ * Closing-boundary search over a binary upload body: the original naive scan against
+ * the Horspool matcher used by the streaming multipart parser.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+public class BoundarySearchBenchmark {
+
+    @Param({"1", "50", "200"})
+    public int sizeMb;
+
+    private byte[] data;
+    private byte[] boundary;
+    private BytePatternMatcher matcher;
+
+    @Setup
+    public void setup() {
+        boundary = "\r\n--WebKitFormBoundary7MA4YWxkTrZu0gW--".getBytes(StandardCharsets.ISO_8859_1);
+        data = new byte[sizeMb * 1024 * 1024];
+        new Random(7).nextBytes(data);
+        System.arraycopy(boundary, 0, data, data.length - boundary.length, boundary.length);
+        matcher = new BytePatternMatcher(boundary);
+    }
+
+    @Benchmark
+    public int legacyFindSequence() {
+        return findSequence(data, boundary, 0);
+    }
+
+    @Benchmark
+    public int horspool() {
+        return matcher.indexOf(data, 0, data.length);
+    }
+
+    // The scan ParseResult.findSequence used before the streaming parser, kept as the baseline.
+    static int findSequence(byte[] data, byte[] sequence, int start) {
+        outer:
+        for (int i = 0; i <= data.length - sequence.length; i++) {
+            for (int j = 0; j < sequence.length; j++) {
+                if (data[i + j] != sequence[j]) continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,115 @@
+package peerconnect.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import peerconnect.controller.FileController;
+
+/**
+ * Uploads and downloads through a real FileController on loopback, so the HTTP server, the
+ * multipart parser, the blob store, the transfer server and the download proxy are all in the
+ * path. Divide the size by the time per operation for MB/s. Repeated uploads of the same
+ * content are deduplicated by the blob store after being hashed, as in production.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Dpeerconnect.transfer.port=0", "-Dpeerconnect.transfer.compression=false"})
+public class EndToEndBenchmark {
+
+    private static final String BOUNDARY = "e2eboundary";
+    // held so the level set on it is not lost to garbage collection
+    private static final Logger ROOT = Logger.getLogger("peerconnect");
+
+    @Param({"16", "128"})
+    public int sizeMb;
+
+    private FileController controller;
+    private String base;
+    private byte[] content;
+    private byte[] head;
+    private byte[] tail;
+    private int shareId;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        // per-request INFO logging would dominate the small sizes
+        ROOT.setLevel(java.util.logging.Level.WARNING);
+        controller = new FileController(0);
+        controller.start();
+        base = "http://localhost:" + controller.getPort();
+
+        content = new byte[sizeMb * 1024 * 1024];
+        new Random(5).nextBytes(content);
+        head = ("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"file\"; filename=\"e2e.bin\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        tail = ("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+        shareId = upload();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        controller.stop();
+    }
+
+    @Benchmark
+    public int upload() throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(base + "/upload").openConnection();
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        conn.setFixedLengthStreamingMode((long) head.length + content.length + tail.length);
+        conn.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + BOUNDARY);
+        try (OutputStream out = conn.getOutputStream()) {
+            out.write(head);
+            out.write(content);
+            out.write(tail);
+        }
+        if (conn.getResponseCode() != 200) {
+            throw new IOException("Upload failed with " + conn.getResponseCode());
+        }
+        try (InputStream in = conn.getInputStream()) {
+            String json = new String(in.readAllBytes(), StandardCharsets.US_ASCII);
+            return Integer.parseInt(json.replaceAll(".*\"port\": (\\d+).*", "$1"));
+        }
+    }
+
+    @Benchmark
+    public long download() throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(base + "/download/" + shareId).openConnection();
+        byte[] buffer = new byte[64 * 1024];
+        long total = 0;
+        try (InputStream in = conn.getInputStream()) {
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                total += n;
+            }
+        }
+        if (total != content.length) {
+            throw new IOException("Downloaded " + total + " of " + content.length + " bytes");
+        }
+        return total;
+    }
+}
@@ -0,0 +1,63 @@
+package peerconnect.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import peerconnect.utils.MultipartParser;
+
+/**
+ * Parses a whole multipart upload body held in memory, so only the parser is measured: the
+ * boundary search, header parsing and the copy into the part stream. The bare boundary search
+ * is in BoundarySearchBenchmark.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+public class MultipartParserBenchmark {
+
+    private static final String BOUNDARY = "WebKitFormBoundary7MA4YWxkTrZu0gW";
+
+    @Param({"1", "50"})
+    public int sizeMb;
+
+    private byte[] body;
+
+    @Setup
+    public void setup() throws IOException {
+        byte[] file = new byte[sizeMb * 1024 * 1024];
+        new Random(7).nextBytes(file);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(file.length + 512);
+        out.write(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"note\"\r\n\r\nhello\r\n"
+                + "--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"file\"; filename=\"bench.bin\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.write(file);
+        out.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+        body = out.toByteArray();
+    }
+
+    @Benchmark
+    public long parse() throws IOException {
+        MultipartParser parser = new MultipartParser(new ByteArrayInputStream(body), BOUNDARY, Long.MAX_VALUE);
+        return parser.parse((fileName, contentType) -> OutputStream.nullOutputStream()).size;
+    }
+}
@@ -0,0 +1,90 @@
+package peerconnect.benchmark;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import peerconnect.service.Compression;
+import peerconnect.service.TransferProtocol;
+
+/**
+ * Encodes and decodes transfer headers in the text and the binary framing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ProtocolBenchmark {
+
+    private static final String NAME = "quarterly-report-final-v2.csv";
+    private static final String DIGEST = "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08";
+
+    private byte[] textRequest;
+    private byte[] frameRequest;
+    private byte[] textHeader;
+    private byte[] frameHeader;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        textRequest = encodeTextRequest();
+        frameRequest = encodeFrameRequest();
+        textHeader = encodeTextHeader();
+        frameHeader = encodeFrameHeader();
+    }
+
+    @Benchmark
+    public byte[] encodeTextRequest() {
+        return TransferProtocol.request(48213, 1 << 20, 1 << 24, Compression.Codec.GZIP);
+    }
+
+    @Benchmark
+    public byte[] encodeFrameRequest() {
+        return TransferProtocol.requestFrame(48213, 1 << 20, 1 << 24, Compression.Codec.GZIP);
+    }
+
+    @Benchmark
+    public TransferProtocol.Request decodeTextRequest() {
+        return TransferProtocol.parseRequest(new String(textRequest, 0, textRequest.length - 1));
+    }
+
+    @Benchmark
+    public TransferProtocol.Request decodeFrameRequest() {
+        return TransferProtocol.parseRequestFrame(ByteBuffer.wrap(frameRequest));
+    }
+
+    @Benchmark
+    public byte[] encodeTextHeader() {
+        return TransferProtocol.fileHeader(NAME, 1L << 30, 0, 1L << 30, Compression.Codec.IDENTITY, DIGEST);
+    }
+
+    @Benchmark
+    public byte[] encodeFrameHeader() {
+        return TransferProtocol.fileFrame(NAME, 1L << 30, 0, 1L << 30, Compression.Codec.IDENTITY, DIGEST);
+    }
+
+    @Benchmark
+    public TransferProtocol.Response decodeTextHeader() throws IOException {
+        return TransferProtocol.readResponse(new BufferedInputStream(new ByteArrayInputStream(textHeader)));
+    }
+
+    @Benchmark
+    public TransferProtocol.Response decodeFrameHeader() throws IOException {
+        return TransferProtocol.readResponse(new BufferedInputStream(new ByteArrayInputStream(frameHeader)));
+    }
+}
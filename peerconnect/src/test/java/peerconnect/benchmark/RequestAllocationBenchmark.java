@@ -0,0 +1,180 @@
+package peerconnect.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+import peerconnect.controller.FileController;
+import peerconnect.service.FileTransfer;
+import peerconnect.utils.MultipartParser;
+
+/**
+ * Garbage made per request by the small-request paths: a 404 answer, the copy loop every
+ * download and stream-mode transfer runs, and parsing a small upload. Run it with the GC
+ * profiler and compare gc.alloc.rate.norm, the bytes allocated per operation:
+ * <pre>mvn -Pbenchmark test -Djmh.args="RequestAllocationBenchmark -prof gc"</pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RequestAllocationBenchmark {
+
+    private static final String BOUNDARY = "allocboundary";
+    private static final int BODY_SIZE = 4096;
+
+    private final FileController.CORSHandler notFoundHandler = new FileController.CORSHandler();
+    private byte[] file;
+    private byte[] upload;
+
+    @Setup
+    public void setup() throws IOException {
+        file = new byte[BODY_SIZE];
+        new Random(4).nextBytes(file);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"file\"; filename=\"small.bin\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.write(file);
+        out.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+        upload = out.toByteArray();
+    }
+
+    @Benchmark
+    public int notFound() throws IOException {
+        StubExchange exchange = new StubExchange("GET");
+        notFoundHandler.handle(exchange);
+        return exchange.status;
+    }
+
+    @Benchmark
+    public long copy() throws IOException {
+        return FileTransfer.streamCopy(new ByteArrayInputStream(file), OutputStream.nullOutputStream(), 64 * 1024,
+                BODY_SIZE, null);
+    }
+
+    @Benchmark
+    public long parseUpload() throws IOException {
+        MultipartParser parser = new MultipartParser(new ByteArrayInputStream(upload), BOUNDARY, Long.MAX_VALUE);
+        return parser.parse((name, type) -> OutputStream.nullOutputStream()).size;
+    }
+
+    // Just enough of an exchange for a handler that answers without reading the request.
+    private static final class StubExchange extends HttpExchange {
+
+        private final String method;
+        private final Headers requestHeaders = new Headers();
+        private final Headers responseHeaders = new Headers();
+        int status;
+
+        StubExchange(String method) {
+            this.method = method;
+        }
+
+        @Override
+        public Headers getRequestHeaders() {
+            return requestHeaders;
+        }
+
+        @Override
+        public Headers getResponseHeaders() {
+            return responseHeaders;
+        }
+
+        @Override
+        public URI getRequestURI() {
+            return URI.create("/missing");
+        }
+
+        @Override
+        public String getRequestMethod() {
+            return method;
+        }
+
+        @Override
+        public HttpContext getHttpContext() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public InputStream getRequestBody() {
+            return InputStream.nullInputStream();
+        }
+
+        @Override
+        public OutputStream getResponseBody() {
+            return OutputStream.nullOutputStream();
+        }
+
+        @Override
+        public void sendResponseHeaders(int rCode, long responseLength) {
+            status = rCode;
+        }
+
+        @Override
+        public InetSocketAddress getRemoteAddress() {
+            return null;
+        }
+
+        @Override
+        public int getResponseCode() {
+            return status;
+        }
+
+        @Override
+        public InetSocketAddress getLocalAddress() {
+            return null;
+        }
+
+        @Override
+        public String getProtocol() {
+            return "HTTP/1.1";
+        }
+
+        @Override
+        public Object getAttribute(String name) {
+            return null;
+        }
+
+        @Override
+        public void setAttribute(String name, Object value) {
+        }
+
+        @Override
+        public void setStreams(InputStream i, OutputStream o) {
+        }
+
+        @Override
+        public HttpPrincipal getPrincipal() {
+            return null;
+        }
+    }
+}
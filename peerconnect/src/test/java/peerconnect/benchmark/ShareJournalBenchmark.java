@@ -0,0 +1,98 @@
+package peerconnect.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import peerconnect.service.BlobStore;
+import peerconnect.service.Compression;
+import peerconnect.service.FileSharer;
+import peerconnect.service.FileTransfer;
+import peerconnect.service.ShareJournal;
+import peerconnect.utils.Metrics;
+
+/**
+ * Startup with a full share journal: replaying it alone, and replaying it into a FileSharer,
+ * which also checks every file and re-arms every share. The shares are either all in the log
+ * or all in a snapshot. Each measurement is one cold start.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = "-Dpeerconnect.transfer.compression=false")
+public class ShareJournalBenchmark {
+
+    // held so the level set on it is not lost to garbage collection
+    private static final Logger ROOT = Logger.getLogger("peerconnect");
+    private static final int LOG_SIZE = 64 * 1024 * 1024;
+
+    @Param({"100000"})
+    public int shares;
+
+    @Param({"LOG", "SNAPSHOT"})
+    public String source;
+
+    private Path dir;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        ROOT.setLevel(java.util.logging.Level.WARNING);
+        dir = Files.createTempDirectory("peerconnect-journal-bench");
+        Path files = Files.createDirectories(dir.resolve("files"));
+        try (ShareJournal journal = new ShareJournal(dir.resolve("journal"), LOG_SIZE)) {
+            for (int i = 0; i < shares; i++) {
+                Path file = Files.createFile(files.resolve("shared-file-" + i + ".bin"));
+                journal.offered(new ShareJournal.Entry(100_000 + i, file.toString(), file.getFileName().toString(),
+                        null, 0, 0, 0, Compression.Codec.IDENTITY, Long.MAX_VALUE, 0));
+            }
+            if (source.equals("SNAPSHOT")) {
+                journal.snapshot();
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public int replay() throws IOException {
+        try (ShareJournal journal = new ShareJournal(dir.resolve("journal"), LOG_SIZE)) {
+            return journal.size();
+        }
+    }
+
+    @Benchmark
+    public int restore() throws IOException {
+        FileSharer sharer = new FileSharer(FileTransfer.Mode.ZERO_COPY, FileSharer.ServerMode.SHARED, 0,
+                new Metrics(), new ShareJournal(dir.resolve("journal"), LOG_SIZE));
+        try (BlobStore blobs = new BlobStore(dir.resolve("blobs").toString())) {
+            return sharer.restore(blobs);
+        } finally {
+            sharer.stop();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package peerconnect.benchmark;
+
+import java.nio.file.Paths;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import peerconnect.service.FileSharer;
+import peerconnect.service.FileTransfer;
+import peerconnect.utils.IdAllocator;
+import peerconnect.utils.PortUtils;
+
+/**
+ * Share bookkeeping under contention: allocating share IDs, offering and withdrawing shares,
+ * and the share cache lookup every download starts with. The shared file does not exist, so
+ * nothing touches the disk; compression sniffing is off for the same reason. One thread runs
+ * per core.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dpeerconnect.transfer.compression=false")
+public class ShareRegistryBenchmark {
+
+    // held so the level set on it is not lost to garbage collection
+    private static final Logger ROOT = Logger.getLogger("peerconnect");
+
+    private String missingFile;
+    private FileSharer sharer;
+    private IdAllocator ids;
+    private int sharedId;
+    private int missingId;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        // withdrawing a share logs that its file is missing; keep that out of the measurement
+        ROOT.setLevel(java.util.logging.Level.OFF);
+        sharer = new FileSharer(FileTransfer.Mode.ZERO_COPY, FileSharer.ServerMode.SHARED, 0);
+        ids = new IdAllocator(PortUtils.SHARE_ID_START, PortUtils.SHARE_ID_END);
+        missingFile = Paths.get(System.getProperty("java.io.tmpdir"), "peerconnect-bench-" + UUID.randomUUID()).toString();
+        sharedId = sharer.offerFile(missingFile);
+        missingId = sharedId == PortUtils.SHARE_ID_START ? sharedId + 1 : sharedId - 1;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        sharer.stop();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public int allocateAndReleaseId() {
+        int id = ids.allocate();
+        ids.release(id);
+        return id;
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public boolean offerAndUnshare() {
+        return sharer.unshare(sharer.offerFile(missingFile));
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public boolean lookupHit() {
+        return sharer.isShared(sharedId);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public boolean lookupMiss() {
+        return sharer.isShared(missingId);
+    }
+}
@@ -0,0 +1,184 @@
+package peerconnect.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import peerconnect.controller.FileController;
+
+/**
+ * Load-test harness: N slow clients trickle uploads and drain downloads while a probe client
+ * issues small, fast requests. Prints latency percentiles for both. Run it once per execution
+ * mode to compare, e.g.
+ *
+ *   mvn -Ploadtest test -Dloadtest.args="1000" -Dpeerconnect.execution.mode=platform
+ *   mvn -Ploadtest test -Dloadtest.args="1000" -Dpeerconnect.execution.mode=virtual
+ *
+ * Arguments: [clients] [slow chunk delay ms] [download size KB]
+ */
+public class SlowClientLoadTest {
+
+    private static final String BOUNDARY = "loadtestboundary";
+    private static final int CHUNK = 4 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int delayMs = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        int downloadKb = args.length > 2 ? Integer.parseInt(args[2]) : 1024;
+        if (System.getProperty("peerconnect.transfer.port") == null) {
+            System.setProperty("peerconnect.transfer.port", "0");
+        }
+
+        FileController controller = new FileController(0);
+        controller.start();
+        String base = "http://localhost:" + controller.getPort();
+        try {
+            byte[] downloadPayload = new byte[downloadKb * 1024];
+            new Random(1).nextBytes(downloadPayload);
+            int shareId = upload(base, downloadPayload, 0);
+
+            List<Long> slowUploads = Collections.synchronizedList(new ArrayList<>());
+            List<Long> slowDownloads = Collections.synchronizedList(new ArrayList<>());
+            List<Long> probeUploads = new ArrayList<>();
+            List<Long> probeDownloads = new ArrayList<>();
+            AtomicInteger failures = new AtomicInteger();
+            CountDownLatch done = new CountDownLatch(clients);
+            AtomicBoolean running = new AtomicBoolean(true);
+
+            byte[] slowPayload = new byte[64 * 1024];
+            for (int i = 0; i < clients; i++) {
+                boolean uploader = i % 2 == 0;
+                Thread client = new Thread(() -> {
+                    long start = System.nanoTime();
+                    try {
+                        if (uploader) {
+                            upload(base, slowPayload, delayMs);
+                            slowUploads.add(System.nanoTime() - start);
+                        } else {
+                            download(base, shareId, delayMs);
+                            slowDownloads.add(System.nanoTime() - start);
+                        }
+                    } catch (IOException e) {
+                        failures.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                });
+                client.setDaemon(true);
+                client.start();
+            }
+
+            Thread probe = new Thread(() -> {
+                byte[] small = "probe".getBytes(StandardCharsets.US_ASCII);
+                while (running.get()) {
+                    try {
+                        long start = System.nanoTime();
+                        int probeShare = upload(base, small, 0);
+                        probeUploads.add(System.nanoTime() - start);
+                        start = System.nanoTime();
+                        download(base, probeShare, 0);
+                        probeDownloads.add(System.nanoTime() - start);
+                        Thread.sleep(50);
+                    } catch (IOException e) {
+                        failures.incrementAndGet();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            });
+            probe.start();
+
+            done.await();
+            running.set(false);
+            probe.join();
+
+            System.out.println("execution mode: " + System.getProperty("peerconnect.execution.mode", "platform")
+                    + " | clients: " + clients + " | failures: " + failures.get());
+            report("slow /upload", slowUploads);
+            report("slow /download", slowDownloads);
+            report("probe /upload", probeUploads);
+            report("probe /download", probeDownloads);
+        } finally {
+            controller.stop();
+        }
+    }
+
+    private static int upload(String base, byte[] content, int delayMs) throws IOException {
+        byte[] head = ("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"file\"; filename=\"load.bin\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        byte[] tail = ("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+
+        HttpURLConnection conn = (HttpURLConnection) new URL(base + "/upload").openConnection();
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        conn.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + BOUNDARY);
+        conn.setFixedLengthStreamingMode(head.length + content.length + tail.length);
+        try (OutputStream out = conn.getOutputStream()) {
+            out.write(head);
+            for (int off = 0; off < content.length; off += CHUNK) {
+                out.write(content, off, Math.min(CHUNK, content.length - off));
+                out.flush();
+                pause(delayMs);
+            }
+            out.write(tail);
+        }
+        if (conn.getResponseCode() != 200) {
+            throw new IOException("upload failed: " + conn.getResponseCode());
+        }
+        try (InputStream in = conn.getInputStream()) {
+            String json = new String(in.readAllBytes(), StandardCharsets.US_ASCII);
+            return Integer.parseInt(json.replaceAll(".*\"port\": (\\d+).*", "$1"));
+        }
+    }
+
+    private static void download(String base, int shareId, int delayMs) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(base + "/download/" + shareId).openConnection();
+        if (conn.getResponseCode() != 200) {
+            throw new IOException("download failed: " + conn.getResponseCode());
+        }
+        byte[] buffer = new byte[CHUNK];
+        try (InputStream in = conn.getInputStream()) {
+            while (in.read(buffer) != -1) {
+                pause(delayMs);
+            }
+        }
+    }
+
+    private static void pause(int delayMs) throws IOException {
+        if (delayMs <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(delayMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted", e);
+        }
+    }
+
+    private static void report(String name, List<Long> samples) {
+        List<Long> sorted = new ArrayList<>(samples);
+        if (sorted.isEmpty()) {
+            System.out.println(name + ": no samples");
+            return;
+        }
+        Collections.sort(sorted);
+        System.out.printf("%-16s n=%-5d p50=%8.1f ms  p99=%8.1f ms  max=%8.1f ms%n", name, sorted.size(),
+                percentile(sorted, 0.50), percentile(sorted, 0.99), sorted.get(sorted.size() - 1) / 1e6);
+    }
+
+    private static double percentile(List<Long> sorted, double p) {
+        int index = (int) Math.ceil(p * sorted.size()) - 1;
+        return sorted.get(Math.max(0, index)) / 1e6;
+    }
+}
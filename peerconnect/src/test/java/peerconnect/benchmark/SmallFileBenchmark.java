@@ -0,0 +1,119 @@
+package peerconnect.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import peerconnect.controller.FileController;
+
+/**
+ * Requests per second for 4 KB files through a running FileController on loopback, from four
+ * clients reusing their connections the way HttpURLConnection does. noDelay=false and
+ * smallFileSize=0 is the server as it was before small files were served from memory and
+ * Nagle was turned off; every parameter set runs in its own JVM, as the JDK server reads its
+ * socket options once per process.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Threads(4)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Dpeerconnect.transfer.port=0", "-Dpeerconnect.share.persist=false"})
+public class SmallFileBenchmark {
+
+    private static final String BOUNDARY = "smallboundary";
+    private static final int SIZE = 4096;
+    // held so the level set on it is not lost to garbage collection
+    private static final Logger ROOT = Logger.getLogger("peerconnect");
+
+    @Param({"false", "true"})
+    public boolean noDelay;
+
+    @Param({"0", "65536"})
+    public int smallFileSize;
+
+    private FileController controller;
+    private String base;
+    private byte[] body;
+    private int shareId;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        ROOT.setLevel(java.util.logging.Level.WARNING);
+        System.setProperty("peerconnect.http.noDelay", String.valueOf(noDelay));
+        System.setProperty("peerconnect.cache.smallFileSize", String.valueOf(smallFileSize));
+        controller = new FileController(0);
+        controller.start();
+        base = "http://localhost:" + controller.getPort();
+
+        byte[] content = new byte[SIZE];
+        new Random(7).nextBytes(content);
+        byte[] head = ("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"file\"; filename=\"small.bin\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        byte[] tail = ("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+        body = new byte[head.length + SIZE + tail.length];
+        System.arraycopy(head, 0, body, 0, head.length);
+        System.arraycopy(content, 0, body, head.length, SIZE);
+        System.arraycopy(tail, 0, body, head.length + SIZE, tail.length);
+        shareId = upload();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        controller.stop();
+    }
+
+    @Benchmark
+    public long download() throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(base + "/download/" + shareId).openConnection();
+        // read to the end and closed, so the connection goes back to the keep-alive pool
+        try (InputStream in = conn.getInputStream()) {
+            byte[] received = in.readAllBytes();
+            if (received.length != SIZE) {
+                throw new IOException("Downloaded " + received.length + " of " + SIZE + " bytes");
+            }
+            return received.length;
+        }
+    }
+
+    @Benchmark
+    public int upload() throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(base + "/upload").openConnection();
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        conn.setFixedLengthStreamingMode(body.length);
+        conn.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + BOUNDARY);
+        try (OutputStream out = conn.getOutputStream()) {
+            out.write(body);
+        }
+        if (conn.getResponseCode() != 200) {
+            throw new IOException("Upload failed with " + conn.getResponseCode());
+        }
+        try (InputStream in = conn.getInputStream()) {
+            String json = new String(in.readAllBytes(), StandardCharsets.US_ASCII);
+            return Integer.parseInt(json.replaceAll(".*\"port\": (\\d+).*", "$1"));
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package peerconnect.benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import peerconnect.service.WriteBehind;
+
+/**
+ * Storing a 64 MB upload as it arrives in 64 KB reads, hashing each read as the upload path
+ * does: written inline on the receiving thread, the old way, or through the write-behind
+ * pipeline at each durability level.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UploadWriteBenchmark {
+
+    private static final int SIZE = 64 * 1024 * 1024;
+    private static final int READ_SIZE = 64 * 1024;
+
+    @Param({"INLINE", "NONE", "ON_COMPLETE"})
+    public String mode;
+
+    private byte[] chunk;
+    private Path file;
+    private WriteBehind writeBehind;
+    private MessageDigest sha256;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, NoSuchAlgorithmException {
+        chunk = new byte[READ_SIZE];
+        new Random(8).nextBytes(chunk);
+        file = Files.createTempFile("peerconnect-upload-bench", ".upload");
+        sha256 = MessageDigest.getInstance("SHA-256");
+        if (!mode.equals("INLINE")) {
+            writeBehind = new WriteBehind(WriteBehind.Durability.valueOf(mode), 256 * 1024, 4, 2, 5);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public byte[] store() throws IOException {
+        if (writeBehind == null) {
+            try (OutputStream out = Files.newOutputStream(file)) {
+                receive(out);
+            }
+        } else {
+            WriteBehind.Stream out = writeBehind.open(file);
+            receive(out);
+            out.finish();
+        }
+        return sha256.digest();
+    }
+
+    private void receive(OutputStream out) throws IOException {
+        for (int written = 0; written < SIZE; written += READ_SIZE) {
+            out.write(chunk, 0, READ_SIZE);
+            sha256.update(chunk, 0, READ_SIZE);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package peerconnect.controller;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Bandwidth limits set through /admin/bandwidth while the server runs. The test client counts
+ * as a trusted proxy, so the addresses it forwards are the ones the server checks.
+ */
+public class BandwidthAdminTest {
+
+    private static final String BOUNDARY = "bandwidthboundary";
+
+    @TempDir
+    static Path uploadDir;
+
+    private static FileController controller;
+    private static String base;
+
+    @BeforeAll
+    public static void startServer() throws IOException {
+        System.setProperty("peerconnect.transfer.port", "0");
+        System.setProperty("peerconnect.upload.dir", uploadDir.toString());
+        System.setProperty("peerconnect.http.trustedProxies", "127.0.0.1, ::1");
+        try {
+            controller = new FileController(0);
+            controller.start();
+        } finally {
+            System.clearProperty("peerconnect.transfer.port");
+            System.clearProperty("peerconnect.upload.dir");
+            System.clearProperty("peerconnect.http.trustedProxies");
+        }
+        base = "http://localhost:" + controller.getPort();
+    }
+
+    @AfterAll
+    public static void stopServer() {
+        controller.stop();
+    }
+
+    @Test
+    public void shareLimitsCanBeChangedAtRuntime() throws Exception {
+        byte[] small = new byte[512 * 1024];
+        new Random(13).nextBytes(small);
+        int limitedId = upload(small);
+
+        assertEquals(404, admin("shareId=1&rate=1000"));
+        assertEquals(400, admin("global=fast"));
+        assertEquals(200, admin("shareId=" + limitedId + "&rate=" + 256 * 1024));
+
+        long start = System.nanoTime();
+        HttpURLConnection conn = (HttpURLConnection) new URL(base + "/download/" + limitedId).openConnection();
+        try (InputStream in = conn.getInputStream()) {
+            assertArrayEquals(small, in.readAllBytes());
+        }
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        // 512 KB at 256 KB/s, less the first slice which is let through at once
+        assertTrue(millis > 1200, "share limit ignored, took " + millis + " ms");
+
+        HttpURLConnection limits = (HttpURLConnection) new URL(base + "/admin/bandwidth").openConnection();
+        try (InputStream in = limits.getInputStream()) {
+            String json = new String(in.readAllBytes(), StandardCharsets.US_ASCII);
+            assertTrue(json.contains("\"" + limitedId + "\": " + 256 * 1024), json);
+        }
+    }
+
+    @Test
+    public void forwardedClientsAreNotLocal() throws IOException {
+        assertEquals(200, admin("global=0"));
+        // a proxy on the same host is loopback, the client behind it is not
+        assertEquals(403, admin("global=0", "X-Forwarded-For", "203.0.113.9"));
+        assertEquals(403, admin("global=0", "X-Real-IP", "203.0.113.9"));
+        // the client's own entries left of the proxy's are not believed
+        assertEquals(403, admin("global=0", "X-Forwarded-For", "127.0.0.1, 203.0.113.9"));
+    }
+
+    private static int admin(String query) throws IOException {
+        return admin(query, null, null);
+    }
+
+    private static int admin(String query, String header, String value) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(base + "/admin/bandwidth?" + query).openConnection();
+        conn.setRequestMethod("POST");
+        if (header != null) {
+            conn.setRequestProperty(header, value);
+        }
+        return conn.getResponseCode();
+    }
+
+    private static int upload(byte[] data) throws IOException {
+        byte[] head = ("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"file\"; filename=\"limited.bin\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        byte[] tail = ("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+
+        HttpURLConnection conn = (HttpURLConnection) new URL(base + "/upload").openConnection();
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        conn.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + BOUNDARY);
+        try (OutputStream out = conn.getOutputStream()) {
+            out.write(head);
+            out.write(data);
+            out.write(tail);
+        }
+        assertEquals(200, conn.getResponseCode());
+        try (InputStream in = conn.getInputStream()) {
+            String json = new String(in.readAllBytes(), StandardCharsets.US_ASCII);
+            return Integer.parseInt(json.replaceAll(".*\"port\": (\\d+).*", "$1"));
+        }
+    }
+}
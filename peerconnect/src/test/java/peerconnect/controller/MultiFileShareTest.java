@@ -0,0 +1,162 @@
+package peerconnect.controller;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Uploads a folder of several files as one share and fetches it back as a streamed ZIP and
+ * file by file.
+ */
+public class MultiFileShareTest {
+
+    private static final String BOUNDARY = "multifileboundary";
+
+    @TempDir
+    static Path uploadDir;
+
+    private static FileController controller;
+    private static String base;
+    private static byte[] photo;
+    private static byte[] otherPhoto;
+    private static byte[] notes;
+    private static String uploadResponse;
+    private static int shareId;
+
+    @BeforeAll
+    public static void startServer() throws IOException {
+        System.setProperty("peerconnect.transfer.port", "0");
+        System.setProperty("peerconnect.upload.dir", uploadDir.toString());
+        try {
+            controller = new FileController(0);
+            controller.start();
+        } finally {
+            System.clearProperty("peerconnect.transfer.port");
+            System.clearProperty("peerconnect.upload.dir");
+        }
+        base = "http://localhost:" + controller.getPort();
+
+        Random random = new Random(21);
+        photo = new byte[300_000];
+        random.nextBytes(photo);
+        otherPhoto = new byte[40_000];
+        random.nextBytes(otherPhoto);
+        notes = "all work and no play makes jack a dull boy\n".repeat(2000).getBytes(StandardCharsets.US_ASCII);
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        part(body, "photos/a.jpg", photo);
+        part(body, "photos/notes.txt", notes);
+        // same name again; the share keeps both
+        part(body, "photos/a.jpg", otherPhoto);
+        body.write(("--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+
+        HttpURLConnection conn = (HttpURLConnection) new URL(base + "/upload").openConnection();
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        conn.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + BOUNDARY);
+        try (OutputStream out = conn.getOutputStream()) {
+            body.writeTo(out);
+        }
+        assertEquals(200, conn.getResponseCode());
+        try (InputStream in = conn.getInputStream()) {
+            uploadResponse = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        shareId = Integer.parseInt(uploadResponse.replaceAll("(?s).*\"port\": (\\d+).*", "$1"));
+    }
+
+    @AfterAll
+    public static void stopServer() {
+        controller.stop();
+    }
+
+    @Test
+    public void downloadsTheShareAsAZip() throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(base + "/download/" + shareId).openConnection();
+        assertEquals(200, conn.getResponseCode());
+        assertEquals("application/zip", conn.getContentType());
+        assertTrue(conn.getHeaderField("Content-Disposition").contains("photos.zip"),
+                conn.getHeaderField("Content-Disposition"));
+        assertNull(conn.getHeaderField("Accept-Ranges"));
+
+        Map<String, byte[]> contents = new HashMap<>();
+        Map<String, Integer> methods = new HashMap<>();
+        try (ZipInputStream zip = new ZipInputStream(conn.getInputStream())) {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                contents.put(entry.getName(), zip.readAllBytes());
+                methods.put(entry.getName(), entry.getMethod());
+            }
+        }
+        assertEquals(3, contents.size());
+        assertArrayEquals(photo, contents.get("photos/a.jpg"));
+        assertArrayEquals(notes, contents.get("photos/notes.txt"));
+        assertArrayEquals(otherPhoto, contents.get("photos/a (1).jpg"));
+        // random bytes are not worth deflating, the text is
+        assertEquals(ZipEntry.STORED, methods.get("photos/a.jpg"));
+        assertEquals(ZipEntry.DEFLATED, methods.get("photos/notes.txt"));
+    }
+
+    @Test
+    public void listsTheFiles() throws IOException {
+        assertTrue(uploadResponse.contains("\"files\": ["), uploadResponse);
+
+        String listing;
+        try (InputStream in = new URL(base + "/files/" + shareId).openStream()) {
+            listing = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        assertTrue(listing.contains("{\"index\": 0, \"name\": \"photos/a.jpg\", \"size\": " + photo.length), listing);
+        assertTrue(listing.contains("{\"index\": 1, \"name\": \"photos/notes.txt\", \"size\": " + notes.length), listing);
+        assertTrue(listing.contains("{\"index\": 2, \"name\": \"photos/a (1).jpg\""), listing);
+
+        HttpURLConnection missing = (HttpURLConnection) new URL(base + "/files/1").openConnection();
+        assertEquals(404, missing.getResponseCode());
+    }
+
+    @Test
+    public void fetchesSingleFiles() throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(base + "/download/" + shareId + "/1").openConnection();
+        assertEquals(200, conn.getResponseCode());
+        assertEquals(notes.length, conn.getContentLengthLong());
+        try (InputStream in = conn.getInputStream()) {
+            assertArrayEquals(notes, in.readAllBytes());
+        }
+
+        HttpURLConnection ranged = (HttpURLConnection) new URL(base + "/download/" + shareId + "/0").openConnection();
+        ranged.setRequestProperty("Range", "bytes=1000-1999");
+        assertEquals(206, ranged.getResponseCode());
+        try (InputStream in = ranged.getInputStream()) {
+            assertArrayEquals(Arrays.copyOfRange(photo, 1000, 2000), in.readAllBytes());
+        }
+
+        HttpURLConnection missing = (HttpURLConnection) new URL(base + "/download/" + shareId + "/9").openConnection();
+        assertEquals(404, missing.getResponseCode());
+    }
+
+    private static void part(ByteArrayOutputStream body, String filename, byte[] data) throws IOException {
+        body.write(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"files\"; filename=\"" + filename + "\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        body.write(data);
+        body.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+    }
+}
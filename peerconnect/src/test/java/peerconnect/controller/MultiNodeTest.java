@@ -0,0 +1,115 @@
+package peerconnect.controller;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import peerconnect.service.NodeRegistry;
+
+/**
+ * Two backends on one host, finding each other through a shared node file, as they would
+ * behind a load balancer that sends each request to either of them.
+ */
+public class MultiNodeTest {
+
+    private static final String BOUNDARY = "nodeboundary";
+
+    @TempDir
+    static Path dir;
+
+    private static FileController first;
+    private static FileController second;
+
+    @BeforeAll
+    public static void startNodes() throws IOException {
+        Path nodes = dir.resolve("nodes.txt");
+        System.setProperty("peerconnect.transfer.port", "0");
+        try {
+            System.setProperty("peerconnect.upload.dir", dir.resolve("node1").toString());
+            first = new FileController(0, new NodeRegistry(1, nodes));
+            System.setProperty("peerconnect.upload.dir", dir.resolve("node2").toString());
+            second = new FileController(0, new NodeRegistry(2, nodes));
+        } finally {
+            System.clearProperty("peerconnect.transfer.port");
+            System.clearProperty("peerconnect.upload.dir");
+        }
+        first.start();
+        second.start();
+        Files.writeString(nodes, "# node transfer-address\n"
+                + "1 localhost:" + first.getTransferPort() + "\n"
+                + "2 localhost:" + second.getTransferPort() + "\n");
+    }
+
+    @AfterAll
+    public static void stopNodes() {
+        first.stop();
+        second.stop();
+    }
+
+    @Test
+    public void anyNodeServesAnyNodesShares() throws IOException {
+        byte[] content = new byte[300_000];
+        new Random(21).nextBytes(content);
+
+        int onFirst = upload(first, content);
+        int onSecond = upload(second, content);
+        assertEquals(1, NodeRegistry.nodeOf(onFirst));
+        assertEquals(2, NodeRegistry.nodeOf(onSecond));
+
+        assertArrayEquals(content, download(second, onFirst));
+        assertArrayEquals(content, download(first, onSecond));
+        assertArrayEquals(content, download(first, onFirst));
+    }
+
+    @Test
+    public void sharesOfUnknownNodesAreNotFound() throws IOException {
+        int unknown = 7 * NodeRegistry.NODE_STRIDE + 123_456;
+        HttpURLConnection conn = (HttpURLConnection) new URL(base(first) + "/download/" + unknown).openConnection();
+        assertEquals(404, conn.getResponseCode());
+    }
+
+    private static String base(FileController node) {
+        return "http://localhost:" + node.getPort();
+    }
+
+    private static byte[] download(FileController node, int shareId) throws IOException {
+        try (InputStream in = new URL(base(node) + "/download/" + shareId).openStream()) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static int upload(FileController node, byte[] data) throws IOException {
+        byte[] head = ("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"file\"; filename=\"node.bin\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        byte[] tail = ("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+
+        HttpURLConnection conn = (HttpURLConnection) new URL(base(node) + "/upload").openConnection();
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        conn.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + BOUNDARY);
+        try (OutputStream out = conn.getOutputStream()) {
+            out.write(head);
+            out.write(data);
+            out.write(tail);
+        }
+        assertEquals(200, conn.getResponseCode());
+        try (InputStream in = conn.getInputStream()) {
+            String json = new String(in.readAllBytes(), StandardCharsets.US_ASCII);
+            return Integer.parseInt(json.replaceAll(".*\"port\": (\\d+).*", "$1"));
+        }
+    }
+}
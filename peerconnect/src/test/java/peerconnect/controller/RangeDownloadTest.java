@@ -0,0 +1,150 @@
+package peerconnect.controller;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Loopback integration test with every transfer connection capped at 2 MB/s, so a ranged,
+ * multi-connection download has to beat a single stream by fetching parts in parallel.
+ */
+public class RangeDownloadTest {
+
+    private static final int CONNECTION_RATE = 2 * 1024 * 1024;
+    private static final String BOUNDARY = "rangeboundary";
+
+    @TempDir
+    static Path uploadDir;
+
+    private static FileController controller;
+    private static String base;
+    private static byte[] content;
+    private static int shareId;
+
+    @BeforeAll
+    public static void startServer() throws IOException {
+        System.setProperty("peerconnect.transfer.port", "0");
+        System.setProperty("peerconnect.upload.dir", uploadDir.toString());
+        System.setProperty("peerconnect.transfer.connectionRate", String.valueOf(CONNECTION_RATE));
+        try {
+            controller = new FileController(0);
+            controller.start();
+        } finally {
+            System.clearProperty("peerconnect.transfer.port");
+            System.clearProperty("peerconnect.transfer.connectionRate");
+            System.clearProperty("peerconnect.upload.dir");
+        }
+        base = "http://localhost:" + controller.getPort();
+
+        content = new byte[4 * 1024 * 1024];
+        new Random(11).nextBytes(content);
+        shareId = upload(content);
+    }
+
+    @AfterAll
+    public static void stopServer() {
+        controller.stop();
+    }
+
+    @Test
+    public void parallelRangesBeatASingleStream() throws Exception {
+        long start = System.nanoTime();
+        byte[] single = get(null, 200);
+        long singleNanos = System.nanoTime() - start;
+        assertArrayEquals(content, single);
+
+        int parts = 4;
+        int partSize = content.length / parts;
+        ExecutorService pool = Executors.newFixedThreadPool(parts);
+        try {
+            start = System.nanoTime();
+            List<Future<byte[]>> futures = new ArrayList<>();
+            for (int i = 0; i < parts; i++) {
+                long from = (long) i * partSize;
+                long to = i == parts - 1 ? content.length - 1 : from + partSize - 1;
+                futures.add(pool.submit(() -> get("bytes=" + from + "-" + to, 206)));
+            }
+            ByteArrayOutputStream assembled = new ByteArrayOutputStream();
+            for (Future<byte[]> future : futures) {
+                assembled.write(future.get());
+            }
+            long parallelNanos = System.nanoTime() - start;
+
+            assertArrayEquals(content, assembled.toByteArray());
+            assertTrue(parallelNanos * 2 < singleNanos,
+                    "4 connections took " + parallelNanos / 1_000_000 + " ms vs " + singleNanos / 1_000_000 + " ms for one");
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void resumesFromAnOffset() throws IOException {
+        int offset = content.length - 300_000;
+        byte[] tail = get("bytes=" + offset + "-", 206);
+        assertArrayEquals(Arrays.copyOfRange(content, offset, content.length), tail);
+
+        byte[] suffix = get("bytes=-1000", 206);
+        assertArrayEquals(Arrays.copyOfRange(content, content.length - 1000, content.length), suffix);
+    }
+
+    @Test
+    public void rejectsRangesPastTheEnd() throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(base + "/download/" + shareId).openConnection();
+        conn.setRequestProperty("Range", "bytes=" + content.length + "-");
+        assertEquals(416, conn.getResponseCode());
+    }
+
+    private static byte[] get(String range, int expectedStatus) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(base + "/download/" + shareId).openConnection();
+        if (range != null) {
+            conn.setRequestProperty("Range", range);
+        }
+        assertEquals(expectedStatus, conn.getResponseCode());
+        try (InputStream in = conn.getInputStream()) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static int upload(byte[] data) throws IOException {
+        byte[] head = ("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"file\"; filename=\"range.bin\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        byte[] tail = ("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+
+        HttpURLConnection conn = (HttpURLConnection) new URL(base + "/upload").openConnection();
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        conn.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + BOUNDARY);
+        try (OutputStream out = conn.getOutputStream()) {
+            out.write(head);
+            out.write(data);
+            out.write(tail);
+        }
+        assertEquals(200, conn.getResponseCode());
+        try (InputStream in = conn.getInputStream()) {
+            String json = new String(in.readAllBytes(), StandardCharsets.US_ASCII);
+            return Integer.parseInt(json.replaceAll(".*\"port\": (\\d+).*", "$1"));
+        }
+    }
+}
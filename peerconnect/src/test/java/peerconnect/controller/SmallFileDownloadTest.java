@@ -0,0 +1,192 @@
+package peerconnect.controller;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Small files are answered by the API server from memory, over connections that stay open
+ * between requests.
+ */
+public class SmallFileDownloadTest {
+
+    private static final String BOUNDARY = "smallfileboundary";
+
+    @TempDir
+    static Path uploadDir;
+
+    private static FileController controller;
+    private static String base;
+    private static byte[] content;
+    private static int shareId;
+
+    @BeforeAll
+    public static void startServer() throws IOException {
+        System.setProperty("peerconnect.transfer.port", "0");
+        System.setProperty("peerconnect.upload.dir", uploadDir.toString());
+        try {
+            controller = new FileController(0);
+            controller.start();
+        } finally {
+            System.clearProperty("peerconnect.transfer.port");
+            System.clearProperty("peerconnect.upload.dir");
+        }
+        base = "http://localhost:" + controller.getPort();
+        content = new byte[4096];
+        new Random(31).nextBytes(content);
+        shareId = upload(content, "");
+    }
+
+    @AfterAll
+    public static void stopServer() {
+        controller.stop();
+    }
+
+    @Test
+    public void pipelinedRequestsShareOneConnection() throws IOException {
+        long hits = metric("peerconnect_small_file_cache_hits_total");
+        try (Socket socket = new Socket("localhost", controller.getPort())) {
+            socket.setSoTimeout(5000);
+            String request = "GET /download/" + shareId + " HTTP/1.1\r\nHost: localhost\r\n\r\n";
+            // both requests leave before the first answer is read
+            socket.getOutputStream().write((request + request).getBytes(StandardCharsets.US_ASCII));
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            for (int i = 0; i < 2; i++) {
+                Map<String, String> headers = new HashMap<>();
+                assertEquals("HTTP/1.1 200 OK", readLine(in));
+                String line;
+                while (!(line = readLine(in)).isEmpty()) {
+                    int colon = line.indexOf(':');
+                    headers.put(line.substring(0, colon).toLowerCase(Locale.ROOT), line.substring(colon + 1).trim());
+                }
+                byte[] body = new byte[Integer.parseInt(headers.get("content-length"))];
+                in.readFully(body);
+                assertArrayEquals(content, body);
+            }
+        }
+        assertTrue(metric("peerconnect_small_file_cache_hits_total") >= hits + 1);
+    }
+
+    @Test
+    public void cachedFilesKeepRangesLimitsAndCompression() throws IOException {
+        HttpURLConnection ranged = (HttpURLConnection) new URL(base + "/download/" + shareId).openConnection();
+        ranged.setRequestProperty("Range", "bytes=100-199");
+        assertEquals(206, ranged.getResponseCode());
+        assertEquals("bytes 100-199/4096", ranged.getHeaderField("Content-Range"));
+        try (InputStream in = ranged.getInputStream()) {
+            byte[] expected = new byte[100];
+            System.arraycopy(content, 100, expected, 0, 100);
+            assertArrayEquals(expected, in.readAllBytes());
+        }
+
+        int limited = upload(content, "?maxDownloads=1");
+        try (InputStream in = new URL(base + "/download/" + limited).openStream()) {
+            assertArrayEquals(content, in.readAllBytes());
+        }
+        // 410 whether the finished download has already evicted the share or not: the share
+        // refuses new downloads while it finishes, and its tombstone answers once it is gone
+        for (int i = 0; i < 2; i++) {
+            HttpURLConnection gone = (HttpURLConnection) new URL(base + "/download/" + limited).openConnection();
+            assertEquals(410, gone.getResponseCode());
+        }
+
+        byte[] text = "small and very compressible\n".repeat(300).getBytes(StandardCharsets.US_ASCII);
+        int textId = upload(text, "");
+        HttpURLConnection gzipped = (HttpURLConnection) new URL(base + "/download/" + textId).openConnection();
+        gzipped.setRequestProperty("Accept-Encoding", "gzip");
+        assertEquals("gzip", gzipped.getHeaderField("Content-Encoding"));
+        try (InputStream in = new GZIPInputStream(gzipped.getInputStream())) {
+            assertArrayEquals(text, in.readAllBytes());
+        }
+    }
+
+    @Test
+    public void keepAliveCanBeTurnedOff(@TempDir Path dir) throws IOException {
+        System.setProperty("peerconnect.http.keepAlive", "false");
+        System.setProperty("peerconnect.transfer.port", "0");
+        // a directory of its own, as the other server holds the lock on its
+        System.setProperty("peerconnect.upload.dir", dir.toString());
+        FileController closing;
+        try {
+            closing = new FileController(0);
+            closing.start();
+        } finally {
+            System.clearProperty("peerconnect.http.keepAlive");
+            System.clearProperty("peerconnect.transfer.port");
+            System.clearProperty("peerconnect.upload.dir");
+        }
+        try (Socket socket = new Socket("localhost", closing.getPort())) {
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write("GET /missing HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            String response = new String(socket.getInputStream().readAllBytes(), StandardCharsets.US_ASCII);
+            // readAllBytes only returns because the server closed the connection
+            assertTrue(response.startsWith("HTTP/1.1 404"), response);
+            assertTrue(response.toLowerCase(Locale.ROOT).contains("connection: close"), response);
+        } finally {
+            closing.stop();
+        }
+    }
+
+    private static String readLine(DataInputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) {
+                throw new IOException("Connection closed mid-response");
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return line.toString(StandardCharsets.US_ASCII);
+    }
+
+    private static long metric(String name) throws IOException {
+        try (InputStream in = new URL(base + "/metrics").openStream()) {
+            String text = new String(in.readAllBytes(), StandardCharsets.US_ASCII);
+            return Long.parseLong(text.replaceAll("(?s).*\n" + name + " (\\d+).*", "$1"));
+        }
+    }
+
+    private static int upload(byte[] data, String query) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"file\"; filename=\"small.bin\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        body.write(data);
+        body.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+
+        HttpURLConnection conn = (HttpURLConnection) new URL(base + "/upload" + query).openConnection();
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        conn.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + BOUNDARY);
+        try (OutputStream out = conn.getOutputStream()) {
+            body.writeTo(out);
+        }
+        assertEquals(200, conn.getResponseCode());
+        try (InputStream in = conn.getInputStream()) {
+            String json = new String(in.readAllBytes(), StandardCharsets.US_ASCII);
+            return Integer.parseInt(json.replaceAll(".*\"port\": (\\d+).*", "$1"));
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package peerconnect.controller;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Per-share counters on /stats and the Prometheus text on /metrics.
+ */
+public class StatsTest {
+
+    private static final String BOUNDARY = "statsboundary";
+
+    @TempDir
+    static Path uploadDir;
+
+    private static FileController controller;
+    private static String base;
+
+    @BeforeAll
+    public static void startServer() throws IOException {
+        System.setProperty("peerconnect.transfer.port", "0");
+        System.setProperty("peerconnect.upload.dir", uploadDir.toString());
+        try {
+            controller = new FileController(0);
+            controller.start();
+        } finally {
+            System.clearProperty("peerconnect.transfer.port");
+            System.clearProperty("peerconnect.upload.dir");
+        }
+        base = "http://localhost:" + controller.getPort();
+    }
+
+    @AfterAll
+    public static void stopServer() {
+        controller.stop();
+    }
+
+    @Test
+    public void statsAndMetricsFollowTransfers() throws IOException {
+        byte[] small = new byte[50_000];
+        new Random(14).nextBytes(small);
+        int statsId = upload(small);
+        try (InputStream in = new URL(base + "/download/" + statsId).openStream()) {
+            in.readAllBytes();
+        }
+
+        // the sender records its transfer just after the last byte leaves
+        String stats = "";
+        for (int i = 0; i < 50 && !stats.contains("\"completed\": 1"); i++) {
+            try (InputStream in = new URL(base + "/stats/" + statsId).openStream()) {
+                stats = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            }
+        }
+        assertTrue(stats.contains("\"downloads\": 1") && stats.contains("\"completed\": 1")
+                && stats.contains("\"bytesSent\": 50000"), stats);
+
+        String metrics;
+        try (InputStream in = new URL(base + "/metrics").openStream()) {
+            metrics = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        assertTrue(metrics.contains("peerconnect_download_ttfb_seconds_count"), metrics);
+        assertTrue(metrics.contains("peerconnect_upload_parse_seconds{quantile=\"0.99\"}"), metrics);
+        assertTrue(metrics.contains("# TYPE peerconnect_transfer_throughput_bytes_per_second summary"), metrics);
+
+        HttpURLConnection missing = (HttpURLConnection) new URL(base + "/stats/1").openConnection();
+        assertEquals(404, missing.getResponseCode());
+    }
+
+    private static int upload(byte[] data) throws IOException {
+        byte[] head = ("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"file\"; filename=\"stats.bin\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        byte[] tail = ("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+
+        HttpURLConnection conn = (HttpURLConnection) new URL(base + "/upload").openConnection();
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        conn.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + BOUNDARY);
+        try (OutputStream out = conn.getOutputStream()) {
+            out.write(head);
+            out.write(data);
+            out.write(tail);
+        }
+        assertEquals(200, conn.getResponseCode());
+        try (InputStream in = conn.getInputStream()) {
+            String json = new String(in.readAllBytes(), StandardCharsets.US_ASCII);
+            return Integer.parseInt(json.replaceAll(".*\"port\": (\\d+).*", "$1"));
+        }
+    }
+}
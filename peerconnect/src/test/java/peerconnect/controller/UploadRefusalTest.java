@@ -0,0 +1,90 @@
+package peerconnect.controller;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Uploads the server cannot take are refused from their headers, before any of the body is read.
+ * The server keeps more free space than any disk has, so anything that passes the size limit is
+ * refused for want of space.
+ */
+public class UploadRefusalTest {
+
+    private static final String BOUNDARY = "refusalboundary";
+
+    @TempDir
+    static Path uploadDir;
+
+    private static FileController controller;
+    private static String base;
+
+    @BeforeAll
+    public static void startServer() throws IOException {
+        System.setProperty("peerconnect.transfer.port", "0");
+        System.setProperty("peerconnect.upload.dir", uploadDir.toString());
+        System.setProperty("peerconnect.upload.minFreeSpace", String.valueOf(Long.MAX_VALUE / 4));
+        try {
+            controller = new FileController(0);
+            controller.start();
+        } finally {
+            System.clearProperty("peerconnect.transfer.port");
+            System.clearProperty("peerconnect.upload.dir");
+            System.clearProperty("peerconnect.upload.minFreeSpace");
+        }
+        base = "http://localhost:" + controller.getPort();
+    }
+
+    @AfterAll
+    public static void stopServer() {
+        controller.stop();
+    }
+
+    @Test
+    public void oversizedUploadsAreRefusedBeforeTheBody() throws IOException {
+        try (Socket socket = new Socket("localhost", controller.getPort())) {
+            socket.setSoTimeout(5000);
+            // declares 10 GB and sends none of it; the answer must come anyway
+            socket.getOutputStream().write(("POST /upload HTTP/1.1\r\nHost: localhost\r\n"
+                    + "Content-Type: multipart/form-data; boundary=" + BOUNDARY + "\r\n"
+                    + "Content-Length: " + (10L << 30) + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+            assertTrue(reader.readLine().startsWith("HTTP/1.1 413"));
+        }
+
+        HttpURLConnection metrics = (HttpURLConnection) new URL(base + "/metrics").openConnection();
+        try (InputStream in = metrics.getInputStream()) {
+            String text = new String(in.readAllBytes(), StandardCharsets.US_ASCII);
+            assertTrue(text.matches("(?s).*peerconnect_upload_rejected_total\\{reason=\"too_large\"} [1-9].*"), text);
+        }
+    }
+
+    @Test
+    public void chunkedUploadsAreAdmittedAtInit() throws IOException {
+        // the parts would come later; the sparse file must not promise space the disk lacks
+        HttpURLConnection conn = (HttpURLConnection) new URL(base + "/upload/init?filename=big.iso&size="
+                + (8L << 30)).openConnection();
+        conn.setRequestMethod("POST");
+        assertEquals(503, conn.getResponseCode());
+        assertEquals("60", conn.getHeaderField("Retry-After"));
+        try (Stream<Path> files = Files.list(uploadDir)) {
+            assertTrue(files.noneMatch(file -> file.toString().endsWith(".part")));
+        }
+    }
+}
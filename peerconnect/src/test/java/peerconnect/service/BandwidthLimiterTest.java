@@ -0,0 +1,83 @@
+package peerconnect.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+public class BandwidthLimiterTest {
+
+    private static final int SLICE = 64 * 1024;
+
+    @Test
+    public void sendersShareTheGlobalLimitAndSmallDownloadsGetThrough() throws Exception {
+        BandwidthLimiter bandwidth = new BandwidthLimiter(2 * 1024 * 1024, 0, 0, 0);
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong first = new AtomicLong();
+        AtomicLong second = new AtomicLong();
+        Thread a = sender(bandwidth.forTransfer(1), running, first);
+        Thread b = sender(bandwidth.forTransfer(2), running, second);
+        Thread.sleep(300);
+
+        long start = System.nanoTime();
+        bandwidth.forTransfer(3).acquire(16 * 1024);
+        long smallMillis = (System.nanoTime() - start) / 1_000_000;
+
+        Thread.sleep(700);
+        running.set(false);
+        a.join();
+        b.join();
+
+        // one slice per running sender is 64 ms at 2 MB/s
+        assertTrue(smallMillis < 300, "small download waited " + smallMillis + " ms");
+        double ratio = (double) first.get() / second.get();
+        assertTrue(ratio > 0.7 && ratio < 1.4, "unfair split: " + first.get() + " vs " + second.get());
+    }
+
+    @Test
+    public void limitsChangeWhileTransfersRun() {
+        BandwidthLimiter bandwidth = new BandwidthLimiter(0, 0, 0, 0);
+        FileTransfer.Throttle throttle = bandwidth.forTransfer(1);
+        assertTrue(millisToSend(throttle, 4 * SLICE) < 50);
+
+        bandwidth.setShareRate(1, 512 * 1024);
+        // the first slice is free, the other three take about 375 ms
+        assertTrue(millisToSend(throttle, 4 * SLICE) > 250);
+
+        bandwidth.setShareRate(1, -1);
+        assertTrue(millisToSend(throttle, 4 * SLICE) < 200);
+    }
+
+    @Test
+    public void overridesAreForgottenWithTheShare() {
+        BandwidthLimiter bandwidth = new BandwidthLimiter(0, 1000, 0, 0);
+        bandwidth.setShareRate(5, 2000);
+        assertEquals(2000L, bandwidth.getShareOverrides().get(5));
+
+        bandwidth.forget(5);
+        assertTrue(bandwidth.getShareOverrides().isEmpty());
+        assertEquals(1000, bandwidth.getShareRate());
+    }
+
+    private static Thread sender(FileTransfer.Throttle throttle, AtomicBoolean running, AtomicLong sent) {
+        Thread thread = new Thread(() -> {
+            while (running.get()) {
+                throttle.acquire(SLICE);
+                sent.addAndGet(SLICE);
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private static long millisToSend(FileTransfer.Throttle throttle, int bytes) {
+        long start = System.nanoTime();
+        for (int sent = 0; sent < bytes; sent += SLICE) {
+            throttle.acquire(SLICE);
+        }
+        return (System.nanoTime() - start) / 1_000_000;
+    }
+}
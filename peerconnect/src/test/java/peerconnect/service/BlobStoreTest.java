@@ -0,0 +1,102 @@
+package peerconnect.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class BlobStoreTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void identicalUploadsShareOneBlob() throws IOException {
+        BlobStore store = new BlobStore(dir.toString());
+        byte[] content = content();
+
+        BlobStore.Blob first = store(store, null, content);
+        BlobStore.Blob second = store(store, null, content);
+        assertEquals(first.path, second.path);
+        assertEquals(2, store.getRefCount(first.digest));
+        assertEquals(1, fileCount());
+        assertArrayEquals(content, Files.readAllBytes(first.path));
+
+        first.release();
+        assertTrue(Files.exists(second.path));
+        second.release();
+        assertFalse(Files.exists(second.path));
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    public void announcedDigestSkipsTheDiskWrite() throws IOException {
+        BlobStore store = new BlobStore(dir.toString());
+        byte[] content = content();
+        BlobStore.Blob stored = store(store, null, content);
+
+        BlobStore.Upload upload = store.begin(stored.digest.toUpperCase());
+        assertTrue(upload.isReused());
+        upload.write(content);
+        BlobStore.Blob reused = upload.commit();
+        assertEquals(stored.path, reused.path);
+        assertEquals(2, store.getRefCount(stored.digest));
+
+        // a client lying about the digest is refused and holds no reference
+        BlobStore.Upload liar = store.begin(stored.digest);
+        liar.write(new byte[]{1, 2, 3});
+        assertThrows(IllegalArgumentException.class, liar::commit);
+        assertEquals(2, store.getRefCount(stored.digest));
+    }
+
+    @Test
+    public void discardedUploadsLeaveNothingBehind() throws IOException {
+        BlobStore store = new BlobStore(dir.toString());
+        BlobStore.Upload upload = store.begin(null);
+        upload.write(content());
+        upload.discard();
+        assertEquals(0, fileCount());
+    }
+
+    @Test
+    public void aSecondStoreOnTheDirectoryIsRefused() throws IOException {
+        BlobStore store = new BlobStore(dir.toString());
+        BlobStore.Upload upload = store.begin(null);
+        upload.write(content());
+        // its startup sweep would take the upload still being written
+        assertThrows(IOException.class, () -> new BlobStore(dir.toString()));
+        assertEquals(1, fileCount());
+        upload.discard();
+
+        store.close();
+        new BlobStore(dir.toString()).close();
+    }
+
+    private static BlobStore.Blob store(BlobStore store, String digest, byte[] content) throws IOException {
+        BlobStore.Upload upload = store.begin(digest);
+        upload.write(content);
+        return upload.commit();
+    }
+
+    private long fileCount() throws IOException {
+        try (var files = Files.list(dir)) {
+            // the lock file is not content
+            return files.filter(file -> !file.getFileName().toString().equals("store.lock")).count();
+        }
+    }
+
+    private static byte[] content() {
+        byte[] content = new byte[100_000];
+        new Random(9).nextBytes(content);
+        return content;
+    }
+}
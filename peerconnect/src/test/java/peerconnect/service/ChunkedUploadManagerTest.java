@@ -0,0 +1,146 @@
+package peerconnect.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ChunkedUploadManagerTest {
+
+    private static final int PART_SIZE = ChunkedUploadManager.MIN_PART_SIZE;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void assemblesPartsWrittenOutOfOrder() throws IOException {
+        ChunkedUploadManager manager = new ChunkedUploadManager(dir.toString(), 1 << 30, 60);
+        byte[] content = new byte[PART_SIZE * 3 + 123];
+        new Random(5).nextBytes(content);
+
+        ChunkedUploadManager.Session session = manager.init("big.bin", content.length, PART_SIZE);
+        assertEquals(4, session.partCount);
+        for (int index : new int[]{3, 1, 0}) {
+            writePart(manager, session.uploadId, content, index);
+        }
+        assertEquals(Arrays.asList(2), session.missingParts());
+        assertThrows(IllegalStateException.class, () -> manager.complete(session.uploadId));
+
+        writePart(manager, session.uploadId, content, 2);
+        manager.complete(session.uploadId);
+
+        assertArrayEquals(content, Files.readAllBytes(session.target));
+        assertThrows(NoSuchElementException.class, () -> manager.get(session.uploadId));
+    }
+
+    @Test
+    public void rejectsCorruptAndShortParts() throws IOException {
+        ChunkedUploadManager manager = new ChunkedUploadManager(dir.toString(), 1 << 30, 60);
+        byte[] content = new byte[PART_SIZE * 2];
+        new Random(6).nextBytes(content);
+        ChunkedUploadManager.Session session = manager.init("c.bin", content.length, PART_SIZE);
+
+        byte[] part = Arrays.copyOfRange(content, 0, PART_SIZE);
+        assertThrows(IllegalArgumentException.class,
+                () -> manager.writePart(session.uploadId, 0, new ByteArrayInputStream(part), crc(part) ^ 1));
+        assertThrows(IllegalArgumentException.class,
+                () -> manager.writePart(session.uploadId, 1, new ByteArrayInputStream(part, 0, 100), null));
+        assertFalse(session.hasPart(0));
+        assertFalse(session.hasPart(1));
+
+        manager.abort(session.uploadId);
+        try (var files = Files.list(dir)) {
+            assertTrue(files.findAny().isEmpty());
+        }
+    }
+
+    @Test
+    public void aFailedRetryLeavesThePartMissing() throws Exception {
+        ChunkedUploadManager manager = new ChunkedUploadManager(dir.toString(), 1 << 30, 60);
+        UploadAdmission admission = new UploadAdmission(dir.toString(), Long.MAX_VALUE, Long.MAX_VALUE, 0);
+        byte[] content = new byte[PART_SIZE * 3];
+        new Random(8).nextBytes(content);
+        ChunkedUploadManager.Session session = manager.init("retry.bin", content.length, PART_SIZE,
+                admission.hold(content.length));
+        writePart(manager, session.uploadId, content, 0);
+        writePart(manager, session.uploadId, content, 1);
+
+        byte[] corrupt = Arrays.copyOfRange(content, 0, PART_SIZE);
+        long checksum = crc(corrupt);
+        corrupt[10] ^= 1;
+        assertThrows(IllegalArgumentException.class,
+                () -> manager.writePart(session.uploadId, 0, new ByteArrayInputStream(corrupt), checksum));
+        assertEquals(Arrays.asList(0, 2), session.missingParts());
+        assertThrows(IllegalStateException.class, () -> manager.complete(session.uploadId));
+
+        // a good retry restores the part without giving back its space again
+        writePart(manager, session.uploadId, content, 0);
+        assertEquals(PART_SIZE, admission.getHeldBytes());
+        writePart(manager, session.uploadId, content, 2);
+        manager.complete(session.uploadId);
+        assertArrayEquals(content, Files.readAllBytes(session.target));
+    }
+
+    @Test
+    public void givesBackItsHeldSpaceAsPartsArrive() throws Exception {
+        ChunkedUploadManager manager = new ChunkedUploadManager(dir.toString(), 1 << 30, 60);
+        UploadAdmission admission = new UploadAdmission(dir.toString(), Long.MAX_VALUE, Long.MAX_VALUE, 0);
+        byte[] content = new byte[PART_SIZE * 3];
+        new Random(7).nextBytes(content);
+
+        ChunkedUploadManager.Session session = manager.init("held.bin", content.length, PART_SIZE,
+                admission.hold(content.length));
+        writePart(manager, session.uploadId, content, 0);
+        writePart(manager, session.uploadId, content, 0);
+        assertEquals(PART_SIZE * 2, admission.getHeldBytes());
+        manager.abort(session.uploadId);
+        assertEquals(0, admission.getHeldBytes());
+    }
+
+    @Test
+    public void abandonedSessionsGiveBackTheirSpaceUnattended() throws Exception {
+        ChunkedUploadManager manager = new ChunkedUploadManager(dir.toString(), 1 << 30, 200, TimeUnit.MILLISECONDS);
+        UploadAdmission admission = new UploadAdmission(dir.toString(), Long.MAX_VALUE, Long.MAX_VALUE, 0);
+        try {
+            manager.init("abandoned.bin", PART_SIZE * 4, PART_SIZE, admission.hold(PART_SIZE * 4));
+            assertEquals(PART_SIZE * 4, admission.getHeldBytes());
+
+            // nothing touches the manager again; only its sweep can notice the session expired
+            for (int i = 0; i < 100 && admission.getHeldBytes() != 0; i++) {
+                Thread.sleep(50);
+            }
+            assertEquals(0, admission.getHeldBytes());
+            try (var files = Files.list(dir)) {
+                assertTrue(files.findAny().isEmpty());
+            }
+        } finally {
+            manager.stop();
+        }
+    }
+
+    private static void writePart(ChunkedUploadManager manager, String id, byte[] content, int index) throws IOException {
+        int from = index * PART_SIZE;
+        byte[] part = Arrays.copyOfRange(content, from, Math.min(content.length, from + PART_SIZE));
+        assertEquals(crc(part), manager.writePart(id, index, new ByteArrayInputStream(part), crc(part)));
+    }
+
+    private static long crc(byte[] data) {
+        CRC32C crc = new CRC32C();
+        crc.update(data);
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,53 @@
+package peerconnect.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import org.junit.jupiter.api.Test;
+
+public class CompressionTest {
+
+    @Test
+    public void compressesTextButNotRandomBytes() {
+        StringBuilder log = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            log.append("2024-05-01 12:00:").append(i % 60).append(" INFO request ").append(i).append(" served in 3 ms\n");
+        }
+        byte[] text = log.toString().getBytes(StandardCharsets.US_ASCII);
+        assertEquals(Compression.Codec.GZIP, Compression.choose(text, text.length, Deflater.BEST_SPEED));
+
+        byte[] noise = new byte[Compression.SAMPLE_SIZE];
+        new Random(1).nextBytes(noise);
+        assertEquals(Compression.Codec.IDENTITY, Compression.choose(noise, noise.length, Deflater.BEST_SPEED));
+    }
+
+    @Test
+    public void skipsKnownCompressedFormatsEvenWhenTheyLookCompressible() {
+        byte[] zeros = new byte[8192];
+        byte[][] headers = {
+                {'P', 'K', 3, 4},
+                {0, 0, 0, 0x20, 'f', 't', 'y', 'p', 'i', 's', 'o', 'm'},
+                {'I', 'D', '3', 4},
+                {(byte) 0xff, (byte) 0xfb, (byte) 0x90},
+        };
+        for (byte[] header : headers) {
+            byte[] file = zeros.clone();
+            System.arraycopy(header, 0, file, 0, header.length);
+            assertTrue(Compression.isCompressedFormat(file, file.length));
+            assertEquals(Compression.Codec.IDENTITY, Compression.choose(file, file.length, Deflater.BEST_SPEED));
+        }
+    }
+
+    @Test
+    public void protocolCarriesTheEncoding() {
+        TransferProtocol.Request request = TransferProtocol.parseRequest(
+                new String(TransferProtocol.request(7, 0, -1, Compression.Codec.GZIP), StandardCharsets.US_ASCII).trim());
+        assertEquals(Compression.Codec.GZIP, request.accept);
+        assertEquals(Compression.Codec.IDENTITY, TransferProtocol.parseRequest("GET 7 0 -1").accept);
+        assertEquals(null, TransferProtocol.parseRequest("GET 7 0 -1 brotli"));
+    }
+}
@@ -0,0 +1,330 @@
+package peerconnect.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class FileSharerTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void perPortShareServesRepeatedAndConcurrentDownloads() throws Exception {
+        byte[] content = content(200_000);
+        Path file = Files.write(dir.resolve("fanout.bin"), content);
+        FileSharer sharer = new FileSharer(FileTransfer.Mode.ZERO_COPY, FileSharer.ServerMode.PER_PORT, 0);
+        sharer.start();
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            int shareId = sharer.offerFile(file.toString());
+            List<Future<byte[]>> downloads = new ArrayList<>();
+            for (int i = 0; i < 16; i++) {
+                downloads.add(pool.submit(() -> download(sharer, shareId)));
+            }
+            for (Future<byte[]> download : downloads) {
+                assertArrayEquals(content, download.get());
+            }
+            assertArrayEquals(content, download(sharer, shareId));
+        } finally {
+            pool.shutdown();
+            sharer.stop();
+        }
+    }
+
+    @Test
+    public void shareIsRemovedAfterItsLastAllowedDownload() throws Exception {
+        byte[] content = content(100_000);
+        Path file = Files.write(dir.resolve("limited.bin"), content);
+        FileSharer sharer = new FileSharer(FileTransfer.Mode.ZERO_COPY, FileSharer.ServerMode.SHARED, 0);
+        sharer.start();
+        try {
+            int shareId = sharer.offerFile(file.toString(), 2, 0);
+            assertArrayEquals(content, download(sharer, shareId));
+            assertArrayEquals(content, download(sharer, shareId));
+
+            assertEquals(TransferProtocol.ERROR_GONE, refusal(sharer, shareId));
+            // the second sender may still be finishing after its last byte arrived
+            for (int i = 0; i < 50 && Files.exists(file); i++) {
+                Thread.sleep(100);
+            }
+            assertFalse(Files.exists(file));
+            assertFalse(sharer.isShared(shareId));
+            // the tombstone keeps the ID, so it still answers 410 instead of 404
+            assertEquals(TransferProtocol.ERROR_GONE, refusal(sharer, shareId));
+            assertEquals(1, sharer.getAllocatedShares());
+        } finally {
+            sharer.stop();
+        }
+    }
+
+    @Test
+    public void unshareWithdrawsTheShareAndItsFile() throws Exception {
+        Path file = Files.write(dir.resolve("withdrawn.bin"), content(1000));
+        // no tombstone, so the ID is free again at once
+        System.setProperty("peerconnect.share.goneSeconds", "0");
+        FileSharer sharer;
+        try {
+            sharer = new FileSharer(FileTransfer.Mode.ZERO_COPY, FileSharer.ServerMode.SHARED, 0);
+        } finally {
+            System.clearProperty("peerconnect.share.goneSeconds");
+        }
+        sharer.start();
+        try {
+            int shareId = sharer.offerFile(file.toString());
+            assertTrue(sharer.isShared(shareId));
+
+            assertEquals(0, sharer.stats(shareId).downloads);
+
+            assertTrue(sharer.unshare(shareId));
+            assertFalse(sharer.unshare(shareId));
+            assertFalse(sharer.isShared(shareId));
+            assertNull(sharer.stats(shareId));
+            assertNull(sharer.files(shareId));
+            assertFalse(Files.exists(file));
+            assertEquals(TransferProtocol.ERROR_NOT_FOUND, refusal(sharer, shareId));
+            assertEquals(0, sharer.getAllocatedShares());
+        } finally {
+            sharer.stop();
+        }
+    }
+
+    @Test
+    public void compressibleSharesAreGzippedForClientsThatAcceptIt() throws Exception {
+        StringBuilder csv = new StringBuilder();
+        for (int i = 0; i < 20_000; i++) {
+            csv.append(i).append(",peer-").append(i % 17).append(",ok\n");
+        }
+        byte[] content = csv.toString().getBytes(StandardCharsets.US_ASCII);
+        Path file = Files.write(dir.resolve("peers.csv"), content);
+        FileSharer sharer = new FileSharer(FileTransfer.Mode.ZERO_COPY, FileSharer.ServerMode.SHARED, 0);
+        sharer.start();
+        try {
+            int shareId = sharer.offerFile(file.toString());
+            InetSocketAddress address = sharer.transferAddress(shareId);
+            try (Socket socket = new Socket(address.getHostString(), address.getPort());
+                 InputStream in = new BufferedInputStream(socket.getInputStream())) {
+                socket.getOutputStream().write(TransferProtocol.request(shareId, 0, -1, Compression.Codec.GZIP));
+                TransferProtocol.Response response = TransferProtocol.readResponse(in);
+                assertEquals(Compression.Codec.GZIP, response.encoding);
+                assertEquals(content.length, response.length);
+                byte[] compressed = in.readAllBytes();
+                assertTrue(compressed.length < content.length / 2, "sent " + compressed.length + " bytes");
+                assertArrayEquals(content, new GZIPInputStream(new ByteArrayInputStream(compressed)).readAllBytes());
+            }
+            // clients that did not ask for gzip still get the raw bytes
+            assertArrayEquals(content, download(sharer, shareId));
+        } finally {
+            sharer.stop();
+        }
+    }
+
+    @Test
+    public void lowIdsNeverPointAtOtherLocalPorts() {
+        FileSharer shared = new FileSharer(FileTransfer.Mode.ZERO_COPY, FileSharer.ServerMode.SHARED, 0);
+        FileSharer perPort = new FileSharer(FileTransfer.Mode.ZERO_COPY, FileSharer.ServerMode.PER_PORT, 0);
+        try {
+            assertNull(shared.transferAddress(8080));
+            assertNull(shared.transferAddress(50_000));
+            assertNull(shared.transferAddress(99_999));
+            assertNull(perPort.transferAddress(22));
+            assertEquals(50_000, perPort.transferAddress(50_000).getPort());
+        } finally {
+            shared.stop();
+            perPort.stop();
+        }
+    }
+
+    @Test
+    public void concurrencyLimitRefusesExtraSenders() {
+        FileSharer.Share share = new FileSharer.Share(1, "unused", 0, 1);
+        assertNull(share.tryStart(true));
+        assertEquals(TransferProtocol.ERROR_BUSY, share.tryStart(true));
+        assertEquals(FileSharer.Share.Outcome.NONE, share.finish());
+
+        // retiring while a sender runs defers the delete to that sender
+        assertNull(share.tryStart(false));
+        assertFalse(share.retire());
+        assertEquals(TransferProtocol.ERROR_GONE, share.tryStart(true));
+        assertEquals(FileSharer.Share.Outcome.DELETE, share.finish());
+        assertTrue(share.retire());
+    }
+
+    @Test
+    public void busyRefusalsAreNotJournaledAsDownloads() throws Exception {
+        // larger than the socket buffers, so an unread download keeps the only sender busy
+        Path file = Files.write(dir.resolve("busy.bin"), content(32 * 1024 * 1024));
+        Path journalDir = dir.resolve("journal");
+        System.setProperty("peerconnect.transfer.maxConcurrent", "1");
+        System.setProperty("peerconnect.transfer.maxQueued", "0");
+        FileSharer sharer;
+        try {
+            sharer = new FileSharer(FileTransfer.Mode.ZERO_COPY, FileSharer.ServerMode.PER_PORT, 0,
+                    new peerconnect.utils.Metrics(), new ShareJournal(journalDir, 64 * 1024));
+        } finally {
+            System.clearProperty("peerconnect.transfer.maxConcurrent");
+            System.clearProperty("peerconnect.transfer.maxQueued");
+        }
+        sharer.start();
+        int shareId;
+        try {
+            shareId = sharer.offerFile(file.toString(), 2, 0);
+            InetSocketAddress address = sharer.transferAddress(shareId);
+            try (Socket stalled = new Socket(address.getHostString(), address.getPort())) {
+                stalled.getOutputStream().write(TransferProtocol.request(shareId));
+                for (int i = 0; i < 100 && sharer.stats(shareId).downloads == 0; i++) {
+                    Thread.sleep(20);
+                }
+                assertEquals(TransferProtocol.ERROR_BUSY, refusal(sharer, shareId));
+                assertEquals(1, sharer.stats(shareId).downloads);
+            }
+        } finally {
+            sharer.stop();
+        }
+
+        sharer = new FileSharer(FileTransfer.Mode.ZERO_COPY, FileSharer.ServerMode.PER_PORT, 0,
+                new peerconnect.utils.Metrics(), new ShareJournal(journalDir, 64 * 1024));
+        try (BlobStore blobs = new BlobStore(dir.resolve("blobs").toString())) {
+            assertEquals(1, sharer.restore(blobs));
+            assertEquals(1, sharer.stats(shareId).downloads);
+        } finally {
+            sharer.stop();
+        }
+    }
+
+    @Test
+    public void sharesSurviveARestart() throws Exception {
+        byte[] content = content(120_000);
+        Path file = Files.write(dir.resolve("plain.bin"), content);
+        Path stale = Files.write(dir.resolve("stale.bin"), content);
+        Path journalDir = dir.resolve("journal");
+        Path blobDir = dir.resolve("blobs");
+
+        BlobStore blobs = new BlobStore(blobDir.toString());
+        FileSharer sharer = new FileSharer(FileTransfer.Mode.ZERO_COPY, FileSharer.ServerMode.SHARED, 0,
+                new peerconnect.utils.Metrics(), new ShareJournal(journalDir, 64 * 1024));
+        sharer.start();
+        int plainId;
+        int blobId;
+        try {
+            plainId = sharer.offerFile(file.toString(), 2, 0);
+            BlobStore.Upload upload = blobs.begin(null);
+            upload.write(content);
+            blobId = sharer.offerBlob(upload.commit(), "blob.bin");
+            assertArrayEquals(content, download(sharer, plainId));
+        } finally {
+            sharer.stop();
+            blobs.close();
+        }
+        // a share whose time ran out while the server was down
+        try (ShareJournal journal = new ShareJournal(journalDir, 64 * 1024)) {
+            journal.offered(new ShareJournal.Entry(200_000, stale.toString(), "stale.bin", null, content.length,
+                    0, 0, Compression.Codec.IDENTITY, System.currentTimeMillis() - 1, 0));
+        }
+
+        blobs = new BlobStore(blobDir.toString());
+        sharer = new FileSharer(FileTransfer.Mode.ZERO_COPY, FileSharer.ServerMode.SHARED, 0,
+                new peerconnect.utils.Metrics(), new ShareJournal(journalDir, 64 * 1024));
+        try {
+            assertEquals(2, sharer.restore(blobs));
+            assertEquals(0, blobs.purgeUnreferenced());
+            sharer.start();
+            assertFalse(Files.exists(stale));
+            assertEquals(1, sharer.stats(plainId).downloads);
+            assertArrayEquals(content, download(sharer, plainId));
+            assertArrayEquals(content, download(sharer, blobId));
+            // the download limit counts the one made before the restart
+            assertNull(download(sharer, plainId));
+            assertTrue(sharer.isShared(blobId));
+        } finally {
+            sharer.stop();
+            blobs.close();
+        }
+    }
+
+    @Test
+    public void expiredMultiFileSharesAreDroppedOnRestart() throws Exception {
+        byte[] content = content(40_000);
+        Path journalDir = dir.resolve("journal");
+        Path blobDir = dir.resolve("blobs");
+
+        BlobStore blobs = new BlobStore(blobDir.toString());
+        BlobStore.Upload upload = blobs.begin(null);
+        upload.write(content);
+        BlobStore.Blob blob = upload.commit();
+        blobs.close();
+        // a bundle whose time ran out while the server was down
+        try (ShareJournal journal = new ShareJournal(journalDir, 64 * 1024)) {
+            journal.offered(new ShareJournal.Entry(200_001, null, "files.zip", null, content.length, 0, 0,
+                    Compression.Codec.IDENTITY,
+                    List.of(new SharedFile("a.bin", blob.path.toString(), blob.digest, content.length,
+                            Compression.Codec.IDENTITY)),
+                    System.currentTimeMillis() - 1, 0));
+        }
+
+        blobs = new BlobStore(blobDir.toString());
+        FileSharer sharer = new FileSharer(FileTransfer.Mode.ZERO_COPY, FileSharer.ServerMode.SHARED, 0,
+                new peerconnect.utils.Metrics(), new ShareJournal(journalDir, 64 * 1024));
+        try {
+            assertEquals(0, sharer.restore(blobs));
+            assertEquals(1, blobs.purgeUnreferenced());
+            assertFalse(Files.exists(blob.path));
+            assertFalse(sharer.isShared(200_001));
+        } finally {
+            sharer.stop();
+            blobs.close();
+        }
+    }
+
+    // Returns the file content, or null if the sender refused the request.
+    private static byte[] download(FileSharer sharer, int shareId) throws IOException {
+        InetSocketAddress address = sharer.transferAddress(shareId);
+        try (Socket socket = new Socket(address.getHostString(), address.getPort());
+             InputStream in = new BufferedInputStream(socket.getInputStream())) {
+            socket.getOutputStream().write(TransferProtocol.request(shareId));
+            TransferProtocol.Response response = TransferProtocol.readResponse(in);
+            if (response.error != null) {
+                return null;
+            }
+            return in.readNBytes((int) response.length);
+        }
+    }
+
+    // The error the sender answers a new download with, or null if it would send the file.
+    private static String refusal(FileSharer sharer, int shareId) throws IOException {
+        InetSocketAddress address = sharer.transferAddress(shareId);
+        try (Socket socket = new Socket(address.getHostString(), address.getPort());
+             InputStream in = new BufferedInputStream(socket.getInputStream())) {
+            socket.getOutputStream().write(TransferProtocol.request(shareId));
+            return TransferProtocol.readResponse(in).error;
+        }
+    }
+
+    private static byte[] content(int size) {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        return content;
+    }
+}
@@ -0,0 +1,79 @@
+package peerconnect.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class MappedFileRegistryTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void concurrentSendersShareOneMapping() throws IOException {
+        Path file = write(300_000);
+        MappedFileRegistry registry = new MappedFileRegistry();
+
+        MappedFileRegistry.Mapping first = registry.acquire(file.toString());
+        MappedFileRegistry.Mapping second = registry.acquire(file.toString());
+        assertSame(first, second);
+
+        // releasing without retiring keeps a hot file mapped for the next download
+        registry.release(first);
+        registry.release(second);
+        assertFalse(first.isUnmapped());
+        assertEquals(1, registry.size());
+
+        registry.retire(file.toString());
+        assertTrue(first.isUnmapped());
+        assertEquals(0, registry.size());
+    }
+
+    @Test
+    public void retiredMappingLivesUntilTheLastRelease() throws IOException {
+        Path file = write(300_000);
+        MappedFileRegistry registry = new MappedFileRegistry();
+
+        MappedFileRegistry.Mapping mapping = registry.acquire(file.toString());
+        registry.retire(file.toString());
+        assertFalse(mapping.isUnmapped());
+
+        registry.release(mapping);
+        assertTrue(mapping.isUnmapped());
+    }
+
+    @Test
+    public void sendsRangesFromTheMapping() throws IOException {
+        Path file = write(300_000);
+        byte[] content = Files.readAllBytes(file);
+        MappedFileRegistry registry = new MappedFileRegistry();
+        MappedFileRegistry.Mapping mapping = registry.acquire(file.toString());
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            long sent = FileTransfer.transferMapped(mapping, 1000, 200_000, Channels.newChannel(out), null);
+            assertEquals(200_000, sent);
+            assertArrayEquals(Arrays.copyOfRange(content, 1000, 201_000), out.toByteArray());
+        } finally {
+            registry.release(mapping);
+        }
+    }
+
+    private Path write(int size) throws IOException {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        return Files.write(dir.resolve("hot.bin"), content);
+    }
+}
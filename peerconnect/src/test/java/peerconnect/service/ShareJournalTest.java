@@ -0,0 +1,157 @@
+package peerconnect.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ShareJournalTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void replaysOffersDownloadsAndRemovals() throws IOException {
+        try (ShareJournal journal = new ShareJournal(dir, 64 * 1024)) {
+            journal.offered(entry(100_001, "/tmp/a.txt", null));
+            journal.offered(entry(100_002, "/tmp/blobs/ab12", "ab12"));
+            journal.offered(entry(100_003, "/tmp/c.txt", null));
+            journal.touched(100_002, 5_000, 3);
+            journal.removed(100_003);
+        }
+
+        try (ShareJournal journal = new ShareJournal(dir, 64 * 1024)) {
+            Map<Integer, ShareJournal.Entry> entries = byId(journal);
+            assertEquals(2, entries.size());
+            ShareJournal.Entry plain = entries.get(100_001);
+            assertEquals("/tmp/a.txt", plain.path);
+            assertEquals("né ☃.txt", plain.name);
+            assertNull(plain.digest);
+            assertEquals(Compression.Codec.GZIP, plain.codec);
+            ShareJournal.Entry blob = entries.get(100_002);
+            assertEquals("ab12", blob.digest);
+            assertEquals(5_000, blob.expiresAt);
+            assertEquals(3, blob.downloads);
+        }
+    }
+
+    @Test
+    public void multiFileSharesKeepTheirFiles() throws IOException {
+        List<SharedFile> files = List.of(
+                new SharedFile("photos/a.jpg", "/tmp/blobs/aa", "aa", 1000, Compression.Codec.IDENTITY),
+                new SharedFile("photos/notes.txt", "/tmp/blobs/bb", "bb", 20, Compression.Codec.GZIP));
+        try (ShareJournal journal = new ShareJournal(dir, 64 * 1024)) {
+            journal.offered(new ShareJournal.Entry(100_001, null, "photos.zip", null, 1020, 0, 0,
+                    Compression.Codec.IDENTITY, files, Long.MAX_VALUE, 0));
+            journal.offered(entry(100_002, "/tmp/c.txt", null));
+            // the snapshot encodes them too
+            journal.snapshot();
+        }
+
+        try (ShareJournal journal = new ShareJournal(dir, 64 * 1024)) {
+            Map<Integer, ShareJournal.Entry> entries = byId(journal);
+            ShareJournal.Entry bundle = entries.get(100_001);
+            assertNull(bundle.path);
+            assertEquals(2, bundle.files.size());
+            SharedFile notes = bundle.files.get(1);
+            assertEquals("photos/notes.txt", notes.name);
+            assertEquals("/tmp/blobs/bb", notes.path);
+            assertEquals("bb", notes.digest);
+            assertEquals(20, notes.size);
+            assertEquals(Compression.Codec.GZIP, notes.codec);
+            assertNull(entries.get(100_002).files);
+        }
+    }
+
+    @Test
+    public void snapshotsKeepTheLiveSharesWhenTheLogFills() throws IOException {
+        // a 4 KB log holds a few dozen offers, so this writes many snapshots
+        try (ShareJournal journal = new ShareJournal(dir, 4096)) {
+            for (int i = 0; i < 1000; i++) {
+                journal.offered(entry(100_000 + i, "/tmp/file-" + i, null));
+                if (i % 3 == 0) {
+                    journal.removed(100_000 + i);
+                }
+            }
+        }
+
+        try (ShareJournal journal = new ShareJournal(dir, 4096)) {
+            Map<Integer, ShareJournal.Entry> entries = byId(journal);
+            assertEquals(666, entries.size());
+            assertEquals("/tmp/file-998", entries.get(100_998).path);
+            assertNull(entries.get(100_999));
+        }
+    }
+
+    @Test
+    public void replayStopsAtATornRecord() throws IOException {
+        try (ShareJournal journal = new ShareJournal(dir, 64 * 1024)) {
+            journal.offered(entry(100_001, "/tmp/a.txt", null));
+            journal.offered(entry(100_002, "/tmp/b.txt", null));
+        }
+        try (FileChannel log = FileChannel.open(dir.resolve("shares.log"), StandardOpenOption.WRITE)) {
+            // the last byte of the second record, half written
+            log.write(ByteBuffer.wrap(new byte[]{'!'}), 16 + 2 * 8 + 2 * recordLength("/tmp/a.txt") - 1);
+        }
+
+        try (ShareJournal journal = new ShareJournal(dir, 64 * 1024)) {
+            assertEquals(1, journal.size());
+            // appends continue after the last good record
+            journal.offered(entry(100_003, "/tmp/c.txt", null));
+        }
+        try (ShareJournal journal = new ShareJournal(dir, 64 * 1024)) {
+            assertEquals(2, journal.size());
+        }
+    }
+
+    @Test
+    public void sharesWithOverlongStringsAreLeftOut() throws IOException {
+        String longPath = "/tmp/" + "x".repeat(70_000);
+        try (ShareJournal journal = new ShareJournal(dir, 1024 * 1024)) {
+            journal.offered(entry(100_001, longPath, null));
+            journal.offered(entry(100_002, "/tmp/b.txt", null));
+            journal.touched(100_001, 5_000, 1);
+            journal.snapshot();
+        }
+
+        try (ShareJournal journal = new ShareJournal(dir, 1024 * 1024)) {
+            Map<Integer, ShareJournal.Entry> entries = byId(journal);
+            assertEquals(List.of(100_002), List.copyOf(entries.keySet()));
+            assertEquals("/tmp/b.txt", entries.get(100_002).path);
+        }
+    }
+
+    @Test
+    public void aJournalCanOnlyBeOpenedOnce() throws IOException {
+        try (ShareJournal journal = new ShareJournal(dir, 64 * 1024)) {
+            assertThrows(IOException.class, () -> new ShareJournal(dir, 64 * 1024));
+        }
+    }
+
+    private static ShareJournal.Entry entry(int id, String path, String digest) {
+        return new ShareJournal.Entry(id, path, "né ☃.txt", digest, 1234, 0, 2,
+                Compression.Codec.GZIP, Long.MAX_VALUE, 0);
+    }
+
+    // the payload of an offer without a digest
+    private static int recordLength(String path) {
+        return 40 + path.length() + "né ☃.txt".getBytes(java.nio.charset.StandardCharsets.UTF_8).length;
+    }
+
+    private static Map<Integer, ShareJournal.Entry> byId(ShareJournal journal) {
+        Map<Integer, ShareJournal.Entry> entries = new TreeMap<>();
+        journal.entries().forEach(entry -> entries.put(entry.id, entry));
+        return entries;
+    }
+}
@@ -0,0 +1,98 @@
+package peerconnect.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class SmallFileCacheTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void keepsTheRecentlyUsedFilesWithinItsBudget() throws Exception {
+        SmallFileCache cache = new SmallFileCache(4096, 10_000);
+        assertTrue(cache.accepts(4096));
+        assertFalse(cache.accepts(4097));
+
+        Path a = file("a", 4000, 1);
+        Path b = file("b", 4000, 2);
+        Path c = file("c", 4000, 3);
+        SmallFileCache.Content first = cache.get(a.toString(), sha256(a), Compression.Codec.IDENTITY, 1);
+        assertArrayEquals(Files.readAllBytes(a), first.data);
+        assertNull(first.gzipped);
+        cache.get(b.toString(), sha256(b), Compression.Codec.IDENTITY, 1);
+        // a is used again, so b is the one to go when c arrives
+        assertSame(first, cache.get(a.toString(), sha256(a), Compression.Codec.IDENTITY, 1));
+        cache.get(c.toString(), sha256(c), Compression.Codec.IDENTITY, 1);
+        assertEquals(8000, cache.getBytes());
+
+        assertSame(first, cache.get(a.toString(), sha256(a), Compression.Codec.IDENTITY, 1));
+        long misses = cache.getMisses();
+        cache.get(b.toString(), sha256(b), Compression.Codec.IDENTITY, 1);
+        assertEquals(misses + 1, cache.getMisses());
+
+        // b pushed c out in turn
+        cache.invalidate(a.toString());
+        assertEquals(4000, cache.getBytes());
+    }
+
+    @Test
+    public void refusesFilesThatDoNotMatchTheirDigest() throws Exception {
+        SmallFileCache cache = new SmallFileCache(4096, 1 << 20);
+        Path a = file("a", 1000, 4);
+        String digest = sha256(a);
+        Files.write(a, new byte[1000]);
+        assertThrows(IOException.class, () -> cache.get(a.toString(), digest, Compression.Codec.IDENTITY, 1));
+        assertEquals(0, cache.getBytes());
+    }
+
+    @Test
+    public void keepsAGzippedCopyOfCompressibleFiles() throws Exception {
+        SmallFileCache cache = new SmallFileCache(64 * 1024, 1 << 20);
+        Path text = dir.resolve("notes.txt");
+        Files.write(text, "the same line again\n".repeat(1000).getBytes(StandardCharsets.US_ASCII));
+
+        SmallFileCache.Content content = cache.get(text.toString(), sha256(text), Compression.Codec.GZIP, 1);
+        assertNotNull(content.gzipped);
+        assertTrue(content.gzipped.length < content.data.length / 4);
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(content.gzipped))) {
+            assertArrayEquals(content.data, in.readAllBytes());
+        }
+    }
+
+    @Test
+    public void zeroBudgetDisablesIt() {
+        assertFalse(new SmallFileCache(4096, 0).accepts(10));
+        assertFalse(new SmallFileCache(0, 1 << 20).accepts(0));
+    }
+
+    private Path file(String name, int size, long seed) throws IOException {
+        byte[] content = new byte[size];
+        new Random(seed).nextBytes(content);
+        return Files.write(dir.resolve(name), content);
+    }
+
+    private static String sha256(Path file) throws IOException, NoSuchAlgorithmException {
+        return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(Files.readAllBytes(file)));
+    }
+}
@@ -0,0 +1,116 @@
+package peerconnect.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+import org.junit.jupiter.api.Test;
+
+public class TransferProtocolTest {
+
+    private static final String DIGEST = "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08";
+
+    @Test
+    public void fileFramesCarryAnyNameAndTheDigest() throws IOException {
+        String name = "résumé\nline \"two\".txt";
+        byte[] header = TransferProtocol.fileFrame(name, 1000, 100, 900, Compression.Codec.GZIP, DIGEST);
+        TransferProtocol.Response response = readResponse(header, "body");
+
+        assertNull(response.error);
+        assertEquals(name, response.fileName);
+        assertEquals(1000, response.size);
+        assertEquals(100, response.offset);
+        assertEquals(900, response.length);
+        assertEquals(Compression.Codec.GZIP, response.encoding);
+        assertEquals(DIGEST, response.digest);
+    }
+
+    @Test
+    public void textHeadersAreStillUnderstood() throws IOException {
+        byte[] header = TransferProtocol.fileHeader("notes.txt", 42, 0, 42, Compression.Codec.IDENTITY, DIGEST);
+        TransferProtocol.Response response = readResponse(header, "");
+        assertEquals("notes.txt", response.fileName);
+        assertEquals(42, response.length);
+        assertEquals(DIGEST, response.digest);
+
+        assertEquals(TransferProtocol.ERROR_GONE,
+                readResponse(TransferProtocol.error(TransferProtocol.ERROR_GONE), "").error);
+        assertEquals(TransferProtocol.ERROR_GONE,
+                readResponse(TransferProtocol.errorFrame(TransferProtocol.ERROR_GONE), "").error);
+    }
+
+    @Test
+    public void readsRequestsInEitherFraming() throws IOException {
+        TransferProtocol.Request framed = TransferProtocol.readRequest(channel(
+                TransferProtocol.requestFrame(7, 10, 20, Compression.Codec.GZIP)));
+        assertEquals(7, framed.shareId);
+        assertEquals(10, framed.offset);
+        assertEquals(20, framed.length);
+        assertEquals(Compression.Codec.GZIP, framed.accept);
+        assertTrue(framed.binary);
+
+        TransferProtocol.Request text = TransferProtocol.readRequest(channel(TransferProtocol.request(7, 10, 20)));
+        assertEquals(7, text.shareId);
+        assertEquals(20, text.length);
+        assertFalse(text.binary);
+
+        assertNull(TransferProtocol.readRequest(channel("GET nonsense\n".getBytes())));
+    }
+
+    @Test
+    public void memberRequestsNameOneFileOfAShare() throws IOException {
+        byte[] frame = TransferProtocol.requestFrame(7, 3, 10, 20, Compression.Codec.GZIP);
+        assertEquals(TransferProtocol.MEMBER_REQUEST_FRAME_LENGTH, frame.length);
+        assertEquals(frame.length, TransferProtocol.requestFrameLength(frame[3]));
+        TransferProtocol.Request member = TransferProtocol.readRequest(channel(frame));
+        assertEquals(7, member.shareId);
+        assertEquals(3, member.member);
+        assertEquals(10, member.offset);
+        assertEquals(20, member.length);
+        assertEquals(Compression.Codec.GZIP, member.accept);
+
+        // without a member it is the plain request
+        byte[] whole = TransferProtocol.requestFrame(7, -1, 0, -1, Compression.Codec.IDENTITY);
+        assertEquals(TransferProtocol.REQUEST_FRAME_LENGTH, whole.length);
+        assertEquals(-1, TransferProtocol.parseRequestFrame(ByteBuffer.wrap(whole)).member);
+        assertNull(TransferProtocol.parseRequestFrame(ByteBuffer.wrap(frame, 0, TransferProtocol.REQUEST_FRAME_LENGTH)));
+    }
+
+    @Test
+    public void rejectsFramesOfAnotherVersion() {
+        byte[] frame = TransferProtocol.requestFrame(7, 0, -1, Compression.Codec.IDENTITY);
+        frame[2] = 2;
+        assertNull(TransferProtocol.parseRequestFrame(ByteBuffer.wrap(frame)));
+    }
+
+    @Test
+    public void answersInTheRequestsFraming() {
+        TransferProtocol.Request framed = new TransferProtocol.Request(7, 0, -1, Compression.Codec.IDENTITY, true);
+        TransferProtocol.Request text = new TransferProtocol.Request(7, 0, -1);
+        assertTrue(TransferProtocol.isFrame(TransferProtocol.error(framed, TransferProtocol.ERROR_BUSY)[0]));
+        assertFalse(TransferProtocol.isFrame(TransferProtocol.error(text, TransferProtocol.ERROR_BUSY)[0]));
+        assertFalse(TransferProtocol.isFrame(TransferProtocol.error(null, TransferProtocol.ERROR_BAD_REQUEST)[0]));
+    }
+
+    private static TransferProtocol.Response readResponse(byte[] header, String body) throws IOException {
+        byte[] all = new byte[header.length + body.length()];
+        System.arraycopy(header, 0, all, 0, header.length);
+        System.arraycopy(body.getBytes(), 0, all, header.length, body.length());
+        BufferedInputStream in = new BufferedInputStream(new ByteArrayInputStream(all));
+        TransferProtocol.Response response = TransferProtocol.readResponse(in);
+        assertEquals(body, new String(in.readAllBytes()));
+        return response;
+    }
+
+    private static ReadableByteChannel channel(byte[] bytes) {
+        return Channels.newChannel(new ByteArrayInputStream(bytes));
+    }
+}
@@ -0,0 +1,52 @@
+package peerconnect.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+public class TransferServerTest {
+
+    @Test
+    public void aBlockedHandlerHoldsUpNoOtherConnection() throws Exception {
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        TransferServer server = new TransferServer(0, (channel, request) -> {
+            try (channel) {
+                if (request.shareId == 1) {
+                    // a handler stuck on a slow disk or client
+                    entered.countDown();
+                    release.await();
+                }
+                FileTransfer.writeFully(channel, ByteBuffer.wrap(TransferProtocol.error(request, TransferProtocol.ERROR_GONE)));
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }, executor);
+        server.start();
+        try (Socket stuck = new Socket("localhost", server.getPort());
+             Socket other = new Socket("localhost", server.getPort())) {
+            stuck.getOutputStream().write(TransferProtocol.request(1));
+            assertTrue(entered.await(5, TimeUnit.SECONDS));
+            other.setSoTimeout(5000);
+            other.getOutputStream().write(TransferProtocol.request(2));
+            InputStream in = new BufferedInputStream(other.getInputStream());
+            assertEquals(TransferProtocol.ERROR_GONE, TransferProtocol.readResponse(in).error);
+            assertTrue(release.getCount() > 0);
+        } finally {
+            release.countDown();
+            server.stop();
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package peerconnect.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class UploadAdmissionTest {
+
+    private static final long MB = 1024 * 1024;
+
+    private Path dir;
+
+    @BeforeEach
+    public void createDir() throws IOException {
+        dir = Files.createTempDirectory("peerconnect-admission-");
+    }
+
+    @Test
+    public void refusesOversizedUploadsAndHoldsTheBudget() throws Exception {
+        UploadAdmission admission = new UploadAdmission(dir.toString(), 100 * MB, 150 * MB, 0);
+
+        UploadAdmission.RejectedException tooLarge =
+                assertThrows(UploadAdmission.RejectedException.class, () -> admission.admit(101 * MB));
+        assertEquals(UploadAdmission.Rejection.TOO_LARGE, tooLarge.reason);
+
+        UploadAdmission.Ticket first = admission.admit(100 * MB);
+        UploadAdmission.RejectedException busy =
+                assertThrows(UploadAdmission.RejectedException.class, () -> admission.admit(60 * MB));
+        assertEquals(UploadAdmission.Rejection.BUSY, busy.reason);
+        UploadAdmission.Ticket second = admission.admit(50 * MB);
+        assertEquals(2, admission.getInFlight());
+        assertEquals(150 * MB, admission.getReservedBytes());
+
+        first.close();
+        first.close();
+        second.close();
+        assertEquals(0, admission.getReservedBytes());
+        // unknown lengths are counted at the size limit
+        try (UploadAdmission.Ticket unknown = admission.admit(-1)) {
+            assertEquals(100 * MB, admission.getReservedBytes());
+        }
+
+        assertEquals(3, admission.getAdmitted());
+        assertEquals(1, admission.getRejected(UploadAdmission.Rejection.TOO_LARGE));
+        assertEquals(1, admission.getRejected(UploadAdmission.Rejection.BUSY));
+    }
+
+    @Test
+    public void keepsTheFreeSpaceReserve() throws Exception {
+        long usable = Files.getFileStore(dir).getUsableSpace();
+        UploadAdmission admission = new UploadAdmission(dir.toString(), Long.MAX_VALUE, Long.MAX_VALUE, usable);
+
+        UploadAdmission.RejectedException full =
+                assertThrows(UploadAdmission.RejectedException.class, () -> admission.admit(usable / 2 + MB));
+        assertEquals(UploadAdmission.Rejection.DISK_FULL, full.reason);
+        assertEquals(0, admission.getInFlight());
+    }
+
+    @Test
+    public void chunkedUploadsHoldTheirWholeFile() throws Exception {
+        long usable = Files.getFileStore(dir).getUsableSpace();
+        UploadAdmission admission = new UploadAdmission(dir.toString(), Long.MAX_VALUE, Long.MAX_VALUE, usable - 100 * MB);
+
+        UploadAdmission.Space space = admission.hold(60 * MB);
+        assertEquals(60 * MB, admission.getHeldBytes());
+        assertEquals(UploadAdmission.Rejection.DISK_FULL,
+                assertThrows(UploadAdmission.RejectedException.class, () -> admission.hold(60 * MB)).reason);
+        assertEquals(UploadAdmission.Rejection.DISK_FULL,
+                assertThrows(UploadAdmission.RejectedException.class, () -> admission.admit(60 * MB)).reason);
+        // the upload's own parts are already covered
+        admission.admit(60 * MB, true).close();
+
+        space.written(20 * MB);
+        assertEquals(40 * MB, admission.getHeldBytes());
+        space.close();
+        space.close();
+        assertEquals(0, admission.getHeldBytes());
+    }
+}
@@ -0,0 +1,92 @@
+package peerconnect.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class WriteBehindTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void bytesArriveInOrderAcrossManySmallBuffers() throws IOException {
+        // two buffers of 1000 bytes keep the writer busy and the caller waiting
+        WriteBehind writeBehind = new WriteBehind(WriteBehind.Durability.ON_COMPLETE, 1000, 2, 2, 0);
+        byte[] content = new byte[1_000_003];
+        new Random(22).nextBytes(content);
+        Path file = dir.resolve("upload");
+
+        WriteBehind.Stream stream = writeBehind.open(file);
+        Random sizes = new Random(23);
+        for (int off = 0; off < content.length; ) {
+            int n = Math.min(content.length - off, 1 + sizes.nextInt(5000));
+            stream.write(content, off, n);
+            off += n;
+        }
+        stream.finish();
+
+        assertArrayEquals(content, Files.readAllBytes(file));
+        assertEquals(1, writeBehind.getSyncs());
+        assertThrows(IOException.class, () -> stream.write(1));
+    }
+
+    @Test
+    public void uploadsFinishingTogetherShareOneGroupCommit() throws Exception {
+        WriteBehind writeBehind = new WriteBehind(WriteBehind.Durability.GROUP_COMMIT, 4096, 4, 2, 200);
+        int uploads = 6;
+        CyclicBarrier ready = new CyclicBarrier(uploads);
+        ExecutorService pool = Executors.newFixedThreadPool(uploads);
+        try {
+            List<Future<Path>> done = new ArrayList<>();
+            for (int i = 0; i < uploads; i++) {
+                Path file = dir.resolve("upload-" + i);
+                done.add(pool.submit(() -> {
+                    WriteBehind.Stream stream = writeBehind.open(file);
+                    stream.write(new byte[100_000]);
+                    ready.await();
+                    stream.finish();
+                    return file;
+                }));
+            }
+            for (Future<Path> file : done) {
+                assertEquals(100_000, Files.size(file.get()));
+            }
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(uploads, writeBehind.getSyncs());
+        assertTrue(writeBehind.getGroupCommits() < uploads, "commits: " + writeBehind.getGroupCommits());
+    }
+
+    @Test
+    public void abortedUploadsAreClosed() throws IOException {
+        WriteBehind writeBehind = new WriteBehind(WriteBehind.Durability.NONE, 1000, 2, 1, 0);
+        Path file = dir.resolve("aborted");
+        WriteBehind.Stream stream = writeBehind.open(file);
+        stream.write(new byte[2500]);
+        stream.abort();
+
+        // the two full buffers were written, the partial one dropped
+        assertEquals(2000, Files.size(file));
+        Files.delete(file);
+        assertFalse(Files.exists(file));
+        assertEquals(0, writeBehind.getSyncs());
+    }
+}
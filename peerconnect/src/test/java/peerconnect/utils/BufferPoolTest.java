@@ -0,0 +1,93 @@
+package peerconnect.utils;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class BufferPoolTest {
+
+    @Test
+    public void threadKeepsItsLastBuffer() {
+        BufferPool pool = new BufferPool(1024, 4, false);
+        ByteBuffer first = pool.acquire();
+        assertFalse(first.isDirect());
+        first.putInt(7);
+        pool.release(first);
+
+        ByteBuffer again = pool.acquire();
+        assertSame(first, again);
+        assertEquals(0, again.position());
+        assertEquals(0, pool.getPooled());
+    }
+
+    @Test
+    public void sharedQueueIsBounded() {
+        BufferPool pool = new BufferPool(1024, 2, true);
+        ByteBuffer[] taken = new ByteBuffer[5];
+        for (int i = 0; i < taken.length; i++) {
+            taken[i] = pool.acquire();
+            assertTrue(taken[i].isDirect());
+        }
+        for (ByteBuffer buffer : taken) {
+            pool.release(buffer);
+        }
+        // one goes to this thread's slot, two to the queue, the rest to the collector
+        assertEquals(2, pool.getPooled());
+
+        // foreign buffers are not taken in
+        pool.release(ByteBuffer.allocate(1024));
+        pool.release(ByteBuffer.allocateDirect(512));
+        assertEquals(2, pool.getPooled());
+    }
+
+    @Test
+    public void buffersAreSharedAcrossThreads() throws InterruptedException {
+        BufferPool pool = new BufferPool(1024, 4, false);
+        ByteBuffer mine = pool.acquire();
+        ByteBuffer[] theirs = new ByteBuffer[2];
+        Thread other = new Thread(() -> {
+            theirs[0] = pool.acquire();
+            theirs[1] = pool.acquire();
+            pool.release(theirs[0]);
+            pool.release(theirs[1]);
+        });
+        other.start();
+        other.join();
+        // the other thread kept one for itself and queued the second
+        assertEquals(1, pool.getPooled());
+        pool.release(mine);
+        ByteBuffer next = pool.acquire();
+        assertSame(mine, next);
+        assertNotSame(next, pool.acquire());
+    }
+
+    @Test
+    public void bufferedStreamReturnsItsBufferOnClose() throws IOException {
+        BufferPool pool = new BufferPool(4096, 4, false);
+        byte[] data = new byte[20_000];
+        new Random(3).nextBytes(data);
+
+        ByteBuffer cached = pool.acquire();
+        pool.release(cached);
+
+        InputStream in = pool.buffered(new ByteArrayInputStream(data));
+        // the stream took the cached buffer, so a new one has to be made
+        assertNotSame(cached, pool.acquire());
+        assertArrayEquals(data, in.readAllBytes());
+        in.close();
+        in.close();
+
+        assertSame(cached, pool.acquire());
+    }
+}
@@ -0,0 +1,55 @@
+package peerconnect.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class BytePatternMatcherTest {
+
+    private static int naiveIndexOf(byte[] data, int from, int to, byte[] pattern) {
+        outer:
+        for (int i = from; i <= to - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    @Test
+    public void matchesNaiveSearchOnSmallAlphabet() {
+        Random random = new Random(1);
+        for (int round = 0; round < 2000; round++) {
+            byte[] pattern = new byte[1 + random.nextInt(6)];
+            byte[] data = new byte[random.nextInt(64)];
+            for (int i = 0; i < pattern.length; i++) pattern[i] = (byte) random.nextInt(3);
+            for (int i = 0; i < data.length; i++) data[i] = (byte) random.nextInt(3);
+            int from = data.length == 0 ? 0 : random.nextInt(data.length);
+
+            BytePatternMatcher matcher = new BytePatternMatcher(pattern);
+            assertEquals(naiveIndexOf(data, from, data.length, pattern), matcher.indexOf(data, from, data.length));
+        }
+    }
+
+    @Test
+    public void reportsPartialMatchAtEnd() {
+        BytePatternMatcher matcher = new BytePatternMatcher("\r\n--abc".getBytes(StandardCharsets.ISO_8859_1));
+        byte[] data = "xxxx\r\n--ab".getBytes(StandardCharsets.ISO_8859_1);
+
+        assertEquals(6, matcher.partialMatchAtEnd(data, 0, data.length));
+        assertEquals(2, matcher.partialMatchAtEnd(data, 0, 6));
+        assertEquals(0, matcher.partialMatchAtEnd(data, 0, 4));
+    }
+
+    @Test
+    public void partialMatchFallsBackToShorterPrefix() {
+        BytePatternMatcher matcher = new BytePatternMatcher("aab".getBytes(StandardCharsets.ISO_8859_1));
+        byte[] data = "aaa".getBytes(StandardCharsets.ISO_8859_1);
+
+        assertEquals(2, matcher.partialMatchAtEnd(data, 0, data.length));
+    }
+}
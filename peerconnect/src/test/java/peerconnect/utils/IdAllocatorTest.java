@@ -0,0 +1,63 @@
+package peerconnect.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.jupiter.api.Test;
+
+public class IdAllocatorTest {
+
+    @Test
+    public void handsOutEveryIdExactlyOnce() {
+        IdAllocator allocator = new IdAllocator(1000, 1099);
+        Set<Integer> ids = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            int id = allocator.allocate();
+            assertTrue(id >= 1000 && id <= 1099, "out of range: " + id);
+            assertTrue(ids.add(id), "duplicate: " + id);
+        }
+        assertEquals(-1, allocator.allocate());
+        assertEquals(1.0, allocator.getOccupancy());
+
+        assertTrue(allocator.release(1042));
+        assertFalse(allocator.release(1042));
+        assertEquals(1042, allocator.allocate());
+    }
+
+    @Test
+    public void reserveClaimsSpecificIds() {
+        IdAllocator allocator = new IdAllocator(1, 10);
+        assertTrue(allocator.reserve(5));
+        assertFalse(allocator.reserve(5));
+        assertFalse(allocator.reserve(11));
+        assertEquals(1, allocator.getAllocated());
+    }
+
+    @Test
+    public void concurrentAllocationsNeverCollide() throws InterruptedException {
+        IdAllocator allocator = new IdAllocator(0, 9_999);
+        Set<Integer> ids = ConcurrentHashMap.newKeySet();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 1250; i++) {
+                    assertTrue(ids.add(allocator.allocate()));
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(10_000, ids.size());
+        assertEquals(-1, allocator.allocate());
+    }
+}
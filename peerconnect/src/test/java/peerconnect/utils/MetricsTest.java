@@ -0,0 +1,58 @@
+package peerconnect.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class MetricsTest {
+
+    @Test
+    public void everyValueLandsInABucketThatCoversIt() {
+        Random random = new Random(3);
+        for (int i = 0; i < 100_000; i++) {
+            long value = random.nextLong() >>> (1 + random.nextInt(63));
+            int index = Metrics.Histogram.index(value);
+            assertTrue(value <= Metrics.Histogram.upperBound(index), "value " + value);
+            assertTrue(index == 0 || value > Metrics.Histogram.upperBound(index - 1), "value " + value);
+        }
+        assertEquals(Metrics.Histogram.BUCKETS - 1, Metrics.Histogram.index(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void percentilesAreWithinTheBucketPrecision() {
+        Metrics.Histogram histogram = new Metrics.Histogram();
+        for (int i = 1; i <= 10_000; i++) {
+            histogram.record(i * 100L);
+        }
+        Metrics.Histogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(10_000, snapshot.count);
+        assertWithin(500_000, snapshot.percentile(0.5));
+        assertWithin(990_000, snapshot.percentile(0.99));
+        assertWithin(1_000_000, snapshot.percentile(1.0));
+        assertEquals(0, new Metrics.Histogram().snapshot().percentile(0.5));
+    }
+
+    @Test
+    public void rendersPrometheusText() {
+        Metrics metrics = new Metrics();
+        Metrics.Counter counter = metrics.counter("test_events_total", "Events");
+        counter.add(3);
+        metrics.counter("test_refused_total", "Refusals", "reason=\"busy\"", () -> 2);
+        metrics.counter("test_refused_total", "Refusals", "reason=\"full\"", () -> 0);
+        metrics.histogram("test_latency_seconds", "Latency", 1e-6).record(1_000_000);
+
+        String text = metrics.render();
+        assertTrue(text.contains("# TYPE test_events_total counter\ntest_events_total 3\n"), text);
+        assertTrue(text.contains("test_refused_total{reason=\"busy\"} 2\ntest_refused_total{reason=\"full\"} 0\n"), text);
+        assertEquals(1, text.split("# TYPE test_refused_total", -1).length - 1);
+        assertTrue(text.contains("test_latency_seconds_count 1\n"), text);
+        assertTrue(text.contains("test_latency_seconds{quantile=\"0.5\"} 1.0"), text);
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue(Math.abs(actual - expected) <= expected / 16, "expected about " + expected + ", got " + actual);
+    }
+}
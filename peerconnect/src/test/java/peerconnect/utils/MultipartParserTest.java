@@ -0,0 +1,135 @@
+package peerconnect.utils;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+public class MultipartParserTest {
+
+    private static final String BOUNDARY = "----WebKitFormBoundary7MA4YWxkTrZu0gW";
+
+    private static byte[] body(byte[] content) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(("--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"note\"\r\n\r\n"
+                + "hello\r\n"
+                + "--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"data.bin\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        out.write(content);
+        out.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        return out.toByteArray();
+    }
+
+    // Hands out the body a few bytes at a time so boundaries straddle reads.
+    private static InputStream trickle(byte[] data, int maxChunk) {
+        return new ByteArrayInputStream(data) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, maxChunk));
+            }
+        };
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 3, 7, 64, 4096})
+    public void streamsFileContentAcrossReadEdges(int chunk) throws IOException {
+        byte[] content = new byte[50_000];
+        new Random(42).nextBytes(content);
+        // partial delimiters inside the content must not end the part
+        byte[] fake = ("\r\n--" + BOUNDARY.substring(0, 10)).getBytes(StandardCharsets.ISO_8859_1);
+        System.arraycopy(fake, 0, content, 1000, fake.length);
+
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        MultipartParser parser = new MultipartParser(trickle(body(content), chunk), BOUNDARY, Long.MAX_VALUE, 256);
+        MultipartParser.ParseResult result = parser.parse((name, type) -> sink);
+
+        assertEquals("data.bin", result.filename);
+        assertEquals("application/octet-stream", result.contentType);
+        assertEquals(content.length, result.size);
+        assertArrayEquals(content, sink.toByteArray());
+    }
+
+    @Test
+    public void parseAllStreamsEveryFileInOrder() throws IOException {
+        byte[] body = ("--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"files\"; filename=\"docs/a.txt\"\r\n\r\n"
+                + "first\r\n"
+                + "--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"note\"\r\n\r\n"
+                + "skipped\r\n"
+                + "--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"files\"; filename=\"docs/b.txt\"\r\n\r\n"
+                + "second file\r\n"
+                + "--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        List<ByteArrayOutputStream> sinks = new ArrayList<>();
+        MultipartParser.PartHandler handler = (name, type) -> {
+            ByteArrayOutputStream sink = new ByteArrayOutputStream();
+            sinks.add(sink);
+            return sink;
+        };
+
+        List<MultipartParser.ParseResult> results =
+                new MultipartParser(trickle(body, 5), BOUNDARY, Long.MAX_VALUE, 256).parseAll(handler, 10);
+        assertEquals(2, results.size());
+        assertEquals("docs/a.txt", results.get(0).filename);
+        assertEquals("docs/b.txt", results.get(1).filename);
+        assertEquals("first", sinks.get(0).toString(StandardCharsets.ISO_8859_1));
+        assertEquals("second file", sinks.get(1).toString(StandardCharsets.ISO_8859_1));
+
+        assertThrows(IllegalArgumentException.class,
+                () -> new MultipartParser(new ByteArrayInputStream(body), BOUNDARY, Long.MAX_VALUE).parseAll(handler, 1));
+        // parse() keeps the first file and skips the rest
+        assertEquals("docs/a.txt",
+                new MultipartParser(new ByteArrayInputStream(body), BOUNDARY, Long.MAX_VALUE).parse(handler).filename);
+    }
+
+    @Test
+    public void handlesEmptyFile() throws IOException {
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        MultipartParser parser = new MultipartParser(new ByteArrayInputStream(body(new byte[0])), BOUNDARY, Long.MAX_VALUE);
+        MultipartParser.ParseResult result = parser.parse((name, type) -> sink);
+
+        assertEquals(0, result.size);
+        assertEquals(0, sink.size());
+    }
+
+    @Test
+    public void returnsNullWithoutFilePart() throws IOException {
+        byte[] data = ("--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"note\"\r\n\r\n"
+                + "hello\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        MultipartParser parser = new MultipartParser(new ByteArrayInputStream(data), BOUNDARY, Long.MAX_VALUE);
+
+        assertNull(parser.parse((name, type) -> new ByteArrayOutputStream()));
+    }
+
+    @Test
+    public void enforcesSizeLimit() throws IOException {
+        byte[] data = body(new byte[10_000]);
+        MultipartParser parser = new MultipartParser(new ByteArrayInputStream(data), BOUNDARY, 5_000);
+
+        assertThrows(MultipartParser.SizeLimitExceededException.class,
+                () -> parser.parse((name, type) -> new ByteArrayOutputStream()));
+    }
+
+    @Test
+    public void extractsQuotedBoundary() {
+        assertEquals("abc", MultipartParser.extractBoundary("multipart/form-data; boundary=\"abc\"; charset=utf-8"));
+        assertNull(MultipartParser.extractBoundary("multipart/form-data"));
+    }
+}
@@ -0,0 +1,41 @@
+package peerconnect.utils;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+public class ThreadUtilsTest {
+
+    @Test
+    public void boundedExecutorRefusesWhatItCannotHold() throws InterruptedException {
+        ExecutorService pool = ThreadUtils.newBoundedExecutor("bounded-test", 2, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch ran = new CountDownLatch(3);
+        Runnable blocked = () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            ran.countDown();
+        };
+        try {
+            // two threads and one queued task, then nothing more
+            pool.execute(blocked);
+            pool.execute(blocked);
+            pool.execute(blocked);
+            assertThrows(RejectedExecutionException.class, () -> pool.execute(blocked));
+            release.countDown();
+            assertTrue(ran.await(5, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package peerconnect.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetAddress;
+import java.util.List;
+
+import com.google.common.net.InetAddresses;
+import org.junit.jupiter.api.Test;
+
+public class TrustedProxiesTest {
+
+    private static final InetAddress PROXY = address("10.1.2.3");
+    private static final InetAddress CLIENT = address("203.0.113.9");
+
+    @Test
+    public void matchesAddressesAndRanges() {
+        TrustedProxies proxies = new TrustedProxies("127.0.0.1, 10.0.0.0/8, ::1, bogus, 192.168.0.0/33");
+        assertTrue(proxies.isTrusted(address("127.0.0.1")));
+        assertFalse(proxies.isTrusted(address("127.0.0.2")));
+        assertTrue(proxies.isTrusted(PROXY));
+        assertFalse(proxies.isTrusted(address("11.0.0.1")));
+        assertTrue(proxies.isTrusted(address("::1")));
+        assertFalse(proxies.isTrusted(address("192.168.0.1")));
+
+        TrustedProxies halves = new TrustedProxies("172.16.0.0/12");
+        assertTrue(halves.isTrusted(address("172.31.255.255")));
+        assertFalse(halves.isTrusted(address("172.32.0.0")));
+    }
+
+    @Test
+    public void readsTheHeadersOfTrustedProxiesOnly() {
+        TrustedProxies proxies = new TrustedProxies("10.0.0.0/8");
+        assertEquals(CLIENT, proxies.clientAddress(PROXY, List.of("203.0.113.9"), null));
+        assertEquals(CLIENT, proxies.clientAddress(PROXY, null, "203.0.113.9"));
+        assertEquals(PROXY, proxies.clientAddress(PROXY, null, null));
+
+        InetAddress stranger = address("198.51.100.7");
+        assertEquals(stranger, proxies.clientAddress(stranger, List.of("203.0.113.9"), "203.0.113.9"));
+        // nothing is trusted unless configured
+        assertEquals(PROXY, new TrustedProxies("").clientAddress(PROXY, List.of("203.0.113.9"), null));
+    }
+
+    @Test
+    public void takesTheRightmostUntrustedHop() {
+        TrustedProxies proxies = new TrustedProxies("10.0.0.0/8");
+        // the client wrote the first entry itself; the proxies appended the rest
+        assertEquals(CLIENT, proxies.clientAddress(PROXY, List.of("1.2.3.4, 203.0.113.9, 10.0.0.5"), null));
+        assertEquals(CLIENT, proxies.clientAddress(PROXY, List.of("1.2.3.4", "203.0.113.9"), null));
+        // every hop a proxy: the first one is as close to the client as it gets
+        assertEquals(address("10.0.0.6"), proxies.clientAddress(PROXY, List.of("10.0.0.6, 10.0.0.5"), null));
+        assertEquals(address("10.0.0.5"), proxies.clientAddress(PROXY, List.of("not-an-ip, 10.0.0.5"), null));
+    }
+
+    private static InetAddress address(String literal) {
+        return InetAddresses.forString(literal);
+    }
+}